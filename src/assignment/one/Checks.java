@@ -0,0 +1,69 @@
+package assignment.one;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.Random;
+
+/**
+ * Helpers shared by the randomized test programs of this package ({@code *Test} classes with a
+ * {@code main}). Each takes an optional seed as its first argument, repeats the same run for the
+ * same seed, and throws an {@link AssertionError} on the first mismatch.
+ */
+final class Checks {
+
+    private Checks() {
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+
+    /** @return the seed given as the first argument, 1 if none */
+    static long seed(String[] args) {
+        return args.length > 0 ? Long.parseLong(args[0]) : 1;
+    }
+
+    /** @return an RSA key pair drawn from {@code random}, so that a seed gives the same keys */
+    static KeyPair newKeyPair(Random random) {
+        try {
+            SecureRandom seeded = SecureRandom.getInstance("SHA1PRNG");
+            seeded.setSeed(random.nextLong());
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048, seeded);
+            return generator.generateKeyPair();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** signs input {@code input} of {@code tx} with {@code key} */
+    static void sign(Transaction tx, PrivateKey key, int input) {
+        try {
+            Signature sig = Signature.getInstance("SHA256withRSA");
+            sig.initSign(key);
+            sig.update(tx.getRawDataToSign(input));
+            tx.addSignature(sig.sign(), input);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** @return a finalized transaction that spends {@code inputs}, all owned by {@code owner} */
+    static Transaction newTransaction(KeyPair owner, UTXO[] inputs, double... outputs) {
+        Transaction tx = new Transaction();
+        for (UTXO utxo : inputs)
+            tx.addInput(utxo.getTxHash(), utxo.getIndex());
+        for (double value : outputs)
+            tx.addOutput(value, owner.getPublic());
+        for (int i = 0; i < inputs.length; i++)
+            sign(tx, owner.getPrivate(), i);
+        tx.finalize();
+        return tx;
+    }
+}
@@ -0,0 +1,410 @@
+package assignment.one;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Picks the mutually valid subset of an epoch's transactions with the highest total fee.
+ *
+ * <p>A transaction may spend outputs of the current {@code UTXOPool} or of other transactions of
+ * the same epoch (its parents). Two transactions conflict when they claim the same output. The
+ * candidates are split into clusters connected by conflict and parent edges; clusters are
+ * independent of each other, so each one is solved on its own:
+ * <ul>
+ * <li>every cluster first gets a greedy solution that repeatedly takes the ancestor package
+ * (a transaction plus its not yet selected ancestors) with the highest total fee;</li>
+ * <li>clusters of at most {@code exactClusterSize} transactions are then solved exactly by branch
+ * and bound, starting from the greedy solution, for as long as the time budget allows.</li>
+ * </ul>
+ * Once the time budget is spent, remaining clusters are filled first come, first served in
+ * dependency order, so {@link #select} always returns a valid set.
+ */
+public class MaxFeeSelector {
+
+    public static final long DEFAULT_TIME_BUDGET_MILLIS = 200;
+    public static final int DEFAULT_EXACT_CLUSTER_SIZE = 24;
+
+    /** fees closer than this are considered equal */
+    private static final double EPSILON = 1e-9;
+
+    private final UTXOPool utxoPool;
+    private final long timeBudgetMillis;
+    private final int exactClusterSize;
+
+    // state of the current select() call
+    private Transaction[] txs;
+    private double[] fees;
+    private int[][] parents;
+    private int[][] children;
+    private int[][] claims;
+    private int[] topoRank;
+    private long deadline;
+    /** ancestors visited by greedy(), counted to check the deadline every 1024 of them */
+    private long steps;
+
+    public MaxFeeSelector(UTXOPool utxoPool) {
+        this(utxoPool, DEFAULT_TIME_BUDGET_MILLIS, DEFAULT_EXACT_CLUSTER_SIZE);
+    }
+
+    /**
+     * @param timeBudgetMillis how long {@link #select} may spend improving on greedy solutions
+     * @param exactClusterSize the largest cluster that is solved exactly
+     */
+    public MaxFeeSelector(UTXOPool utxoPool, long timeBudgetMillis, int exactClusterSize) {
+        this.utxoPool = utxoPool;
+        this.timeBudgetMillis = timeBudgetMillis;
+        this.exactClusterSize = exactClusterSize;
+    }
+
+    /**
+     * @return a mutually valid subset of {@code candidates} with maximal (or, past the time
+     *         budget, greedily chosen) total fee, ordered so that parents come before children.
+     *         The pool is not modified.
+     */
+    public ArrayList<Transaction> select(List<Transaction> candidates) {
+        deadline = System.nanoTime() + timeBudgetMillis * 1000000L;
+        index(candidates);
+        boolean[] valid = resolve();
+        invalidateDescendants(valid);
+        sortTopologically(valid);
+
+        boolean[] selected = new boolean[txs.length];
+        for (int[] cluster : clusters(valid)) {
+            boolean[] best = greedy(cluster);
+            if (cluster.length <= exactClusterSize && System.nanoTime() < deadline)
+                best = new ExactSearch(cluster, best).run();
+            for (int i = 0; i < cluster.length; i++)
+                if (best[i]) selected[cluster[i]] = true;
+        }
+
+        ArrayList<Integer> chosen = new ArrayList<>();
+        for (int t = 0; t < txs.length; t++)
+            if (selected[t]) chosen.add(t);
+        chosen.sort(Comparator.comparingInt(t -> topoRank[t]));
+        ArrayList<Transaction> result = new ArrayList<>(chosen.size());
+        for (int t : chosen)
+            result.add(txs[t]);
+        return result;
+    }
+
+    /** Drops null and duplicate candidates and numbers the rest */
+    private void index(List<Transaction> candidates) {
+        HashSet<ByteBuffer> seen = new HashSet<>();
+        ArrayList<Transaction> unique = new ArrayList<>();
+        for (Transaction tx : candidates) {
+            if (tx == null || tx.getHash() == null) continue;
+            if (seen.add(ByteBuffer.wrap(tx.getHash()))) unique.add(tx);
+        }
+        txs = unique.toArray(new Transaction[unique.size()]);
+    }
+
+    /**
+     * Resolves every input against the pool or a parent candidate, computes fees and claimed
+     * outputs, and checks each transaction's own rules, including signatures.
+     *
+     * @return whether each transaction is valid provided its parents are applied first
+     */
+    private boolean[] resolve() {
+        int n = txs.length;
+        HashMap<ByteBuffer, Integer> byHash = new HashMap<>();
+        for (int t = 0; t < n; t++)
+            byHash.put(ByteBuffer.wrap(txs[t].getHash()), t);
+
+        HashMap<UTXO, Integer> outpointIds = new HashMap<>();
+        boolean[] valid = new boolean[n];
+        fees = new double[n];
+        parents = new int[n][];
+        claims = new int[n][];
+        for (int t = 0; t < n; t++) {
+            Transaction tx = txs[t];
+            ArrayList<Transaction.Input> inputs = tx.getInputs();
+            Transaction.Output[] resolved = new Transaction.Output[inputs.size()];
+            HashSet<Integer> txParents = new HashSet<>();
+            int[] txClaims = new int[inputs.size()];
+            boolean ok = tx.getOutputs().stream().allMatch(o -> o.value >= 0);
+            for (int i = 0; ok && i < inputs.size(); i++) {
+                Transaction.Input input = inputs.get(i);
+                if (input == null || input.prevTxHash == null) {
+                    ok = false;
+                    break;
+                }
+                UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+                resolved[i] = utxoPool.getTxOutput(utxo);
+                if (resolved[i] == null) {
+                    Integer parent = byHash.get(ByteBuffer.wrap(input.prevTxHash));
+                    if (parent != null && parent != t && input.outputIndex >= 0
+                            && input.outputIndex < txs[parent].numOutputs()) {
+                        resolved[i] = txs[parent].getOutput(input.outputIndex);
+                        txParents.add(parent);
+                    }
+                }
+                Integer id = outpointIds.computeIfAbsent(utxo, u -> outpointIds.size());
+                txClaims[i] = id;
+                ok = resolved[i] != null;
+            }
+            // no output may be claimed twice by the same transaction
+            ok = ok && Arrays.stream(txClaims).distinct().count() == txClaims.length;
+            if (ok) {
+                double inputSum = Arrays.stream(resolved).mapToDouble(o -> o.value).sum();
+                double outputSum = tx.getOutputs().stream().mapToDouble(o -> o.value).sum();
+                ok = inputSum >= outputSum;
+                fees[t] = inputSum - outputSum;
+            }
+            for (int i = 0; ok && i < inputs.size(); i++)
+                ok = Crypto.verifySignature(resolved[i].address, tx.getRawDataToSign(i),
+                        inputs.get(i).signature);
+            valid[t] = ok;
+            parents[t] = txParents.stream().mapToInt(Integer::intValue).toArray();
+            claims[t] = txClaims;
+        }
+
+        ArrayList<ArrayList<Integer>> childLists = new ArrayList<>();
+        for (int t = 0; t < n; t++)
+            childLists.add(new ArrayList<>());
+        for (int t = 0; t < n; t++)
+            for (int p : parents[t])
+                childLists.get(p).add(t);
+        children = new int[n][];
+        for (int t = 0; t < n; t++)
+            children[t] = childLists.get(t).stream().mapToInt(Integer::intValue).toArray();
+        return valid;
+    }
+
+    /** A transaction whose parent can never be applied can never be applied either */
+    private void invalidateDescendants(boolean[] valid) {
+        ArrayList<Integer> queue = new ArrayList<>();
+        for (int t = 0; t < txs.length; t++)
+            if (!valid[t]) queue.add(t);
+        for (int head = 0; head < queue.size(); head++)
+            for (int child : children[queue.get(head)])
+                if (valid[child]) {
+                    valid[child] = false;
+                    queue.add(child);
+                }
+    }
+
+    /** Ranks valid transactions in dependency order; transactions on a cycle become invalid */
+    private void sortTopologically(boolean[] valid) {
+        int n = txs.length;
+        int[] pending = new int[n];
+        for (int t = 0; t < n; t++)
+            pending[t] = parents[t].length;
+        topoRank = new int[n];
+        Arrays.fill(topoRank, -1);
+        int[] queue = new int[n];
+        int head = 0, tail = 0;
+        for (int t = 0; t < n; t++)
+            if (valid[t] && pending[t] == 0) queue[tail++] = t;
+        while (head < tail) {
+            int t = queue[head];
+            topoRank[t] = head++;
+            for (int child : children[t])
+                if (valid[child] && --pending[child] == 0) queue[tail++] = child;
+        }
+        for (int t = 0; t < n; t++)
+            if (topoRank[t] < 0) valid[t] = false;
+    }
+
+    /** @return the valid transactions grouped by conflict and parent edges, each in topo order */
+    private List<int[]> clusters(boolean[] valid) {
+        int n = txs.length;
+        int[] root = new int[n];
+        for (int t = 0; t < n; t++)
+            root[t] = t;
+        HashMap<Integer, Integer> claimant = new HashMap<>();
+        for (int t = 0; t < n; t++) {
+            if (!valid[t]) continue;
+            for (int p : parents[t])
+                union(root, t, p);
+            for (int c : claims[t]) {
+                Integer other = claimant.putIfAbsent(c, t);
+                if (other != null) union(root, t, other);
+            }
+        }
+        HashMap<Integer, ArrayList<Integer>> members = new HashMap<>();
+        for (int t = 0; t < n; t++)
+            if (valid[t]) members.computeIfAbsent(find(root, t), r -> new ArrayList<>()).add(t);
+        ArrayList<int[]> result = new ArrayList<>();
+        for (ArrayList<Integer> cluster : members.values())
+            result.add(cluster.stream().sorted(Comparator.comparingInt(t -> topoRank[t]))
+                    .mapToInt(Integer::intValue).toArray());
+        result.sort(Comparator.comparingInt(c -> topoRank[c[0]]));
+        return result;
+    }
+
+    private static int find(int[] root, int t) {
+        while (root[t] != t) {
+            root[t] = root[root[t]];
+            t = root[t];
+        }
+        return t;
+    }
+
+    private static void union(int[] root, int a, int b) {
+        root[find(root, a)] = find(root, b);
+    }
+
+    /**
+     * Repeatedly adds the ancestor package with the highest total fee that does not conflict with
+     * what is already selected. Past the deadline, which is also checked within a round as a round
+     * on a long chain takes quadratic time, it only adds transactions first come, first served.
+     *
+     * @return for each position of {@code cluster}, whether it is selected
+     */
+    private boolean[] greedy(int[] cluster) {
+        HashMap<Integer, Integer> position = new HashMap<>();
+        for (int i = 0; i < cluster.length; i++)
+            position.put(cluster[i], i);
+        boolean[] selected = new boolean[cluster.length];
+        boolean[] blocked = new boolean[cluster.length];
+        HashSet<Integer> claimed = new HashSet<>();
+
+        rounds:
+        while (System.nanoTime() < deadline) {
+            int[] bestPackage = null;
+            double bestFee = 0;
+            for (int i = 0; i < cluster.length; i++) {
+                if (selected[i] || blocked[i]) continue;
+                int[] pkg = ancestorPackage(cluster[i], position, selected);
+                if (pkg == null) break rounds;
+                if (!canClaim(pkg, claimed)) {
+                    // some ancestors spend the same output, or a spent one: never selectable
+                    blocked[i] = true;
+                    continue;
+                }
+                double fee = 0;
+                for (int t : pkg)
+                    fee += fees[t];
+                if (bestPackage == null || fee > bestFee + EPSILON) {
+                    bestPackage = pkg;
+                    bestFee = fee;
+                }
+            }
+            if (bestPackage == null) return selected;
+            for (int t : bestPackage) {
+                selected[position.get(t)] = true;
+                for (int c : claims[t])
+                    claimed.add(c);
+            }
+        }
+
+        // out of time: take whatever still fits, in dependency order
+        for (int i = 0; i < cluster.length; i++) {
+            int t = cluster[i];
+            if (selected[i] || blocked[i]) continue;
+            boolean fits = canClaim(new int[] { t }, claimed);
+            for (int p : parents[t])
+                fits = fits && selected[position.get(p)];
+            if (!fits) continue;
+            selected[i] = true;
+            for (int c : claims[t])
+                claimed.add(c);
+        }
+        return selected;
+    }
+
+    /**
+     * @return {@code t} and all its ancestors that are not selected yet, or null if the deadline
+     *         passed on the way
+     */
+    private int[] ancestorPackage(int t, HashMap<Integer, Integer> position, boolean[] selected) {
+        HashSet<Integer> pkg = new HashSet<>();
+        ArrayList<Integer> stack = new ArrayList<>();
+        stack.add(t);
+        while (!stack.isEmpty()) {
+            if ((++steps & 1023) == 0 && System.nanoTime() > deadline) return null;
+            int u = stack.remove(stack.size() - 1);
+            if (selected[position.get(u)] || !pkg.add(u)) continue;
+            for (int p : parents[u])
+                stack.add(p);
+        }
+        return pkg.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /** @return true if the transactions of {@code pkg} claim distinct outputs not in {@code claimed} */
+    private boolean canClaim(int[] pkg, HashSet<Integer> claimed) {
+        HashSet<Integer> mine = new HashSet<>();
+        for (int t : pkg)
+            for (int c : claims[t])
+                if (claimed.contains(c) || !mine.add(c)) return false;
+        return true;
+    }
+
+    /** Branch and bound over one cluster, deciding each transaction in dependency order */
+    private class ExactSearch {
+        private final int[] cluster;
+        private final HashMap<Integer, Integer> position = new HashMap<>();
+        /** sum of the fees from each position to the end of the cluster */
+        private final double[] remaining;
+        private final boolean[] included;
+        private final HashSet<Integer> claimed = new HashSet<>();
+        private boolean[] best;
+        private double bestFee;
+        private int bestCount;
+        private long nodes;
+        private boolean outOfTime;
+
+        private ExactSearch(int[] cluster, boolean[] incumbent) {
+            this.cluster = cluster;
+            for (int i = 0; i < cluster.length; i++)
+                position.put(cluster[i], i);
+            remaining = new double[cluster.length + 1];
+            for (int i = cluster.length - 1; i >= 0; i--)
+                remaining[i] = remaining[i + 1] + fees[cluster[i]];
+            included = new boolean[cluster.length];
+            best = incumbent;
+            for (int i = 0; i < cluster.length; i++)
+                if (incumbent[i]) {
+                    bestFee += fees[cluster[i]];
+                    bestCount++;
+                }
+        }
+
+        /** @return the best selection found, which is optimal unless the deadline passed */
+        private boolean[] run() {
+            search(0, 0, 0);
+            return best;
+        }
+
+        private void search(int pos, double fee, int count) {
+            if ((++nodes & 1023) == 0 && System.nanoTime() > deadline) outOfTime = true;
+            if (outOfTime) return;
+            if (pos == cluster.length) {
+                if (fee > bestFee + EPSILON || (fee > bestFee - EPSILON && count > bestCount)) {
+                    best = included.clone();
+                    bestFee = fee;
+                    bestCount = count;
+                }
+                return;
+            }
+            double bound = fee + remaining[pos];
+            if (bound < bestFee - EPSILON) return;
+            if (bound < bestFee + EPSILON && count + cluster.length - pos <= bestCount) return;
+
+            int t = cluster[pos];
+            if (canInclude(t)) {
+                included[pos] = true;
+                for (int c : claims[t])
+                    claimed.add(c);
+                search(pos + 1, fee + fees[t], count + 1);
+                for (int c : claims[t])
+                    claimed.remove(c);
+                included[pos] = false;
+            }
+            search(pos + 1, fee, count);
+        }
+
+        private boolean canInclude(int t) {
+            for (int p : parents[t])
+                if (!included[position.get(p)]) return false;
+            for (int c : claims[t])
+                if (claimed.contains(c)) return false;
+            return true;
+        }
+    }
+}
@@ -6,35 +6,43 @@ import java.util.*;
 public class MaxFeeTxHandler {
 
     private UTXOPool utxoPool;
+    private long timeBudgetMillis;
+    private int exactClusterSize;
 
     public MaxFeeTxHandler(UTXOPool utxoPool) {
+        this(utxoPool, MaxFeeSelector.DEFAULT_TIME_BUDGET_MILLIS,
+                MaxFeeSelector.DEFAULT_EXACT_CLUSTER_SIZE);
+    }
+
+    /** @see MaxFeeSelector#MaxFeeSelector(UTXOPool, long, int) */
+    public MaxFeeTxHandler(UTXOPool utxoPool, long timeBudgetMillis, int exactClusterSize) {
         this.utxoPool = utxoPool;
+        this.timeBudgetMillis = timeBudgetMillis;
+        this.exactClusterSize = exactClusterSize;
     }
 
+    /**
+     * Selects the mutually valid subset of {@code possibleTxs} with the highest total fee, updates
+     * the UTXO pool with it, and returns it in the order it was applied.
+     */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
         if (possibleTxs == null) return new Transaction[0];
 
-        ArrayList<Transaction> validTransactions = new ArrayList<>();
-        for(Transaction transaction: possibleTxs){
-            if (isValidTx(transaction)){
-                // remove all inputs from unspent transaction outputs
-                for(Transaction.Input input : transaction.getInputs())
-                    this.utxoPool.removeUTXO(new UTXO(input.prevTxHash, input.outputIndex));
-
-                byte[] txHash = transaction.getHash();
-                // add inputs into unspent transaction outputs
-                for(int i = 0; i < transaction.getOutputs().size(); i++){
-                    UTXO utxo = new UTXO(txHash, i);
-                    utxoPool.addUTXO(utxo, transaction.getOutput(i));
-                }
-                validTransactions.add(transaction);
+        Transaction[] selected = sortTransactionsByFeesOptimal(
+                new ArrayList<>(Arrays.asList(possibleTxs)));
+        for(Transaction transaction: selected){
+            // remove all inputs from unspent transaction outputs
+            for(Transaction.Input input : transaction.getInputs())
+                this.utxoPool.removeUTXO(new UTXO(input.prevTxHash, input.outputIndex));
+
+            byte[] txHash = transaction.getHash();
+            // add inputs into unspent transaction outputs
+            for(int i = 0; i < transaction.getOutputs().size(); i++){
+                UTXO utxo = new UTXO(txHash, i);
+                utxoPool.addUTXO(utxo, transaction.getOutput(i));
             }
         }
-
-        // TODO: find optimal fees rather than taking the greedy approach.
-        // Perhaps processing linked transactions yields a greater fee than individual transactions.
-
-        return sortTransactionsByFeesGreedy(validTransactions);
+        return selected;
     }
 
     public boolean isValidTx(Transaction tx) {
@@ -55,9 +63,8 @@ public class MaxFeeTxHandler {
         ArrayList<Transaction.Input> inputs = tx.getInputs();
         for(int i = 0; i < inputs.size(); i++) {
             Transaction.Input input = inputs.get(i);
-            ArrayList<UTXO> utxos = utxoPool.getAllUTXO();
             UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
-            valid = valid && utxos.contains(utxo);
+            valid = valid && utxoPool.contains(utxo);
         }
         return valid;
     }
@@ -106,46 +113,32 @@ public class MaxFeeTxHandler {
     }
 
     public boolean isSumOfInputsGreaterThanSumOfOutputs(Transaction tx){
-        ArrayList<UTXO> pUTXOs = utxoPool.getAllUTXO();
         double inputSum = tx.getInputs().stream()
-                .filter(input -> pUTXOs.contains(new UTXO(input.prevTxHash, input.outputIndex)))
-                .map(input -> new UTXO(input.prevTxHash, input.outputIndex))
-                .mapToDouble(utxo -> utxoPool.getTxOutput(utxo).value).sum();
+                .map(input -> utxoPool.getTxOutput(new UTXO(input.prevTxHash, input.outputIndex)))
+                .filter(output -> output != null)
+                .mapToDouble(output -> output.value).sum();
         double outputSum = tx.getOutputs().stream().mapToDouble(o -> o.value).sum();
         return inputSum >= outputSum;
     }
 
-
-    public Transaction[] sortTransactionsByFeesGreedy(ArrayList<Transaction> transactions){
-        HashMap<Double, ArrayList<Transaction>> transactionFeeMap = new HashMap<>();
-        for(Transaction transaction : transactions){
-            double fees = getTransactionFees(transaction);
-            ArrayList<Transaction> txs = transactionFeeMap.getOrDefault(fees, new ArrayList<Transaction>());
-            txs.add(transaction);
-            transactionFeeMap.put(fees, txs);
-        }
-        ArrayList<Transaction> sortedTransactions = new ArrayList<>();
-
-        transactionFeeMap.keySet().stream().sorted()
-                .forEach(
-                        f -> transactionFeeMap.get(f).forEach(tx -> sortedTransactions.add(tx))
-                );
-        return sortedTransactions.toArray(new Transaction[sortedTransactions.size()]);
-    }
-
-    public Transaction[] sortTransactionsByFeesOptimal(ArrayList<Transaction> transactions) throws Exception{
-        // Find transactions in the block that are connected to each other
-        // Add linked transactions into a bucket
-        // Decide if processing all linked transactions yields in greater fees
-        throw new Exception("Not Implemented");
+    /**
+     * Chooses, from {@code transactions} validated against the current pool, the mutually valid
+     * set with the highest total fee; transactions may spend outputs of other transactions in the
+     * list. See {@link MaxFeeSelector} for how conflicts and chained transactions are handled.
+     *
+     * @return the chosen transactions, parents before children. The pool is not modified.
+     */
+    public Transaction[] sortTransactionsByFeesOptimal(ArrayList<Transaction> transactions) {
+        ArrayList<Transaction> selected =
+                new MaxFeeSelector(utxoPool, timeBudgetMillis, exactClusterSize).select(transactions);
+        return selected.toArray(new Transaction[selected.size()]);
     }
 
     public double getTransactionFees(Transaction tx){
-        ArrayList<UTXO> pUTXOs = utxoPool.getAllUTXO();
         double inputSum = tx.getInputs().stream()
-                .filter(input -> pUTXOs.contains(new UTXO(input.prevTxHash, input.outputIndex)))
-                .map(input -> new UTXO(input.prevTxHash, input.outputIndex))
-                .mapToDouble(utxo -> utxoPool.getTxOutput(utxo).value).sum();
+                .map(input -> utxoPool.getTxOutput(new UTXO(input.prevTxHash, input.outputIndex)))
+                .filter(output -> output != null)
+                .mapToDouble(output -> output.value).sum();
         double outputSum = tx.getOutputs().stream().mapToDouble(o -> o.value).sum();
         return inputSum - outputSum;
     }
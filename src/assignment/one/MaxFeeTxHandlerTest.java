@@ -0,0 +1,129 @@
+package assignment.one;
+
+import static assignment.one.Checks.check;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Compares MaxFeeTxHandler with an exhaustive search over 30 epochs of eight shuffled
+ * transactions. The transactions spend four pool outputs, each other, or the same outputs, and
+ * some have a bad signature or an input naming an output its parent does not have. The
+ * selection must apply transaction by transaction in the order returned. Its total fee must
+ * equal the highest fee of any subset that TxHandler accepts whole. Then a shuffled chain of
+ * 3000 transactions, on which each greedy round takes only one transaction, must be selected
+ * whole within 500 ms past the one second budget. The optional argument is the random seed.
+ */
+public class MaxFeeTxHandlerTest {
+
+    public static void main(String[] args) {
+        Random random = new Random(Checks.seed(args));
+        KeyPair owner = Checks.newKeyPair(random);
+        KeyPair other = Checks.newKeyPair(random);
+
+        for (int epoch = 0; epoch < 30; epoch++) {
+            UTXO coin = new UTXO(new byte[] { (byte) epoch }, 0);
+            Transaction root = Checks.newTransaction(owner, new UTXO[] { coin }, 10, 10, 10, 10);
+            UTXOPool pool = new UTXOPool();
+            HashMap<UTXO, Transaction.Output> outputs = new HashMap<>();
+            ArrayList<UTXO> spendable = new ArrayList<>();
+            for (int i = 0; i < root.numOutputs(); i++) {
+                UTXO utxo = new UTXO(root.getHash(), i);
+                pool.addUTXO(utxo, root.getOutput(i));
+                outputs.put(utxo, root.getOutput(i));
+                spendable.add(utxo);
+            }
+
+            ArrayList<Transaction> candidates = new ArrayList<>();
+            while (candidates.size() < 8) {
+                UTXO[] inputs = new UTXO[1 + random.nextInt(2)];
+                double in = 0;
+                for (int i = 0; i < inputs.length; i++) {
+                    inputs[i] = spendable.get(random.nextInt(spendable.size()));
+                    in += outputs.get(inputs[i]).value;
+                }
+                if (!candidates.isEmpty() && random.nextInt(8) == 0) {
+                    // an output index its parent in the epoch does not have
+                    Transaction parent = candidates.get(random.nextInt(candidates.size()));
+                    int index = random.nextBoolean() ? -1 : parent.numOutputs();
+                    inputs[0] = new UTXO(parent.getHash(), index);
+                }
+                double out = Math.max(0, in - random.nextInt(4));
+                KeyPair signer = random.nextInt(10) == 0 ? other : owner;
+                Transaction tx = Checks.newTransaction(signer, inputs,
+                        random.nextBoolean() ? new double[] { out } : new double[] { out / 2, out / 2 });
+                candidates.add(tx);
+                for (int i = 0; i < tx.numOutputs(); i++) {
+                    UTXO utxo = new UTXO(tx.getHash(), i);
+                    outputs.put(utxo, tx.getOutput(i));
+                    spendable.add(utxo);
+                }
+            }
+            Collections.shuffle(candidates, random);
+
+            double best = 0;
+            for (int mask = 1; mask < 1 << candidates.size(); mask++) {
+                ArrayList<Transaction> subset = new ArrayList<>();
+                for (int i = 0; i < candidates.size(); i++)
+                    if ((mask >> i & 1) != 0) subset.add(candidates.get(i));
+                Transaction[] accepted = new TxHandler(new UTXOPool(pool))
+                        .handleTxs(subset.toArray(new Transaction[0]));
+                if (accepted.length == subset.size())
+                    best = Math.max(best, totalFee(subset, outputs));
+            }
+
+            Transaction[] selected = new MaxFeeTxHandler(new UTXOPool(pool))
+                    .handleTxs(candidates.toArray(new Transaction[0]));
+            TxHandler inOrder = new TxHandler(new UTXOPool(pool));
+            for (Transaction tx : selected)
+                check(inOrder.handleTxs(new Transaction[] { tx }).length == 1,
+                        "selected set does not apply in order in epoch " + epoch);
+            ArrayList<Transaction> chosen = new ArrayList<>();
+            Collections.addAll(chosen, selected);
+            check(Math.abs(totalFee(chosen, outputs) - best) < 1e-6,
+                    "fee " + totalFee(chosen, outputs) + " instead of " + best + " in epoch " + epoch);
+        }
+        checkLongChain(owner);
+        System.out.println("MaxFeeTxHandlerTest passed");
+    }
+
+    private static void checkLongChain(KeyPair owner) {
+        final int length = 3000;
+        final long budgetMillis = 1000;
+        UTXO coin = new UTXO(new byte[] { (byte) 255 }, 0);
+        UTXOPool pool = new UTXOPool();
+        pool.addUTXO(coin, Checks.newTransaction(owner, new UTXO[0], 2).getOutput(0));
+        ArrayList<Transaction> chain = new ArrayList<>();
+        UTXO spent = coin;
+        // only the first transaction pays a fee, so every package ties and each greedy round
+        // takes just the first transaction left
+        for (int i = 0; i < length; i++) {
+            Transaction tx = Checks.newTransaction(owner, new UTXO[] { spent }, 1);
+            chain.add(tx);
+            spent = new UTXO(tx.getHash(), 0);
+        }
+        Collections.shuffle(chain, new Random(length));
+
+        long start = System.nanoTime();
+        Transaction[] selected = new MaxFeeTxHandler(pool, budgetMillis, 0)
+                .handleTxs(chain.toArray(new Transaction[0]));
+        long millis = (System.nanoTime() - start) / 1000000;
+        check(selected.length == length, selected.length + " of the chain selected");
+        check(millis < budgetMillis + 500, "chain selection took " + millis + " ms");
+    }
+
+    private static double totalFee(List<Transaction> txs, HashMap<UTXO, Transaction.Output> outputs) {
+        double fee = 0;
+        for (Transaction tx : txs) {
+            for (Transaction.Input in : tx.getInputs())
+                fee += outputs.get(new UTXO(in.prevTxHash, in.outputIndex)).value;
+            for (Transaction.Output out : tx.getOutputs())
+                fee -= out.value;
+        }
+        return fee;
+    }
+}
@@ -0,0 +1,32 @@
+package assignment.one;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/** Per-thread SHA-256 digests, so that hashing does not look up a provider on every call */
+class Sha256 {
+
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException x) {
+                // every Java platform is required to support SHA-256
+                throw new IllegalStateException(x);
+            }
+        }
+    };
+
+    private Sha256() {
+    }
+
+    /**
+     * @return this thread's digest, reset and ready for use. It must not be used again on the same
+     *         thread until {@code digest()} has been called on it.
+     */
+    static MessageDigest get() {
+        MessageDigest md = DIGEST.get();
+        md.reset();
+        return md;
+    }
+}
@@ -0,0 +1,167 @@
+package assignment.one;
+
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Verifies SHA256withRSA signatures without paying the JCA setup cost on every call. The provider is
+ * resolved once, each thread keeps its own {@code Signature} object (and skips {@code initVerify}
+ * when it sees the same key twice in a row), and keys are translated into the provider's native
+ * representation once and cached. Failures are reported as a {@link Result} instead of being
+ * printed.
+ */
+public class SignatureVerifier {
+
+    public static final String ALGORITHM = "SHA256withRSA";
+
+    /** number of prepared keys kept by the shared instance */
+    public static final int DEFAULT_KEY_CACHE_SIZE = 1024;
+
+    private static final SignatureVerifier DEFAULT = new SignatureVerifier(DEFAULT_KEY_CACHE_SIZE);
+
+    public enum Result {
+        /** the signature is valid for the message under the key */
+        VALID,
+        /** the signature is well formed but does not match */
+        INVALID,
+        /** the key is null or cannot be used with {@value #ALGORITHM} */
+        INVALID_KEY,
+        /** the signature is null or could not be decoded */
+        MALFORMED_SIGNATURE,
+        /** no provider for {@value #ALGORITHM} is installed */
+        UNAVAILABLE
+    }
+
+    /** a key translated for the provider, and the clock slot that holds it */
+    private static class PreparedKey {
+        private final PublicKey key;
+        private final int slot;
+
+        private PreparedKey(PublicKey key, int slot) {
+            this.key = key;
+            this.slot = slot;
+        }
+    }
+
+    /** per-thread verification state */
+    private static class ThreadState {
+        private final Signature signature;
+        private PublicKey initializedKey;
+
+        private ThreadState(Signature signature) {
+            this.signature = signature;
+        }
+    }
+
+    private final Provider provider;
+    private final KeyFactory keyFactory;
+    // a lookup only sets its slot's referenced bit, so verifying threads only contend when a new
+    // key is added
+    private final ConcurrentHashMap<PublicKey, PreparedKey> preparedKeys;
+    // CLOCK eviction: the key in each slot and its second-chance bit
+    private final PublicKey[] slots;
+    private final AtomicIntegerArray referenced;
+    private int hand;
+    private final ThreadLocal<ThreadState> threadState;
+
+    /**
+     * @param keyCacheSize the maximum number of prepared keys to keep; when the cache is full, the
+     *        first key a clock hand finds unused since its last pass makes room for each new one
+     */
+    public SignatureVerifier(int keyCacheSize) {
+        if (keyCacheSize < 0) throw new IllegalArgumentException("keyCacheSize must not be negative");
+        Provider p = null;
+        KeyFactory kf = null;
+        try {
+            p = Signature.getInstance(ALGORITHM).getProvider();
+            kf = KeyFactory.getInstance("RSA", p);
+        } catch (NoSuchAlgorithmException e) {
+            // left null; every verification then reports UNAVAILABLE
+        }
+        provider = p;
+        keyFactory = kf;
+        preparedKeys = new ConcurrentHashMap<PublicKey, PreparedKey>(keyCacheSize);
+        slots = new PublicKey[keyCacheSize];
+        referenced = new AtomicIntegerArray(keyCacheSize);
+        threadState = new ThreadLocal<ThreadState>() {
+            protected ThreadState initialValue() {
+                if (provider == null) return null;
+                try {
+                    return new ThreadState(Signature.getInstance(ALGORITHM, provider));
+                } catch (NoSuchAlgorithmException e) {
+                    return null;
+                }
+            }
+        };
+    }
+
+    /** @return the instance shared by {@link Crypto#verifySignature} */
+    public static SignatureVerifier getDefault() {
+        return DEFAULT;
+    }
+
+    /** Checks {@code signature} over {@code message} under {@code pubKey} */
+    public Result verify(PublicKey pubKey, byte[] message, byte[] signature) {
+        if (pubKey == null) return Result.INVALID_KEY;
+        if (signature == null) return Result.MALFORMED_SIGNATURE;
+        if (message == null) return Result.INVALID;
+        ThreadState state = threadState.get();
+        if (state == null) return Result.UNAVAILABLE;
+
+        PublicKey key = prepare(pubKey);
+        if (key == null) return Result.INVALID_KEY;
+        try {
+            // verify() leaves the Signature initialized for the same key, so a repeated key
+            // does not need another initVerify
+            if (state.initializedKey != key) {
+                state.initializedKey = null;
+                state.signature.initVerify(key);
+                state.initializedKey = key;
+            }
+            state.signature.update(message);
+            return state.signature.verify(signature) ? Result.VALID : Result.INVALID;
+        } catch (InvalidKeyException e) {
+            return Result.INVALID_KEY;
+        } catch (SignatureException e) {
+            // the Signature may be left mid-update; force a re-init on the next call
+            state.initializedKey = null;
+            return Result.MALFORMED_SIGNATURE;
+        }
+    }
+
+    /** @return {@code pubKey} translated for the provider, or null if it cannot be used */
+    private PublicKey prepare(PublicKey pubKey) {
+        PreparedKey cached = preparedKeys.get(pubKey);
+        if (cached != null) {
+            referenced.lazySet(cached.slot, 1);
+            return cached.key;
+        }
+        PublicKey prepared;
+        try {
+            prepared = (PublicKey) keyFactory.translateKey(pubKey);
+        } catch (InvalidKeyException e) {
+            return null;
+        }
+        if (slots.length > 0) cache(pubKey, prepared);
+        return prepared;
+    }
+
+    private synchronized void cache(PublicKey pubKey, PublicKey prepared) {
+        if (preparedKeys.containsKey(pubKey)) return;
+        // sweep, giving every recently used key a second chance
+        while (slots[hand] != null && referenced.getAndSet(hand, 0) == 1)
+            hand = (hand + 1) % slots.length;
+        if (slots[hand] != null) preparedKeys.remove(slots[hand]);
+        slots[hand] = pubKey;
+        referenced.set(hand, 0);
+        preparedKeys.put(pubKey, new PreparedKey(prepared, hand));
+        hand = (hand + 1) % slots.length;
+    }
+}
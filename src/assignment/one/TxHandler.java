@@ -2,19 +2,35 @@ package assignment.one;
 
 import java.io.Console;
 import java.security.PublicKey;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Stream;
 
 public class TxHandler {
 
     private UTXOPool utxoPool;
+    /** runs the signature verification stage of {@link #handleTxs(Transaction[])} */
+    private Executor verifier;
+
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
      * {@code utxoPool}. This should make a copy of utxoPool by using the UTXOPool(UTXOPool uPool)
      * constructor.
      */
     public TxHandler(UTXOPool utxoPool) {
+        this(utxoPool, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Same as {@link #TxHandler(UTXOPool)}, but epoch signatures are verified on {@code verifier}
+     * instead of the common fork-join pool.
+     */
+    public TxHandler(UTXOPool utxoPool, Executor verifier) {
         this.utxoPool = utxoPool;
+        this.verifier = verifier;
     }
 
     public UTXOPool getUtxoPool() {
@@ -31,16 +47,56 @@ public class TxHandler {
      *     values; and false otherwise.
      */
     public boolean isValidTx(Transaction tx) {
-        if (tx == null) return false;
-        boolean allClaimedOutputsInCurrentPool = areAllClaimedOutputsInCurrentPool(tx);
-        boolean inputSignaturesAreValid = areInputSignaturesValid(tx);
-        boolean noUTXOClaimedMultipleTimes = areNoUTXOClaimedMultipleTimes(tx);
-        boolean allTXOutputsAreNonNegative = areAllTXOutputsNonNegative(tx);
-        boolean sumOfInputsGreaterThanSumOfOutputs = isSumOfInputsGreaterThanSumOfOutputs(tx);
+        return validateTx(tx).isValid();
+    }
 
-        return allClaimedOutputsInCurrentPool && inputSignaturesAreValid &&
-                noUTXOClaimedMultipleTimes && allTXOutputsAreNonNegative &&
-                sumOfInputsGreaterThanSumOfOutputs;
+    /**
+     * Checks the same rules as {@link #isValidTx(Transaction)} in a single pass, stopping at the
+     * first failure. Each input is resolved against the pool exactly once, and the cheap checks
+     * (negative outputs, duplicate inputs, missing UTXOs, value balance) all run before any
+     * signature is verified.
+     *
+     * @return {@link TxValidationResult#VALID} or the reason {@code tx} was rejected
+     */
+    public TxValidationResult validateTx(Transaction tx) {
+        return validateTx(tx, true);
+    }
+
+    private TxValidationResult validateTx(Transaction tx, boolean checkSignatures) {
+        if (tx == null) return TxValidationResult.NULL_TRANSACTION;
+
+        for (Transaction.Output output : tx.getOutputs()) {
+            if (output.value < 0) return TxValidationResult.NEGATIVE_OUTPUT;
+        }
+
+        ArrayList<Transaction.Input> inputs = tx.getInputs();
+        HashSet<UTXO> claimed = new HashSet<>(inputs.size() * 2);
+        Transaction.Output[] resolved = new Transaction.Output[inputs.size()];
+        boolean missing = false;
+        for (int i = 0; i < inputs.size(); i++) {
+            Transaction.Input input = inputs.get(i);
+            if (input == null || input.prevTxHash == null) {
+                missing = true;
+                continue;
+            }
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            if (!claimed.add(utxo)) return TxValidationResult.DUPLICATE_INPUT;
+            resolved[i] = utxoPool.getTxOutput(utxo);
+            if (resolved[i] == null) missing = true;
+        }
+        if (missing) return TxValidationResult.MISSING_UTXO;
+
+        // same summation as isSumOfInputsGreaterThanSumOfOutputs, so rounding cannot disagree
+        double inputSum = Arrays.stream(resolved).mapToDouble(o -> o.value).sum();
+        double outputSum = tx.getOutputs().stream().mapToDouble(o -> o.value).sum();
+        if (inputSum < outputSum) return TxValidationResult.INSUFFICIENT_INPUT_VALUE;
+        if (!checkSignatures) return TxValidationResult.VALID;
+
+        for (int i = 0; i < inputs.size(); i++) {
+            if (!verifySignature(resolved[i].address, getRawDataToSign(tx, i), inputs.get(i)))
+                return TxValidationResult.INVALID_SIGNATURE;
+        }
+        return TxValidationResult.VALID;
     }
 
     public boolean areAllClaimedOutputsInCurrentPool(Transaction tx){
@@ -48,9 +104,8 @@ public class TxHandler {
         ArrayList<Transaction.Input> inputs = tx.getInputs();
         for(int i = 0; i < inputs.size(); i++) {
             Transaction.Input input = inputs.get(i);
-            ArrayList<UTXO> utxos = utxoPool.getAllUTXO();
             UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
-            valid = valid && utxos.contains(utxo);
+            valid = valid && utxoPool.contains(utxo);
         }
         return valid;
     }
@@ -99,11 +154,10 @@ public class TxHandler {
     }
 
     public boolean isSumOfInputsGreaterThanSumOfOutputs(Transaction tx){
-        ArrayList<UTXO> pUTXOs = utxoPool.getAllUTXO();
         double inputSum = tx.getInputs().stream()
-                .filter(input -> pUTXOs.contains(new UTXO(input.prevTxHash, input.outputIndex)))
-                .map(input -> new UTXO(input.prevTxHash, input.outputIndex))
-                .mapToDouble(utxo -> utxoPool.getTxOutput(utxo).value).sum();
+                .map(input -> utxoPool.getTxOutput(new UTXO(input.prevTxHash, input.outputIndex)))
+                .filter(output -> output != null)
+                .mapToDouble(output -> output.value).sum();
         double outputSum = tx.getOutputs().stream().mapToDouble(o -> o.value).sum();
         return inputSum >= outputSum;
     }
@@ -112,13 +166,29 @@ public class TxHandler {
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
      * updating the current UTXO pool as appropriate.
+     *
+     * <p>Transactions are processed in dependency order (see {@link #dependencyOrder}), so a
+     * transaction is accepted even if it was submitted before the transaction it spends from. When
+     * two transactions claim the same output, the one that comes first in that order wins. The
+     * accepted transactions are returned in the order they were applied.
+     *
+     * <p>Signatures are verified first for all transactions in parallel on the configured executor;
+     * the UTXO pool is then updated in one ordered, single-threaded pass. The accepted transactions
+     * are the same as if every transaction were checked with {@link #isValidTx(Transaction)} in
+     * turn, in dependency order.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
         if (possibleTxs == null) return new Transaction[0];
 
+        Boolean[] signaturesValid = verifyEpochSignatures(possibleTxs);
+
         ArrayList<Transaction> validTransactions = new ArrayList<>();
-        for(Transaction transaction: possibleTxs){
-            if (isValidTx(transaction)){
+        for(int t : dependencyOrder(possibleTxs)){
+            Transaction transaction = possibleTxs[t];
+            boolean valid = signaturesValid[t] == null
+                    ? isValidTx(transaction)
+                    : signaturesValid[t] && validateTx(transaction, false).isValid();
+            if (valid){
                 // remove all inputs from unspent transaction outputs
                 for(Transaction.Input input : transaction.getInputs())
                     this.utxoPool.removeUTXO(new UTXO(input.prevTxHash, input.outputIndex));
@@ -134,4 +204,107 @@ public class TxHandler {
         }
         return validTransactions.toArray(new Transaction[validTransactions.size()]);
     }
-}
\ No newline at end of file
+
+    /**
+     * Orders the epoch so that each transaction comes after every other candidate whose outputs it
+     * spends, using Kahn's algorithm over the {@code prevTxHash} references; the work is linear in
+     * the total number of inputs. Transactions become ready in submission order and are taken
+     * first-in first-out. Transactions on a cycle can never become ready and are appended at the
+     * end in submission order. The order is therefore fully determined by the input array.
+     *
+     * @return indices into {@code txs}
+     */
+    private int[] dependencyOrder(Transaction[] txs) {
+        int n = txs.length;
+        HashMap<ByteBuffer, ArrayList<Integer>> producers = new HashMap<>();
+        for (int t = 0; t < n; t++) {
+            if (txs[t] == null || txs[t].getHash() == null) continue;
+            producers.computeIfAbsent(ByteBuffer.wrap(txs[t].getHash()), h -> new ArrayList<>())
+                    .add(t);
+        }
+
+        int[] pendingParents = new int[n];
+        ArrayList<ArrayList<Integer>> children = new ArrayList<>(n);
+        for (int t = 0; t < n; t++)
+            children.add(null);
+        for (int t = 0; t < n; t++) {
+            if (txs[t] == null) continue;
+            for (Transaction.Input input : txs[t].getInputs()) {
+                if (input == null || input.prevTxHash == null) continue;
+                ArrayList<Integer> parents = producers.get(ByteBuffer.wrap(input.prevTxHash));
+                if (parents == null) continue;
+                for (int parent : parents) {
+                    if (children.get(parent) == null) children.set(parent, new ArrayList<>());
+                    children.get(parent).add(t);
+                    pendingParents[t]++;
+                }
+            }
+        }
+
+        int[] order = new int[n];
+        int head = 0, tail = 0;
+        for (int t = 0; t < n; t++)
+            if (pendingParents[t] == 0) order[tail++] = t;
+        while (head < tail) {
+            ArrayList<Integer> next = children.get(order[head++]);
+            if (next == null) continue;
+            for (int child : next)
+                if (--pendingParents[child] == 0) order[tail++] = child;
+        }
+        for (int t = 0; t < n && tail < n; t++)
+            if (pendingParents[t] > 0) order[tail++] = t;
+        return order;
+    }
+
+    /**
+     * Verifies the input signatures of every transaction in the epoch concurrently. An input can
+     * only ever be signed against one address: the output it names, either in the current pool or
+     * created by another transaction of the same epoch. That address does not depend on the order
+     * in which transactions are later applied, so the result can be computed up front.
+     *
+     * @return per transaction, whether all its signatures are valid, or null where the claimed
+     *         output is ambiguous and the sequential pass has to decide
+     */
+    private Boolean[] verifyEpochSignatures(Transaction[] txs) {
+        HashMap<UTXO, Transaction.Output> epochOutputs = new HashMap<>();
+        HashSet<UTXO> ambiguous = new HashSet<>();
+        for (Transaction tx : txs) {
+            if (tx == null || tx.getHash() == null) continue;
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                UTXO utxo = new UTXO(tx.getHash(), i);
+                Transaction.Output previous = epochOutputs.put(utxo, tx.getOutput(i));
+                if ((previous != null && previous != tx.getOutput(i)) || utxoPool.contains(utxo))
+                    ambiguous.add(utxo);
+            }
+        }
+
+        Boolean[] result = new Boolean[txs.length];
+        CompletableFuture<?>[] tasks = new CompletableFuture<?>[txs.length];
+        for (int t = 0; t < txs.length; t++) {
+            final int index = t;
+            tasks[t] = CompletableFuture.runAsync(
+                    () -> result[index] = verifyTxSignatures(txs[index], epochOutputs, ambiguous),
+                    verifier);
+        }
+        CompletableFuture.allOf(tasks).join();
+        return result;
+    }
+
+    private Boolean verifyTxSignatures(Transaction tx, Map<UTXO, Transaction.Output> epochOutputs,
+                                       Set<UTXO> ambiguous) {
+        if (tx == null) return false;
+        ArrayList<Transaction.Input> inputs = tx.getInputs();
+        for (int i = 0; i < inputs.size(); i++) {
+            Transaction.Input input = inputs.get(i);
+            if (input == null || input.prevTxHash == null) return false;
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            if (ambiguous.contains(utxo)) return null;
+            Transaction.Output output = utxoPool.getTxOutput(utxo);
+            if (output == null) output = epochOutputs.get(utxo);
+            // an output that exists nowhere can never be claimed, whatever the order
+            if (output == null) return false;
+            if (!verifySignature(output.address, getRawDataToSign(tx, i), input)) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,243 @@
+package assignment.one;
+
+import static assignment.one.Checks.check;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Each of 30 epochs is 40 shuffled transactions that spend a fresh pool and each other, some of
+ * them twice, with a bad signature, a missing or repeated input, a negative output, too little
+ * input, or an output the pool already holds. handleTxs must return exactly the transactions,
+ * in the same order, that isValidTx accepts when they are checked one at a time in dependency
+ * order, whether the signatures are verified on the common pool, on four threads or on the
+ * calling thread. The chain and output change checks are described at their methods. The
+ * optional argument is the random seed.
+ */
+public class TxHandlerTest {
+
+    public static void main(String[] args) {
+        Random random = new Random(Checks.seed(args));
+        KeyPair owner = Checks.newKeyPair(random);
+        KeyPair other = Checks.newKeyPair(random);
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        Executor[] verifiers = { ForkJoinPool.commonPool(), threads, Runnable::run };
+        int accepted = 0, total = 0;
+        try {
+            for (int epoch = 0; epoch < 30; epoch++) {
+                UTXOPool pool = new UTXOPool();
+                Transaction[] txs = randomEpoch(random, owner, other, pool, epoch);
+                List<Transaction> expected = sequential(pool, txs);
+                for (Executor verifier : verifiers) {
+                    Transaction[] result = new TxHandler(new UTXOPool(pool), verifier).handleTxs(txs);
+                    check(sameTransactions(result, expected), "accepted in epoch " + epoch);
+                }
+                accepted += expected.size();
+                total += txs.length;
+            }
+        } finally {
+            threads.shutdown();
+        }
+        for (int round = 0; round < 5; round++)
+            checkChains(random, owner, round);
+        checkOutputChanges(owner, other);
+        System.out.println("TxHandlerTest passed, " + accepted + " of " + total + " accepted");
+    }
+
+    /** @return 40 shuffled transactions over the outputs of a transaction added to {@code pool} */
+    private static Transaction[] randomEpoch(Random random, KeyPair owner, KeyPair other,
+            UTXOPool pool, int epoch) {
+        UTXO coin = new UTXO(new byte[] { (byte) epoch, 1 }, 0);
+        Transaction root = Checks.newTransaction(owner, new UTXO[] { coin }, 10, 10, 10, 10, 10, 10);
+        HashMap<UTXO, Double> values = new HashMap<>();
+        ArrayList<UTXO> spendable = new ArrayList<>();
+        for (int i = 0; i < root.numOutputs(); i++) {
+            UTXO utxo = new UTXO(root.getHash(), i);
+            pool.addUTXO(utxo, root.getOutput(i));
+            values.put(utxo, root.getOutput(i).value);
+            spendable.add(utxo);
+        }
+
+        ArrayList<Transaction> txs = new ArrayList<>();
+        while (txs.size() < 40) {
+            int kind = random.nextInt(20);
+            if (kind == 0 && !txs.isEmpty()) {
+                // the same transaction submitted twice
+                txs.add(txs.get(random.nextInt(txs.size())));
+                continue;
+            }
+            UTXO[] inputs = new UTXO[1 + random.nextInt(2)];
+            double in = 0;
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = spendable.get(random.nextInt(spendable.size()));
+                in += values.get(inputs[i]);
+            }
+            if (kind == 1) {
+                byte[] missing = new byte[32];
+                random.nextBytes(missing);
+                inputs[0] = new UTXO(missing, 0);
+            }
+            double out = kind == 2 ? in + 1 : Math.max(0, in - random.nextInt(3));
+            double[] outputs = kind == 3 ? new double[] { out + 1, -1 }
+                    : random.nextBoolean() ? new double[] { out } : new double[] { out / 2, out / 2 };
+            Transaction tx = Checks.newTransaction(kind == 4 ? other : owner, inputs, outputs);
+            txs.add(tx);
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                UTXO utxo = new UTXO(tx.getHash(), i);
+                values.put(utxo, tx.getOutput(i).value);
+                spendable.add(utxo);
+            }
+            // an output the pool holds already, to another address, which the epoch would
+            // create again: its spenders' signatures depend on whether tx is applied first
+            if (kind == 5)
+                pool.addUTXO(new UTXO(tx.getHash(), 0),
+                        tx.new Output(tx.getOutput(0).value, other.getPublic()));
+        }
+        Collections.shuffle(txs, random);
+        return txs.toArray(new Transaction[0]);
+    }
+
+    /** changes the outputs of finalized transactions and checks that nothing stale is served */
+    private static void checkOutputChanges(KeyPair owner, KeyPair other) {
+        UTXO coin = new UTXO(new byte[] { 4 }, 0);
+        UTXOPool pool = new UTXOPool();
+        Transaction funding = Checks.newTransaction(owner, new UTXO[0], 10);
+        pool.addUTXO(coin, funding.getOutput(0));
+        TxHandler handler = new TxHandler(pool);
+
+        Transaction raised = Checks.newTransaction(owner, new UTXO[] { coin }, 5);
+        check(handler.isValidTx(raised), "unchanged transaction rejected");
+        byte[] raw = raised.getRawTx();
+        raised.getOutput(0).value = 9;
+        check(!Arrays.equals(raw, raised.getRawTx()), "stale raw transaction after a value change");
+        check(!handler.isValidTx(raised), "signature accepted over a changed value");
+
+        Transaction redirected = Checks.newTransaction(owner, new UTXO[] { coin }, 5);
+        raw = redirected.getRawTx();
+        redirected.getOutputs().set(0, redirected.new Output(5, other.getPublic()));
+        check(!Arrays.equals(raw, redirected.getRawTx()), "stale raw transaction after a new output");
+        check(!handler.isValidTx(redirected), "signature accepted over a replaced output");
+    }
+
+    /**
+     * Submits five chains of ten transactions, each spending the one before, in random order
+     * together with a transaction that spends the first chain's output too and two transactions
+     * that spend each other. One call must accept every chain whole, except that the conflicting
+     * transaction, if submitted before the first chain's head, replaces that whole chain; the two
+     * on a cycle must be rejected. The accepted transactions must apply in the order returned,
+     * and a second call on the same input must accept the same ones.
+     */
+    private static void checkChains(Random random, KeyPair owner, int round) {
+        UTXO coin = new UTXO(new byte[] { (byte) round, 2 }, 0);
+        Transaction root = Checks.newTransaction(owner, new UTXO[] { coin }, 10, 10, 10, 10, 10);
+        UTXOPool pool = new UTXOPool();
+        for (int i = 0; i < root.numOutputs(); i++)
+            pool.addUTXO(new UTXO(root.getHash(), i), root.getOutput(i));
+        ArrayList<Transaction> chained = new ArrayList<>();
+        for (int chain = 0; chain < root.numOutputs(); chain++) {
+            UTXO spent = new UTXO(root.getHash(), chain);
+            for (int i = 0; i < 10; i++) {
+                Transaction tx = Checks.newTransaction(owner, new UTXO[] { spent }, 10);
+                chained.add(tx);
+                spent = new UTXO(tx.getHash(), 0);
+            }
+        }
+        Transaction conflict = Checks.newTransaction(owner,
+                new UTXO[] { new UTXO(root.getHash(), 0) }, 9);
+        Transaction[] cycle = { new Transaction(), new Transaction() };
+        for (int i = 0; i < cycle.length; i++) {
+            cycle[i].addOutput(1, owner.getPublic());
+            cycle[i].setHash(new byte[] { (byte) round, 3, (byte) i });
+        }
+        for (int i = 0; i < cycle.length; i++) {
+            cycle[i].addInput(cycle[1 - i].getHash(), 0);
+            Checks.sign(cycle[i], owner.getPrivate(), 0);
+        }
+
+        ArrayList<Transaction> epoch = new ArrayList<>(chained);
+        epoch.add(conflict);
+        Collections.addAll(epoch, cycle);
+        Collections.shuffle(epoch, random);
+        Transaction[] txs = epoch.toArray(new Transaction[0]);
+        List<Transaction> accepted = Arrays.asList(new TxHandler(new UTXOPool(pool)).handleTxs(txs));
+        check(sameTransactions(new TxHandler(new UTXOPool(pool)).handleTxs(txs), accepted),
+                "a second run accepted others in round " + round);
+        check(sequential(pool, accepted.toArray(new Transaction[0])).equals(accepted),
+                "accepted transactions do not apply in order in round " + round);
+        // the first chain's head and the conflict are both ready at once, in submission order; if
+        // the conflict wins, it takes the whole first chain's place
+        boolean conflictFirst = epoch.indexOf(conflict) < epoch.indexOf(chained.get(0));
+        check(accepted.contains(conflict) == conflictFirst, "conflict winner in round " + round);
+        check(accepted.size() == (conflictFirst ? chained.size() - 9 : chained.size()),
+                "accepted " + accepted.size() + " in round " + round);
+        for (Transaction tx : chained)
+            check(accepted.contains(tx) || chained.indexOf(tx) < 10 && conflictFirst,
+                    "chained transaction rejected in round " + round);
+        check(!accepted.contains(cycle[0]) && !accepted.contains(cycle[1]), "cycle accepted in round " + round);
+    }
+
+    /** @return the transactions accepted by isValidTx, one at a time in dependency order */
+    private static List<Transaction> sequential(UTXOPool pool, Transaction[] txs) {
+        TxHandler handler = new TxHandler(new UTXOPool(pool));
+        ArrayList<Transaction> accepted = new ArrayList<>();
+        for (int t : dependencyOrder(txs)) {
+            Transaction tx = txs[t];
+            if (!handler.isValidTx(tx))
+                continue;
+            for (Transaction.Input in : tx.getInputs())
+                handler.getUtxoPool().removeUTXO(new UTXO(in.prevTxHash, in.outputIndex));
+            for (int i = 0; i < tx.numOutputs(); i++)
+                handler.getUtxoPool().addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+            accepted.add(tx);
+        }
+        return accepted;
+    }
+
+    /**
+     * @return the indices of {@code txs} with each after the transactions of the epoch it spends:
+     *         ready ones first in first out, in submission order, and any left on a cycle last
+     */
+    private static List<Integer> dependencyOrder(Transaction[] txs) {
+        int[] waiting = new int[txs.length];
+        for (int t = 0; t < txs.length; t++)
+            for (int p = 0; p < txs.length; p++)
+                waiting[t] += spends(txs[t], txs[p]);
+        ArrayList<Integer> order = new ArrayList<>();
+        for (int t = 0; t < txs.length; t++)
+            if (waiting[t] == 0) order.add(t);
+        for (int next = 0; next < order.size(); next++) {
+            Transaction parent = txs[order.get(next)];
+            for (int t = 0; t < txs.length; t++) {
+                int edges = spends(txs[t], parent);
+                if (edges > 0 && (waiting[t] -= edges) == 0) order.add(t);
+            }
+        }
+        for (int t = 0; t < txs.length; t++)
+            if (waiting[t] > 0) order.add(t);
+        return order;
+    }
+
+    /** @return the number of inputs of {@code tx} that name an output of {@code parent} */
+    private static int spends(Transaction tx, Transaction parent) {
+        int count = 0;
+        for (Transaction.Input in : tx.getInputs())
+            if (Arrays.equals(in.prevTxHash, parent.getHash())) count++;
+        return count;
+    }
+
+    private static boolean sameTransactions(Transaction[] actual, List<Transaction> expected) {
+        if (actual.length != expected.size()) return false;
+        for (int i = 0; i < actual.length; i++)
+            if (actual[i] != expected.get(i)) return false;
+        return true;
+    }
+}
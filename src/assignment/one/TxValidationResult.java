@@ -0,0 +1,26 @@
+package assignment.one;
+
+/**
+ * Outcome of {@link TxHandler#validateTx(Transaction)}. Every value other than {@link #VALID} names
+ * the first check that rejected the transaction.
+ */
+public enum TxValidationResult {
+    /** all checks passed */
+    VALID,
+    /** the transaction was null */
+    NULL_TRANSACTION,
+    /** one of the output values is negative */
+    NEGATIVE_OUTPUT,
+    /** the same UTXO is claimed by more than one input */
+    DUPLICATE_INPUT,
+    /** an input claims an output that is not in the current UTXO pool */
+    MISSING_UTXO,
+    /** the sum of the output values exceeds the sum of the claimed input values */
+    INSUFFICIENT_INPUT_VALUE,
+    /** an input signature does not verify against the claimed output's address */
+    INVALID_SIGNATURE;
+
+    public boolean isValid() {
+        return this == VALID;
+    }
+}
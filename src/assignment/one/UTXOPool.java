@@ -1,8 +1,10 @@
 package assignment.one;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Set;
+import java.util.stream.Stream;
 
 public class UTXOPool {
 
@@ -44,6 +46,19 @@ public class UTXOPool {
         return H.containsKey(utxo);
     }
 
+    /**
+     * @return a read-only view of all UTXOs in the pool. The view is backed by the pool, so it is
+     *         not copied and reflects later changes; use {@link #getAllUTXO()} for a snapshot.
+     */
+    public Set<UTXO> getUTXOView() {
+        return Collections.unmodifiableSet(H.keySet());
+    }
+
+    /** @return a {@code Stream} over the UTXOs in the pool that does not copy them */
+    public Stream<UTXO> stream() {
+        return H.keySet().stream();
+    }
+
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
         Set<UTXO> setUTXO = H.keySet();
@@ -0,0 +1,248 @@
+package assignment.three;
+
+import java.io.Closeable;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous front end for a {@link BlockHandler}. Calls return at once with a future; the work
+ * is done on a single handler thread, which is the only thread that touches the wrapped handler.
+ * Block creation is split so that mining does not hold that thread up: the handler thread builds
+ * the block from the template, a separate mining thread searches for the nonce, and the handler
+ * thread adds the block only if its parent is still the max height block. A block that arrives
+ * meanwhile is processed at once and aborts the search.
+ *
+ * <p>Blocks (and block creation) and transactions wait in separate bounded queues. Queued blocks
+ * always go first, so a burst of transactions cannot delay block acceptance by more than one
+ * batch; queued transactions are taken up to {@code maxBatch} at a time and handed to
+ * {@link BlockHandler#processTxs(Transaction[])} together. When a queue is full the returned
+ * future fails at once with a {@link RejectedExecutionException}, and the caller should back off.
+ */
+public class AsyncBlockHandler implements Closeable {
+
+    public static final int DEFAULT_BLOCK_QUEUE_CAPACITY = 64;
+    public static final int DEFAULT_TX_QUEUE_CAPACITY = 10000;
+    public static final int DEFAULT_MAX_BATCH = 500;
+
+    private final BlockHandler handler;
+    private final int maxBatch;
+    private final ArrayBlockingQueue<Runnable> blocks;
+    private final ArrayBlockingQueue<TxTask> txs;
+    // the handler thread waits on this when both queues are empty
+    private final Object signal = new Object();
+    private final Thread worker;
+    // mines the blocks createBlock prepares, one at a time
+    private final ExecutorService mining;
+    private volatile boolean running = true;
+
+    public AsyncBlockHandler(BlockHandler handler) {
+        this(handler, DEFAULT_BLOCK_QUEUE_CAPACITY, DEFAULT_TX_QUEUE_CAPACITY, DEFAULT_MAX_BATCH);
+    }
+
+    public AsyncBlockHandler(BlockHandler handler, int blockQueueCapacity, int txQueueCapacity,
+            int maxBatch) {
+        if (maxBatch <= 0) throw new IllegalArgumentException("maxBatch must be positive");
+        this.handler = handler;
+        this.maxBatch = maxBatch;
+        this.blocks = new ArrayBlockingQueue<>(blockQueueCapacity);
+        this.txs = new ArrayBlockingQueue<>(txQueueCapacity);
+        this.worker = new Thread(this::run, "block-handler");
+        worker.setDaemon(true);
+        this.mining = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "block-miner");
+            t.setDaemon(true);
+            return t;
+        });
+        worker.start();
+    }
+
+    /** @return a future for {@link BlockHandler#processBlock(Block)} */
+    public CompletableFuture<Boolean> processBlock(Block block) {
+        return submitBlockTask(() -> handler.processBlock(block));
+    }
+
+    /** @return a future for {@link BlockHandler#createBlock(PublicKey)} */
+    public CompletableFuture<Block> createBlock(PublicKey myAddress) {
+        CompletableFuture<Block> result = new CompletableFuture<>();
+        CompletableFuture<Void> prepared = submitBlockTask(() -> {
+            BlockHandler.Candidate candidate = handler.prepareBlock(myAddress);
+            if (candidate.miner == null) {
+                // nothing to search for; adding it now keeps it in order with the queued blocks
+                BlockHandler.mine(candidate);
+                result.complete(handler.addCreatedBlock(candidate.block) ? candidate.block : null);
+            } else {
+                try {
+                    mining.execute(new MineTask(candidate, result));
+                } catch (RejectedExecutionException e) {
+                    rejected(result, "closed");
+                }
+            }
+            return null;
+        });
+        prepared.whenComplete((v, failure) -> {
+            if (failure != null) result.completeExceptionally(failure);
+        });
+        return result;
+    }
+
+    /** @return a future that is true if {@code tx} entered the transaction pool */
+    public CompletableFuture<Boolean> processTx(Transaction tx) {
+        TxTask task = new TxTask(tx);
+        if (!running) return rejected(task.result, "closed");
+        if (!txs.offer(task)) return rejected(task.result, "transaction queue is full");
+        // close() may have drained the queue between the check and the offer
+        if (!running && txs.remove(task)) return rejected(task.result, "closed");
+        wakeUp();
+        return task.result;
+    }
+
+    /** @return the number of transactions waiting to be processed */
+    public int getQueuedTransactions() {
+        return txs.size();
+    }
+
+    /**
+     * Stops the handler thread after the task in progress and aborts the block being mined, if
+     * any; futures of tasks still queued fail with a {@link RejectedExecutionException}.
+     */
+    public void close() {
+        running = false;
+        wakeUp();
+        try {
+            worker.join();
+            // every block the handler thread prepared is older than this abort
+            handler.abortMining();
+            for (Runnable task : mining.shutdownNow())
+                rejected(((MineTask) task).result, "closed");
+            mining.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Runnable block;
+        while ((block = blocks.poll()) != null)
+            block.run();
+        TxTask tx;
+        while ((tx = txs.poll()) != null)
+            rejected(tx.result, "closed");
+    }
+
+    private <T> CompletableFuture<T> submitBlockTask(Supplier<T> work) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        // after close, running the task only rejects it
+        Runnable task = () -> {
+            if (!running) {
+                rejected(result, "closed");
+                return;
+            }
+            try {
+                result.complete(work.get());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        };
+        if (!running) return rejected(result, "closed");
+        if (!blocks.offer(task)) return rejected(result, "block queue is full");
+        if (!running && blocks.remove(task)) return rejected(result, "closed");
+        wakeUp();
+        return result;
+    }
+
+    private static <T> CompletableFuture<T> rejected(CompletableFuture<T> result, String reason) {
+        result.completeExceptionally(new RejectedExecutionException(reason));
+        return result;
+    }
+
+    private void wakeUp() {
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+    }
+
+    private void run() {
+        ArrayList<TxTask> batch = new ArrayList<>(maxBatch);
+        while (running) {
+            Runnable block = blocks.poll();
+            if (block != null) {
+                block.run();
+                continue;
+            }
+            txs.drainTo(batch, maxBatch);
+            if (!batch.isEmpty()) {
+                processBatch(batch);
+                batch.clear();
+                continue;
+            }
+            synchronized (signal) {
+                while (running && blocks.isEmpty() && txs.isEmpty()) {
+                    try {
+                        signal.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private void processBatch(ArrayList<TxTask> batch) {
+        Transaction[] batchTxs = new Transaction[batch.size()];
+        for (int i = 0; i < batchTxs.length; i++)
+            batchTxs[i] = batch.get(i).tx;
+        try {
+            boolean[] added = handler.processTxs(batchTxs);
+            for (int i = 0; i < added.length; i++)
+                batch.get(i).result.complete(added[i]);
+        } catch (Throwable t) {
+            for (TxTask task : batch)
+                task.result.completeExceptionally(t);
+        }
+    }
+
+    /** mines a prepared block, then has the handler thread add it */
+    private final class MineTask implements Runnable {
+        private final BlockHandler.Candidate candidate;
+        private final CompletableFuture<Block> result;
+
+        private MineTask(BlockHandler.Candidate candidate, CompletableFuture<Block> result) {
+            this.candidate = candidate;
+            this.result = result;
+        }
+
+        public void run() {
+            if (!running) {
+                rejected(result, "closed");
+                return;
+            }
+            try {
+                if (!BlockHandler.mine(candidate)) {
+                    result.complete(null);
+                    return;
+                }
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+                return;
+            }
+            submitBlockTask(() -> handler.addCreatedBlock(candidate.block) ? candidate.block : null)
+                    .whenComplete((block, failure) -> {
+                        if (failure != null) result.completeExceptionally(failure);
+                        else result.complete(block);
+                    });
+        }
+    }
+
+    private static final class TxTask {
+        private final Transaction tx;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        private TxTask(Transaction tx) {
+            this.tx = tx;
+        }
+    }
+}
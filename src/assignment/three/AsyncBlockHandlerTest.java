@@ -0,0 +1,237 @@
+package assignment.three;
+
+import static assignment.three.Checks.check;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * Drives AsyncBlockHandler through a BlockHandler that records its calls and can hold the
+ * handler thread inside one. There are three checks:
+ * - checkQueues holds the thread and fills queues of five transactions and two blocks. One
+ *   more submission of either kind must be rejected at once. Once released, every queued task
+ *   must succeed, and the calls must come in the order "txs 1", "block", "block", "txs 3",
+ *   "txs 2": blocks before the transactions queued earlier, transactions in batches of at most
+ *   three.
+ * - checkStaleBlocks has a block mined on a tip that a rival replaced while the mined block
+ *   waited; the mined block must be dropped and the rival must stay the tip. A search then
+ *   running when a new block arrives must be aborted and yield no block.
+ * - checkClose closes the handler while a block is in progress. That block must still be added.
+ *   The tasks still queued, and any submitted after close, must be rejected.
+ * The optional argument seeds the keys.
+ */
+public class AsyncBlockHandlerTest {
+
+    private static final long TIMEOUT_SECONDS = 30;
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(Checks.seed(args));
+        PublicKey[] addresses = Checks.newAddresses(random, 2);
+        checkQueues(addresses);
+        checkStaleBlocks(addresses);
+        checkClose(addresses);
+        System.out.println("AsyncBlockHandlerTest passed");
+    }
+
+    private static void checkQueues(PublicKey[] addresses) throws Exception {
+        Block genesis = new Block(null, addresses[0]);
+        genesis.finalize();
+        BlockChain chain = new BlockChain(genesis);
+        RecordingHandler handler = new RecordingHandler(chain, null);
+        AsyncBlockHandler async = new AsyncBlockHandler(handler, 2, 5, 3);
+
+        handler.hold();
+        ArrayList<CompletableFuture<Boolean>> txs = new ArrayList<>();
+        txs.add(async.processTx(new Transaction(0, addresses[0])));
+        handler.awaitEntered();
+        for (int i = 1; i <= 5; i++)
+            txs.add(async.processTx(new Transaction(i, addresses[0])));
+        check(rejected(async.processTx(new Transaction(6, addresses[0]))), "full transaction queue took more");
+        Block first = Checks.newBlock(genesis, addresses[1]);
+        Block second = Checks.newBlock(first, addresses[1]);
+        CompletableFuture<Boolean> firstAdded = async.processBlock(first);
+        CompletableFuture<Boolean> secondAdded = async.processBlock(second);
+        check(rejected(async.processBlock(Checks.newBlock(second, addresses[1]))), "full block queue took more");
+        check(rejected(async.createBlock(addresses[0])), "full block queue took a block to create");
+
+        handler.open();
+        for (CompletableFuture<Boolean> tx : txs)
+            check(get(tx), "transaction not added");
+        check(get(firstAdded) && get(secondAdded), "queued block not added");
+        check(chain.getMaxHeightBlock() == second, "tip after the queued blocks");
+        check(handler.calls.equals(Arrays.asList("txs 1", "block", "block", "txs 3", "txs 2")),
+                "calls in the order " + handler.calls);
+        async.close();
+    }
+
+    private static void checkStaleBlocks(PublicKey[] addresses) throws Exception {
+        Block genesis = new Block(null, addresses[0]);
+        genesis.finalize();
+        BlockChain chain = new BlockChain(genesis);
+        chain.setDifficulty(1);
+        try (SignalingMiner miner = new SignalingMiner(); Miner other = new Miner(1)) {
+            RecordingHandler handler = new RecordingHandler(chain, miner);
+            AsyncBlockHandler async = new AsyncBlockHandler(handler);
+
+            // the block is mined while the handler thread is held in processBlock for another one
+            // on the same parent, so it reaches the chain only after that one
+            handler.hold();
+            CompletableFuture<Block> created = async.createBlock(addresses[0]);
+            handler.awaitEntered();
+            Block rival = new Block(genesis.getHash(), addresses[1]);
+            rival.setDifficulty(1);
+            check(other.mine(rival), "rival not mined");
+            CompletableFuture<Boolean> rivalAdded = async.processBlock(rival);
+            handler.allow(1);
+            handler.awaitEntered();
+            check(miner.mined.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "block not mined");
+            handler.open();
+            check(get(rivalAdded), "rival rejected");
+            check(get(created) == null, "block mined on a replaced tip added");
+            check(chain.getMaxHeightBlock() == rival, "tip after the stale block");
+            check(handler.calls.equals(Arrays.asList("prepare", "block", "created false")),
+                    "calls in the order " + handler.calls);
+
+            // a search in progress is aborted by a new block instead
+            chain.setDifficulty(64);
+            created = async.createBlock(addresses[0]);
+            Block next = new Block(rival.getHash(), addresses[1]);
+            next.setDifficulty(8);
+            check(other.mine(next), "next block not mined");
+            chain.setDifficulty(8);
+            check(get(async.processBlock(next)), "next block rejected");
+            check(get(created) == null, "aborted block added");
+            check(chain.getMaxHeightBlock() == next, "tip after the aborted search");
+            async.close();
+        }
+    }
+
+    private static void checkClose(PublicKey[] addresses) throws Exception {
+        Block genesis = new Block(null, addresses[0]);
+        genesis.finalize();
+        BlockChain chain = new BlockChain(genesis);
+        RecordingHandler handler = new RecordingHandler(chain, null);
+        AsyncBlockHandler async = new AsyncBlockHandler(handler);
+
+        handler.hold();
+        Block first = Checks.newBlock(genesis, addresses[1]);
+        CompletableFuture<Boolean> inProgress = async.processBlock(first);
+        handler.awaitEntered();
+        CompletableFuture<Boolean> queuedBlock = async.processBlock(Checks.newBlock(first, addresses[1]));
+        CompletableFuture<Block> queuedCreate = async.createBlock(addresses[0]);
+        CompletableFuture<Boolean> queuedTx = async.processTx(new Transaction(1, addresses[0]));
+        Thread closer = new Thread(async::close);
+        closer.start();
+        // close waits for the task in progress once it has stopped taking new ones
+        while (closer.getState() != Thread.State.WAITING)
+            Thread.sleep(1);
+        handler.open();
+        closer.join();
+
+        check(get(inProgress), "block in progress at close not added");
+        check(rejected(queuedBlock) && rejected(queuedCreate) && rejected(queuedTx),
+                "task queued at close not rejected");
+        check(rejected(async.processTx(new Transaction(2, addresses[0]))), "task taken after close");
+        check(chain.getMaxHeightBlock() == first, "tip after close");
+    }
+
+    private static <T> T get(CompletableFuture<T> future) throws Exception {
+        return future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /** @return true if {@code future} failed with a RejectedExecutionException */
+    private static boolean rejected(CompletableFuture<?> future)
+            throws InterruptedException, TimeoutException {
+        try {
+            future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            return false;
+        } catch (ExecutionException e) {
+            return e.getCause() instanceof RejectedExecutionException;
+        }
+    }
+
+    /**
+     * Records the calls the handler thread makes; while held, each call waits for a permit
+     * before it runs
+     */
+    private static final class RecordingHandler extends BlockHandler {
+        private final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        private final Semaphore entered = new Semaphore(0);
+        private final Semaphore permits = new Semaphore(0);
+        private volatile boolean held;
+
+        private RecordingHandler(BlockChain chain, Miner miner) {
+            super(chain, miner);
+        }
+
+        void hold() {
+            held = true;
+        }
+
+        void allow(int calls) {
+            permits.release(calls);
+        }
+
+        void open() {
+            held = false;
+            permits.release(Integer.MAX_VALUE / 2);
+        }
+
+        void awaitEntered() throws InterruptedException {
+            check(entered.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS), "handler thread not called");
+        }
+
+        private void enter(String call) {
+            calls.add(call);
+            entered.release();
+            if (held) permits.acquireUninterruptibly();
+        }
+
+        public boolean processBlock(Block block) {
+            enter("block");
+            return super.processBlock(block);
+        }
+
+        public boolean[] processTxs(Transaction[] txs) {
+            enter("txs " + txs.length);
+            return super.processTxs(txs);
+        }
+
+        Candidate prepareBlock(PublicKey myAddress) {
+            enter("prepare");
+            return super.prepareBlock(myAddress);
+        }
+
+        boolean addCreatedBlock(Block block) {
+            boolean added = super.addCreatedBlock(block);
+            calls.add("created " + added);
+            return added;
+        }
+    }
+
+    /** counts down {@code mined} when a search finds a block */
+    private static final class SignalingMiner extends Miner {
+        private final CountDownLatch mined = new CountDownLatch(1);
+
+        private SignalingMiner() {
+            super(1);
+        }
+
+        public boolean mine(Block block, long generation) throws InterruptedException {
+            boolean found = super.mine(block, generation);
+            if (found) mined.countDown();
+            return found;
+        }
+    }
+}
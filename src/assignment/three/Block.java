@@ -1,10 +1,20 @@
 package assignment.three;
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
+/**
+ * A block: the previous block's hash, a coinbase and a list of transactions committed to through
+ * a Merkle tree, and the proof of work. The transaction list only changes through
+ * {@link #addTransaction} and {@link #setTransaction}, which keep the tree up to date, so the
+ * header always commits to the list as it is. The tree holds each transaction's content hash as
+ * it was when added; a transaction changed in place afterwards has to be set again.
+ */
 public class Block {
 
     public static final double COINBASE = 25;
@@ -13,12 +23,37 @@ public class Block {
     private byte[] prevBlockHash;
     private Transaction coinbase;
     private ArrayList<Transaction> txs;
+    // read-only view of txs handed out by getTransactions()
+    private List<Transaction> txsView;
+    // over the content hashes of the coinbase (leaf 0) and then txs, kept up to date as they change
+    private MerkleTree merkleTree;
+    // proof of work: the hash must start with difficulty zero bits
+    private int difficulty;
+    private long nonce;
 
     /** {@code address} is the address to which the coinbase transaction would go */
     public Block(byte[] prevHash, PublicKey address) {
         prevBlockHash = prevHash;
         coinbase = new Transaction(COINBASE, address);
         txs = new ArrayList<Transaction>();
+        txsView = Collections.unmodifiableList(txs);
+        merkleTree = new MerkleTree();
+        merkleTree.add(coinbase.computeHash());
+    }
+
+    /**
+     * Creates a block over {@code txs} from {@code merkleTree}, which must already hold the
+     * content hashes of the coinbase and of {@code txs}, and is taken over by the block rather
+     * than copied
+     */
+    Block(byte[] prevHash, Transaction coinbase, Collection<Transaction> txs, MerkleTree merkleTree) {
+        if (merkleTree.size() != txs.size() + 1)
+            throw new IllegalArgumentException("the Merkle tree does not match the transactions");
+        prevBlockHash = prevHash;
+        this.coinbase = coinbase;
+        this.txs = new ArrayList<Transaction>(txs);
+        txsView = Collections.unmodifiableList(this.txs);
+        this.merkleTree = merkleTree;
     }
 
     public Transaction getCoinbase() {
@@ -33,8 +68,9 @@ public class Block {
         return prevBlockHash;
     }
 
-    public ArrayList<Transaction> getTransactions() {
-        return txs;
+    /** @return a read-only view of the transactions, without the coinbase */
+    public List<Transaction> getTransactions() {
+        return txsView;
     }
 
     public Transaction getTransaction(int index) {
@@ -43,32 +79,114 @@ public class Block {
 
     public void addTransaction(Transaction tx) {
         txs.add(tx);
+        merkleTree.add(tx.computeHash());
+    }
+
+    /** Replaces the transaction at {@code index}, rehashing only its path in the Merkle tree */
+    public void setTransaction(int index, Transaction tx) {
+        txs.set(index, tx);
+        merkleTree.set(index + 1, tx.computeHash());
+    }
+
+    /** @return the root of the Merkle tree over the coinbase and the transactions */
+    public byte[] getMerkleRoot() {
+        return merkleTree.getRoot();
+    }
+
+    /**
+     * @return the proof that the transaction at {@code index} is in this block, to be checked with
+     *         {@code MerkleTree.verify(tx.computeHash(), index + 1, getTransactions().size() + 1,
+     *         proof, getMerkleRoot())}
+     */
+    public List<byte[]> getMerkleProof(int index) {
+        return merkleTree.getProof(index + 1);
+    }
+
+    public int getDifficulty() {
+        return difficulty;
+    }
+
+    /** Sets the number of leading zero bits the hash must have */
+    public void setDifficulty(int difficulty) {
+        if (difficulty < 0 || difficulty > 256)
+            throw new IllegalArgumentException("difficulty must be between 0 and 256 bits");
+        this.difficulty = difficulty;
+    }
+
+    public long getNonce() {
+        return nonce;
+    }
+
+    public void setNonce(long nonce) {
+        this.nonce = nonce;
+    }
+
+    /**
+     * @return the header: the previous block hash, if any, the Merkle root, the difficulty and
+     *         the nonce
+     */
+    public byte[] getRawHeader() {
+        byte[] prefix = getRawHeaderPrefix();
+        return ByteBuffer.allocate(prefix.length + Long.BYTES).put(prefix).putLong(nonce).array();
+    }
+
+    /** @return the header without the nonce, which is all a miner has to hash once */
+    byte[] getRawHeaderPrefix() {
+        byte[] root = getMerkleRoot();
+        int prevLength = prevBlockHash == null ? 0 : prevBlockHash.length;
+        ByteBuffer header = ByteBuffer.allocate(prevLength + root.length + Integer.BYTES);
+        if (prevBlockHash != null)
+            header.put(prevBlockHash);
+        header.put(root);
+        header.putInt(difficulty);
+        return header.array();
     }
 
     public byte[] getRawBlock() {
-        ArrayList<Byte> rawBlock = new ArrayList<Byte>();
+        int size = prevBlockHash == null ? 0 : prevBlockHash.length;
+        for (int i = 0; i < txs.size(); i++)
+            size += TransactionSerializer.rawTxSize(txs.get(i));
+        ByteBuffer rawBlock = ByteBuffer.allocate(size);
         if (prevBlockHash != null)
-            for (int i = 0; i < prevBlockHash.length; i++)
-                rawBlock.add(prevBlockHash[i]);
-        for (int i = 0; i < txs.size(); i++) {
-            byte[] rawTx = txs.get(i).getRawTx();
-            for (int j = 0; j < rawTx.length; j++) {
-                rawBlock.add(rawTx[j]);
-            }
-        }
-        byte[] raw = new byte[rawBlock.size()];
-        for (int i = 0; i < raw.length; i++)
-            raw[i] = rawBlock.get(i);
-        return raw;
+            rawBlock.put(prevBlockHash);
+        for (int i = 0; i < txs.size(); i++)
+            TransactionSerializer.writeRawTx(txs.get(i), rawBlock);
+        return rawBlock.array();
     }
 
+    /**
+     * hashes the header, which commits to every transaction through the Merkle root; the
+     * transactions themselves are only hashed as they are added
+     */
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawBlock());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
-        }
+        hash = computeHash();
+    }
+
+    /** @return the hash of the header as it is now, without storing it */
+    public byte[] computeHash() {
+        byte[] header = getRawHeader();
+        MessageDigest md = Sha256.get();
+        md.update(header);
+        return md.digest();
+    }
+
+    /** @return true if {@code hash} starts with at least {@code difficulty} zero bits */
+    public static boolean meetsDifficulty(byte[] hash, int difficulty) {
+        int i = 0;
+        for (; difficulty >= 8; difficulty -= 8)
+            if (hash[i++] != 0) return false;
+        return difficulty == 0 || (hash[i] & 0xff) >>> (8 - difficulty) == 0;
+    }
+
+    /**
+     * @return true if the Merkle tree still holds the content hashes of the coinbase and the
+     *         transactions as they are now, that is, none of them was changed in place after it
+     *         was added. Hashes every transaction.
+     */
+    boolean commitsToTransactions() {
+        if (!merkleTree.hasLeaf(0, coinbase.computeHash())) return false;
+        for (int i = 0; i < txs.size(); i++)
+            if (!merkleTree.hasLeaf(i + 1, txs.get(i).computeHash())) return false;
+        return true;
     }
 }
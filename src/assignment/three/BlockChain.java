@@ -1,32 +1,171 @@
-//package assignment.three;
+package assignment.three;
 
 // Block Chain should maintain only limited block nodes to satisfy the functions
 // You should not have all the blocks added to the block chain in memory
 // as it would cause a memory overflow.
+// Blocks more than CUT_OFF_AGE below the max height are pruned: no new block may be built on
+// them. The blocks at the lowest height kept each keep the UTXO set after them, so a side branch
+// that forked below that height can still be extended.
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+/**
+ * The block chain is safe for use by multiple threads. Blocks are added one at a time under a
+ * chain lock; transactions are added under a separate pool lock, so they do not wait for blocks
+ * to be validated. The max height block and its UTXO set are published together as an immutable
+ * snapshot that readers get without locking. So is the transaction pool: every change to it
+ * publishes a copy, which takes O(1) time as the pool is persistent.
+ */
 public class BlockChain {
     public static final int CUT_OFF_AGE = 10;
-    // Acts like an in-memory database
-    private HashMap<byte[], BlockNode> blockChain;
+
+    // how many pruned block hashes are remembered to reject blocks built on them
+    private static final int PRUNED_HASHES_KEPT = 1024;
+
+    // guards the block index, the nodes, the orphans and tipUtxoPool; taken before poolLock
+    private final Object chainLock = new Object();
+    // guards transactionPool and the publishing of poolSnapshot
+    private final Object poolLock = new Object();
+
+    // Acts like an in-memory database of the blocks within CUT_OFF_AGE of the max height
+    private BlockIndex<BlockNode> blockChain;
     // Reference to the latest node in the blockchain
     private BlockNode maxHeightNode;
-    private TransactionPool transactionPool;
+    // The only materialized UTXO set: the one at maxHeightNode. Every node keeps just an undo
+    // record, and the state at any other node is derived from this one.
+    private UTXOPool tipUtxoPool;
+    // What readers see: the max height block and a copy of tipUtxoPool that is never modified
+    private volatile Tip tip;
+    private final TransactionPool transactionPool;
+    // What readers see: a copy of transactionPool made after its last change, never modified
+    private volatile TransactionPool poolSnapshot;
+    // Blocks that arrived before their parent
+    private OrphanBlockPool orphanBlocks;
+    // Hashes of the most recently pruned blocks: a block built on one of them can never connect,
+    // so it is rejected rather than left waiting in orphanBlocks
+    private LinkedHashMap<ByteArrayWrapper, Boolean> prunedHashes;
+    // Signatures verified while building templates and connecting blocks
+    private SignatureCache signatureCache;
+    // Leading zero bits every new block's hash must have; 0 turns proof of work off
+    private volatile int difficulty;
+    // Every block added, including the ones pruned from memory; null to keep none
+    private BlockStore blockStore;
 
     /**
      * create an empty block chain with just a genesis block. Assume {@code genesisBlock} is a valid
      * block
      */
     public BlockChain(Block genesisBlock) {
-        blockChain = new HashMap<>();
-        UTXOPool pool = new UTXOPool();
-        addCoinbaseToUTXOPool(genesisBlock, pool);
-        BlockNode genesisNode = new BlockNode(genesisBlock, null, pool);
-        blockChain.put(genesisBlock.getHash(), genesisNode);
-        transactionPool = new TransactionPool();
-        maxHeightNode = genesisNode;
+        this(genesisBlock, new TransactionPool(), null);
+    }
+
+    /**
+     * create a block chain like {@link #BlockChain(Block)} that appends every block it adds, and
+     * the genesis block if missing, to {@code blockStore}. Blocks pruned from memory can still be
+     * read with {@link #getBlock(byte[])}.
+     */
+    public BlockChain(Block genesisBlock, BlockStore blockStore) {
+        this(genesisBlock, new TransactionPool(), blockStore);
+    }
+
+    /**
+     * create a block chain like {@link #BlockChain(Block)} whose transaction pool holds at most
+     * {@code maxPoolTransactions} transactions of {@code maxPoolBytes} bytes in total, evicting
+     * the lowest fee rate first
+     */
+    public BlockChain(Block genesisBlock, int maxPoolTransactions, long maxPoolBytes) {
+        this(genesisBlock, new TransactionPool(maxPoolTransactions, maxPoolBytes), null);
+    }
+
+    /** create a block chain with both a bounded transaction pool and a block store */
+    public BlockChain(Block genesisBlock, int maxPoolTransactions, long maxPoolBytes,
+            BlockStore blockStore) {
+        this(genesisBlock, new TransactionPool(maxPoolTransactions, maxPoolBytes), blockStore);
+    }
+
+    /**
+     * create a block chain that starts from {@code tipBlock} and the UTXO set after it, read from
+     * a snapshot saved by {@link #saveUTXOSnapshot(Path)}, instead of from a genesis block. Blocks
+     * that build on {@code tipBlock} can be added at once; its ancestors are not known, so no
+     * branch may fork below it.
+     *
+     * @throws IllegalArgumentException if the snapshot is not of the set after {@code tipBlock}
+     */
+    public BlockChain(Block tipBlock, UTXOSnapshot snapshot) {
+        this(tipBlock, 1, restore(tipBlock, snapshot), new TransactionPool(), null);
+    }
+
+    /**
+     * create a block chain like {@link #BlockChain(Block, UTXOSnapshot)} whose tip block is read
+     * from {@code blockStore}, which it goes on appending to
+     *
+     * @throws IllegalArgumentException if the snapshot's block is not in {@code blockStore}
+     */
+    public BlockChain(UTXOSnapshot snapshot, BlockStore blockStore) {
+        this(storedBlock(snapshot, blockStore), snapshot, blockStore);
+    }
+
+    private BlockChain(Block tipBlock, UTXOSnapshot snapshot, BlockStore blockStore) {
+        this(tipBlock, blockStore.getHeight(tipBlock.getHash()), restore(tipBlock, snapshot),
+                new TransactionPool(), blockStore);
+    }
+
+    private BlockChain(Block genesisBlock, TransactionPool transactionPool, BlockStore blockStore) {
+        this(genesisBlock, 1, null, transactionPool, blockStore);
+    }
+
+    /**
+     * @param rootUtxoPool the UTXO set after {@code root}, or null if {@code root} is a genesis
+     *        block and the set is just its coinbase
+     */
+    private BlockChain(Block root, int rootHeight, UTXOPool rootUtxoPool,
+            TransactionPool transactionPool, BlockStore blockStore) {
+        blockChain = new BlockIndex<>();
+        UndoRecord undo = new UndoRecord();
+        UTXOPool pool = rootUtxoPool;
+        if (pool == null) {
+            // copies of a persistent pool share structure, so deriving the state of a side branch
+            // does not copy the whole set
+            pool = new PersistentUTXOPool();
+            recordTransaction(root.getCoinbase(), pool, undo);
+            addCoinbaseToUTXOPool(root, pool);
+        }
+        BlockNode rootNode = new BlockNode(root, rootHeight, undo);
+        blockChain.put(root.getHash(), rootNode.height, rootNode);
+        tipUtxoPool = pool;
+        this.transactionPool = transactionPool;
+        poolSnapshot = new TransactionPool(transactionPool);
+        orphanBlocks = new OrphanBlockPool();
+        prunedHashes = new LinkedHashMap<ByteArrayWrapper, Boolean>() {
+            protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, Boolean> eldest) {
+                return size() > PRUNED_HASHES_KEPT;
+            }
+        };
+        signatureCache = new SignatureCache();
+        maxHeightNode = rootNode;
+        tip = new Tip(root, pool.copy());
+        this.blockStore = blockStore;
+        if (blockStore != null)
+            blockStore.append(root, rootNode.height);
+    }
+
+    private static UTXOPool restore(Block tipBlock, UTXOSnapshot snapshot) {
+        if (!Arrays.equals(tipBlock.getHash(), snapshot.getBlockHash()))
+            throw new IllegalArgumentException("snapshot is not of the UTXO set after the block");
+        return snapshot.toUTXOPool();
+    }
+
+    private static Block storedBlock(UTXOSnapshot snapshot, BlockStore blockStore) {
+        Block block = blockStore.getBlock(snapshot.getBlockHash());
+        if (block == null) throw new IllegalArgumentException("snapshot block is not in the store");
+        return block;
     }
 
     public void addCoinbaseToUTXOPool(Block block, UTXOPool pool){
@@ -39,17 +178,72 @@ public class BlockChain {
 
     /** Get the maximum height block */
     public Block getMaxHeightBlock() {
-        return maxHeightNode.block;
+        return tip.block;
+    }
+
+    /**
+     * Saves the UTXO set after the max height block, with that block's hash, to {@code file}, so
+     * that a later run can start from it with {@link #BlockChain(UTXOSnapshot, BlockStore)}
+     */
+    public void saveUTXOSnapshot(Path file) throws IOException {
+        Tip t = tip;
+        UTXOSnapshot.write(file, t.utxoPool, t.block.getHash());
+    }
+
+    /**
+     * Get the block with hash {@code hash}: from memory if it is within CUT_OFF_AGE of the max
+     * height, otherwise from the block store, if any
+     *
+     * @return null if the block is unknown
+     */
+    public Block getBlock(byte[] hash) {
+        synchronized (chainLock) {
+            BlockNode node = blockChain.get(hash);
+            if (node != null) return node.block;
+            return blockStore == null ? null : blockStore.getBlock(hash);
+        }
+    }
+
+    /** @return the max height block together with the UTXO set after it, read at one moment */
+    Tip getTip() {
+        return tip;
     }
 
     /** Get the UTXOPool for mining a new block on top of max height block */
     public UTXOPool getMaxHeightUTXOPool() {
-        return maxHeightNode.getUtxoPool();
+        return tip.utxoPool.copy();
     }
 
-    /** Get the transaction pool to mine a new block */
+    /**
+     * Get the transaction pool to mine a new block: a copy of the pool as of its last change, made
+     * in O(1) time without locking. Changing the copy does not change the chain's pool; add and
+     * remove transactions with {@link #addTransaction(Transaction)} and
+     * {@link #removeTransaction(byte[])}.
+     */
     public TransactionPool getTransactionPool() {
-        return transactionPool;
+        return new TransactionPool(poolSnapshot);
+    }
+
+    /** Get the pending transactions that spend {@code utxo}, without copying the pool */
+    public List<Transaction> getPendingSpenders(UTXO utxo) {
+        return poolSnapshot.getSpenders(utxo);
+    }
+
+    /** Get the number of leading zero bits a new block's hash must have */
+    public int getDifficulty() {
+        return difficulty;
+    }
+
+    /** Set the number of leading zero bits new blocks' hashes must have; 0, the default, for none */
+    public void setDifficulty(int difficulty) {
+        if (difficulty < 0 || difficulty > 256)
+            throw new IllegalArgumentException("difficulty must be between 0 and 256 bits");
+        this.difficulty = difficulty;
+    }
+
+    /** Get the cache of verified signatures shared by block and template validation */
+    public SignatureCache getSignatureCache() {
+        return signatureCache;
     }
 
     /**
@@ -62,60 +256,311 @@ public class BlockChain {
      * CUT_OFF_AGE + 1}. As soon as {@code height > CUT_OFF_AGE + 1}, you cannot create a new block
      * at height 2.
      *
-     * @return true if block is successfully added
+     * <p>
+     * A block whose parent is not known yet is kept in a bounded orphan pool, and false is
+     * returned; it is connected, without being sent again, as soon as its parent is added. Its
+     * own waiting children then follow in turn. A block whose parent has been pruned, or is in the
+     * block store below the cutoff, is rejected outright.
+     *
+     * @return true if block is successfully added; false if it is invalid, waits for its parent
+     *         or is already in the block chain
      */
     public boolean addBlock(Block block) {
+        synchronized (chainLock) {
+            return addBlockLocked(block);
+        }
+    }
+
+    private boolean addBlockLocked(Block block) {
         byte[] previousBlockHash = block.getPrevBlockHash();
-        if (previousBlockHash == null) return false;
+        if (previousBlockHash == null || block.getHash() == null) return false;
+        if (blockChain.contains(block.getHash())) return false;
+
+        // the proof of work only counts, and a stored block can only be found again, if the hash
+        // really is the hash of this header, over the transactions as they are now
+        if (difficulty > 0 || blockStore != null) {
+            if (!block.commitsToTransactions()) return false;
+            if (!Arrays.equals(block.getHash(), block.computeHash())) return false;
+        }
+        if (difficulty > 0 && (block.getDifficulty() < difficulty
+                || !Block.meetsDifficulty(block.getHash(), block.getDifficulty())))
+            return false;
 
         BlockNode parentBlockNode = blockChain.get(previousBlockHash);
-        if (parentBlockNode == null) return false;
+        if (parentBlockNode == null) {
+            if (!isPruned(previousBlockHash)) orphanBlocks.add(block);
+            return false;
+        }
+        if (!connectBlock(block, parentBlockNode)) return false;
+
+        // connect the orphans waiting for this block, and the ones waiting for those
+        ArrayDeque<Block> ready = new ArrayDeque<>(orphanBlocks.removeChildren(block.getHash()));
+        while (!ready.isEmpty()) {
+            Block orphan = ready.poll();
+            BlockNode parent = blockChain.get(orphan.getPrevBlockHash());
+            if (parent != null && connectBlock(orphan, parent))
+                ready.addAll(orphanBlocks.removeChildren(orphan.getHash()));
+        }
+        return true;
+    }
 
-        TxHandler txHandler = new TxHandler(parentBlockNode.getUtxoPool());
-        ArrayList<Transaction> transactions = block.getTransactions();
-        Transaction[] validTransactions = txHandler.handleTxs(transactions.toArray(new Transaction[transactions.size()]));
+    /**
+     * @return true if the block with hash {@code hash} is known to be below the cutoff, so that
+     *         nothing can be built on it. A block in the store at or above the cutoff is not: in a
+     *         chain opened on an existing store, it may just not have been added again yet.
+     */
+    private boolean isPruned(byte[] hash) {
+        if (prunedHashes.containsKey(new ByteArrayWrapper(hash))) return true;
+        if (blockStore == null) return false;
+        int height = blockStore.getHeight(hash);
+        return height >= 0 && height < maxHeightNode.height - CUT_OFF_AGE;
+    }
 
-        // do not mine the block unless all transactions are valid
-        if (validTransactions.length != transactions.size()) return false;
+    /** Get the number of blocks waiting for their parent */
+    public int getOrphanCount() {
+        synchronized (chainLock) {
+            return orphanBlocks.size();
+        }
+    }
 
+    /** adds {@code block}, whose proof of work has been checked, on top of {@code parentBlockNode} */
+    private boolean connectBlock(Block block, BlockNode parentBlockNode) {
         // do not mine if the block is not past the cutoff age
         int nextBlockHeight = parentBlockNode.height + 1;
         if (nextBlockHeight <= maxHeightNode.height - CUT_OFF_AGE) return false;
 
+        UTXOPool parentUtxoPool = utxoPoolAt(parentBlockNode);
+        if (parentUtxoPool == null) return false;
+        TxHandler txHandler = new TxHandler(parentUtxoPool.copy(), signatureCache);
+        List<Transaction> transactions = block.getTransactions();
+        // do not mine the block unless all transactions are valid; signatures are checked in
+        // parallel and the first invalid transaction rejects the block
+        Transaction[] validTransactions = txHandler.connectTxs(transactions.toArray(new Transaction[transactions.size()]));
+        if (validTransactions == null) return false;
+
+        UndoRecord undo = new UndoRecord();
+        for (Transaction tx : validTransactions)
+            recordTransaction(tx, parentUtxoPool, undo);
+        recordTransaction(block.getCoinbase(), parentUtxoPool, undo);
+
         UTXOPool utxoPool = txHandler.getUTXOPool();
         addCoinbaseToUTXOPool(block, utxoPool);
-        BlockNode node = new BlockNode(block, parentBlockNode, utxoPool);
-        blockChain.put(block.getHash(), node);
+        BlockNode node = new BlockNode(block, parentBlockNode, undo);
+        blockChain.put(block.getHash(), node.height, node);
+        if (blockStore != null)
+            blockStore.append(block, node.height);
 
-        // change the reference to the maxHeightNode
+        // change the reference to the maxHeightNode; the new block's state is already computed,
+        // so switching to another branch needs no separate roll back
         if (nextBlockHeight > maxHeightNode.height){
+            BlockNode oldTip = maxHeightNode;
+            UTXOPool oldTipUtxoPool = tipUtxoPool;
             maxHeightNode = node;
+            tipUtxoPool = utxoPool;
+            // publish the tip before updating the pool, so that a transaction added after the
+            // update is priced against the new tip
+            tip = new Tip(block, utxoPool.copy());
+            synchronized (poolLock) {
+                updateTransactionPool(oldTip, oldTipUtxoPool, node);
+                poolSnapshot = new TransactionPool(transactionPool);
+            }
+            prune();
         }
 
         return true;
     }
 
-    /** Add a transaction to the transaction pool */
-    public void addTransaction(Transaction tx) {
-        transactionPool.addTransaction(tx);
+    /**
+     * Moves the transaction pool from {@code oldTip} to {@code newTip}: the transactions of blocks
+     * leaving the main chain are pending again, and those of blocks joining it are removed along
+     * with whatever conflicts with them. {@code oldTipUtxoPool} is the UTXO set at {@code oldTip}
+     * and is rolled back as blocks leave; it must not be the set at {@code newTip}.
+     */
+    private void updateTransactionPool(BlockNode oldTip, UTXOPool oldTipUtxoPool, BlockNode newTip) {
+        ArrayList<BlockNode> connected = new ArrayList<>();
+        BlockNode branch = newTip;
+        while (branch.height > oldTip.height) {
+            connected.add(branch);
+            branch = branch.parent;
+        }
+        while (oldTip != branch) {
+            oldTip.undo.rollBack(oldTipUtxoPool);
+            transactionPool.blockDisconnected(oldTip.block, oldTipUtxoPool);
+            connected.add(branch);
+            // the branches only meet below the pruned height, where nothing can be moved
+            if (oldTip.parent == null || branch.parent == null) break;
+            oldTip = oldTip.parent;
+            branch = branch.parent;
+        }
+        for (int i = connected.size() - 1; i >= 0; i--)
+            transactionPool.blockConnected(connected.get(i).block);
+    }
+
+    /**
+     * Drops the nodes that can no longer be built on, i.e. those below
+     * {@code maxHeight - CUT_OFF_AGE}, and cuts the parent links into them so that they can be
+     * garbage collected. Their hashes are remembered so that blocks built on them are rejected.
+     * The nodes whose parent link is cut keep the UTXO set after them instead, for the branches
+     * that fork below them.
+     */
+    private void prune() {
+        int cutOff = maxHeightNode.height - CUT_OFF_AGE;
+        List<BlockNode> pruned = blockChain.pruneBelow(cutOff);
+        if (pruned.isEmpty()) return;
+        for (BlockNode node : pruned)
+            prunedHashes.put(new ByteArrayWrapper(node.block.getHash()), Boolean.TRUE);
+        List<BlockNode> lowest = blockChain.getAtHeight(cutOff);
+        // all sets first, as each is derived through the parent links
+        for (BlockNode node : lowest)
+            node.utxoPool = utxoPoolAt(node);
+        for (BlockNode node : lowest)
+            node.parent = null;
+    }
+
+    /**
+     * @return the UTXO set after {@code node}, derived from the tip set by undoing the tip's blocks
+     *         back to the common ancestor and redoing {@code node}'s branch. If that ancestor has
+     *         been pruned, the branch is redone from the set kept at the lowest height instead.
+     *         The tip set itself is not modified.
+     */
+    private UTXOPool utxoPoolAt(BlockNode node) {
+        UTXOPool pool = tipUtxoPool.copy();
+        if (node == maxHeightNode) return pool;
+
+        BlockNode tipSide = maxHeightNode;
+        BlockNode branch = node;
+        ArrayList<BlockNode> redo = new ArrayList<>();
+        while (tipSide.height > branch.height) {
+            tipSide.undo.rollBack(pool);
+            tipSide = tipSide.parent;
+        }
+        while (branch.height > tipSide.height) {
+            redo.add(branch);
+            branch = branch.parent;
+        }
+        while (tipSide != branch) {
+            if (tipSide.parent == null || branch.parent == null) {
+                // the branches only meet below the pruned height
+                if (branch.utxoPool == null) return null;
+                pool = branch.utxoPool.copy();
+                break;
+            }
+            tipSide.undo.rollBack(pool);
+            tipSide = tipSide.parent;
+            redo.add(branch);
+            branch = branch.parent;
+        }
+        for (int i = redo.size() - 1; i >= 0; i--)
+            redo.get(i).undo.apply(pool);
+        return pool;
+    }
+
+    /**
+     * Adds to {@code undo} the outputs {@code tx} spends and creates. {@code before} is the UTXO set
+     * before the block, used to remember spent and overwritten outputs.
+     */
+    private static void recordTransaction(Transaction tx, UTXOPool before, UndoRecord undo) {
+        for (Transaction.Input input : tx.getInputs()) {
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            // spending an output created earlier in the same block leaves no trace
+            if (undo.created.remove(utxo) == null && !undo.spent.containsKey(utxo))
+                undo.spent.put(utxo, before.getTxOutput(utxo));
+        }
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            UTXO utxo = new UTXO(tx.getHash(), i);
+            // an identical transaction hash overwrites the old output; keep it for the roll back
+            if (!undo.created.containsKey(utxo) && !undo.spent.containsKey(utxo)
+                    && before.contains(utxo))
+                undo.spent.put(utxo, before.getTxOutput(utxo));
+            undo.created.put(utxo, tx.getOutput(i));
+        }
+    }
+
+    /**
+     * Add a transaction to the transaction pool
+     *
+     * @return false if a bounded pool rejected it or evicted it to make room
+     */
+    public boolean addTransaction(Transaction tx) {
+        return addTransaction(tx, null);
+    }
+
+    /**
+     * Like {@link #addTransaction(Transaction)}, and adds the transactions a bounded pool evicted,
+     * {@code tx} included if it did not stay, to {@code evicted} unless null
+     */
+    boolean addTransaction(Transaction tx, List<Transaction> evicted) {
+        synchronized (poolLock) {
+            boolean added = transactionPool.addTransaction(tx, tip.utxoPool, evicted);
+            poolSnapshot = new TransactionPool(transactionPool);
+            return added;
+        }
+    }
+
+    /** Remove a transaction from the transaction pool */
+    public void removeTransaction(byte[] txHash) {
+        synchronized (poolLock) {
+            transactionPool.removeTransaction(txHash);
+            poolSnapshot = new TransactionPool(transactionPool);
+        }
+    }
+
+    /** The max height block and the UTXO set after it, which nobody may modify */
+    static final class Tip {
+        final Block block;
+        final UTXOPool utxoPool;
+
+        private Tip(Block block, UTXOPool utxoPool) {
+            this.block = block;
+            this.utxoPool = utxoPool;
+        }
+    }
+
+    /** The change one block makes to the UTXO set */
+    private static class UndoRecord {
+        // outputs the block removed from the set before it, with their outputs
+        public LinkedHashMap<UTXO, Transaction.Output> spent = new LinkedHashMap<>();
+        // outputs the block added
+        public LinkedHashMap<UTXO, Transaction.Output> created = new LinkedHashMap<>();
+
+        /** turns the set before the block into the set after it */
+        public void apply(UTXOPool pool) {
+            for (UTXO utxo : spent.keySet())
+                pool.removeUTXO(utxo);
+            for (Map.Entry<UTXO, Transaction.Output> e : created.entrySet())
+                pool.addUTXO(e.getKey(), e.getValue());
+        }
+
+        /** turns the set after the block back into the set before it */
+        public void rollBack(UTXOPool pool) {
+            for (UTXO utxo : created.keySet())
+                pool.removeUTXO(utxo);
+            for (Map.Entry<UTXO, Transaction.Output> e : spent.entrySet())
+                pool.addUTXO(e.getKey(), e.getValue());
+        }
     }
 
     private class BlockNode{
         public Block block;
         public BlockNode parent;
         public int height;
+        public UndoRecord undo;
+        // the UTXO set after this block; only kept at the lowest height, where parent is cut
         public UTXOPool utxoPool;
-        public BlockNode(Block b, BlockNode bn, UTXOPool p){
+        public BlockNode(Block b, BlockNode bn, UndoRecord u){
             this.block = b;
             this.parent = bn;
-            this.utxoPool = p;
+            this.undo = u;
             if (parent == null) height = 1;
             else{
                 height = this.parent.height + 1;
             }
         }
-        public UTXOPool getUtxoPool(){
-            return new UTXOPool(utxoPool);
+        /** a node with no known parent, such as the block a snapshot was taken after */
+        public BlockNode(Block b, int h, UndoRecord u){
+            this.block = b;
+            this.height = h;
+            this.undo = u;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,217 @@
+package assignment.three;
+
+import static assignment.three.Checks.check;
+
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Adds 150 blocks to a BlockChain, a third of them on one of the 14 most recent blocks rather
+ * than on the tip, so that the chain keeps switching branches. The blocks carry up to three
+ * transactions, some of them invalid. addBlock must accept a block exactly when it is new,
+ * within CUT_OFF_AGE of the tip, and replaying every block from the genesis block shows its
+ * transactions apply in order. After every block, the max height UTXO set, which BlockChain
+ * derives from its undo records, must equal that replay's set. The fixed cases that follow are
+ * described at their methods. The optional argument is the random seed.
+ */
+public class BlockChainTest {
+
+    private static KeyPair[] keys;
+    private static HashMap<ByteArrayWrapper, Block> blocks = new HashMap<>();
+
+    public static void main(String[] args) {
+        Random random = new Random(Checks.seed(args));
+        keys = new KeyPair[3];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = Checks.newKeyPair(random);
+        Block genesis = new Block(null, keys[0].getPublic());
+        genesis.finalize();
+        blocks.put(new ByteArrayWrapper(genesis.getHash()), genesis);
+        BlockChain chain = new BlockChain(genesis);
+        ArrayList<Block> added = new ArrayList<>();
+        added.add(genesis);
+
+        int accepted = 0;
+        for (int n = 0; n < 150; n++) {
+            Block parent = random.nextInt(3) == 0
+                    ? added.get(added.size() - 1 - random.nextInt(Math.min(added.size(), 14)))
+                    : chain.getMaxHeightBlock();
+            List<Transaction> txs = randomTransactions(replay(parent), random);
+            Block block = new Block(parent.getHash(), keys[random.nextInt(keys.length)].getPublic());
+            for (Transaction tx : txs)
+                block.addTransaction(tx);
+            block.finalize();
+
+            boolean expected = !blocks.containsKey(new ByteArrayWrapper(block.getHash()))
+                    && withinCutOff(parent, chain.getMaxHeightBlock())
+                    && applies(replay(parent), txs);
+            check(chain.addBlock(block) == expected, "block " + n + " accepted: " + !expected);
+            if (expected) {
+                accepted++;
+                blocks.put(new ByteArrayWrapper(block.getHash()), block);
+                added.add(block);
+            }
+            check(Checks.sameContents(replay(chain.getMaxHeightBlock()), chain.getMaxHeightUTXOPool()),
+                    "tip UTXO set after block " + n);
+        }
+        checkLongBranches();
+        checkReplacedTransaction();
+        System.out.println("BlockChainTest passed, " + accepted + " of 150 blocks accepted");
+    }
+
+    /**
+     * Two branches that fork at the genesis block grow in turn, far past CUT_OFF_AGE, each
+     * overtaking the other. Every block is within CUT_OFF_AGE of the max height, so all of them
+     * must be accepted, though their fork point is long pruned.
+     */
+    private static void checkLongBranches() {
+        Block genesis = new Block(null, keys[0].getPublic());
+        genesis.finalize();
+        BlockChain chain = new BlockChain(genesis);
+        Block[] tips = { genesis, genesis };
+        for (int n = 0; n < 4 * BlockChain.CUT_OFF_AGE; n++) {
+            // each branch adds two blocks in a row, so the lead changes every time
+            int side = n / 2 % 2;
+            Block block = Checks.newBlock(tips[side], keys[side + 1].getPublic());
+            blocks.put(new ByteArrayWrapper(block.getHash()), block);
+            check(chain.addBlock(block), "block " + n + " of the long branches rejected");
+            tips[side] = block;
+            check(Checks.sameContents(replay(chain.getMaxHeightBlock()), chain.getMaxHeightUTXOPool()),
+                    "tip UTXO set after block " + n + " of the long branches");
+        }
+    }
+
+    /**
+     * A block's transaction list must refuse changes that bypass the Merkle tree. A block that
+     * meets the difficulty must be rejected once one of its transactions is replaced, even by
+     * another valid one, or changed in place, and accepted once it is restored.
+     */
+    private static void checkReplacedTransaction() {
+        Block genesis = new Block(null, keys[0].getPublic());
+        genesis.finalize();
+        BlockChain chain = new BlockChain(genesis);
+        chain.setDifficulty(4);
+        Transaction[] spends = new Transaction[2];
+        for (int i = 0; i < spends.length; i++) {
+            Transaction tx = new Transaction();
+            tx.addInput(genesis.getCoinbase().getHash(), 0);
+            tx.addOutput(Block.COINBASE, keys[i + 1].getPublic());
+            Checks.sign(tx, keys[0].getPrivate(), 0);
+            tx.finalize();
+            spends[i] = tx;
+        }
+        Block block = new Block(genesis.getHash(), keys[0].getPublic());
+        block.addTransaction(spends[0]);
+        block.setDifficulty(4);
+        while (!Block.meetsDifficulty(block.computeHash(), 4))
+            block.setNonce(block.getNonce() + 1);
+        block.finalize();
+
+        try {
+            block.getTransactions().set(0, spends[1]);
+            check(false, "transaction list changed behind the Merkle tree");
+        } catch (UnsupportedOperationException expected) {
+        }
+        block.setTransaction(0, spends[1]);
+        check(!chain.addBlock(block), "block with a replaced transaction accepted");
+        block.setTransaction(0, spends[0]);
+        spends[0].getOutput(0).value = Block.COINBASE / 2;
+        check(!chain.addBlock(block), "block with a transaction changed in place accepted");
+        spends[0].getOutput(0).value = Block.COINBASE;
+        check(chain.addBlock(block), "block with its transaction restored rejected");
+    }
+
+    /** @return up to three transactions over {@code utxos}, some spending an earlier one's output */
+    private static List<Transaction> randomTransactions(UTXOPool utxos, Random random) {
+        ArrayList<UTXO> available = new ArrayList<>(utxos.getUTXOView());
+        Collections.shuffle(available, random);
+        ArrayList<Transaction> txs = new ArrayList<>();
+        for (int t = random.nextInt(4); t > 0 && !available.isEmpty(); t--) {
+            UTXO utxo = available.remove(available.size() - 1);
+            Transaction.Output spent = utxos.getTxOutput(utxo);
+            Transaction tx = new Transaction();
+            tx.addInput(utxo.getTxHash(), utxo.getIndex());
+            tx.addOutput(spent.value / 2, randomKey(random));
+            // one in ten outputs more than it spends
+            tx.addOutput(spent.value / 2 + (random.nextInt(10) == 0 ? 1 : 0), randomKey(random));
+            Checks.sign(tx, owner(spent.address), 0);
+            tx.finalize();
+            txs.add(tx);
+            if (random.nextBoolean()) {
+                Transaction child = new Transaction();
+                child.addInput(tx.getHash(), 0);
+                child.addOutput(tx.getOutput(0).value, randomKey(random));
+                Checks.sign(child, owner(tx.getOutput(0).address), 0);
+                child.finalize();
+                txs.add(child);
+            }
+        }
+        // a child listed before its parent makes the block invalid
+        Collections.shuffle(txs, random);
+        return txs;
+    }
+
+    private static PublicKey randomKey(Random random) {
+        return keys[random.nextInt(keys.length)].getPublic();
+    }
+
+    private static PrivateKey owner(PublicKey address) {
+        for (KeyPair key : keys)
+            if (key.getPublic().equals(address))
+                return key.getPrivate();
+        throw new IllegalArgumentException("unknown address");
+    }
+
+    private static Block parentOf(Block block) {
+        return block.getPrevBlockHash() == null ? null
+                : blocks.get(new ByteArrayWrapper(block.getPrevBlockHash()));
+    }
+
+    private static int height(Block block) {
+        int height = 0;
+        for (Block b = block; b != null; b = parentOf(b))
+            height++;
+        return height;
+    }
+
+    /**
+     * whether a block on {@code parent} is within CUT_OFF_AGE of the chain whose tip is {@code tip},
+     * wherever its branch forks off
+     */
+    private static boolean withinCutOff(Block parent, Block tip) {
+        return height(parent) + 1 > height(tip) - BlockChain.CUT_OFF_AGE;
+    }
+
+    /** @return the UTXO set after {@code tip}, replayed from the genesis block */
+    private static UTXOPool replay(Block tip) {
+        LinkedList<Block> path = new LinkedList<>();
+        for (Block b = tip; b != null; b = parentOf(b))
+            path.addFirst(b);
+        UTXOPool utxos = new UTXOPool();
+        for (Block block : path) {
+            check(applies(utxos, block.getTransactions()), "replay of an accepted block");
+            Transaction coinbase = block.getCoinbase();
+            for (int i = 0; i < coinbase.numOutputs(); i++)
+                utxos.addUTXO(new UTXO(coinbase.getHash(), i), coinbase.getOutput(i));
+        }
+        return utxos;
+    }
+
+    /** applies {@code txs} to {@code utxos} in listed order; false, part way, if one is invalid */
+    private static boolean applies(UTXOPool utxos, List<Transaction> txs) {
+        TxHandler handler = new TxHandler(utxos);
+        for (Transaction tx : txs) {
+            if (!handler.isValidTx(tx))
+                return false;
+            handler.handleTxs(new Transaction[] { tx });
+        }
+        return true;
+    }
+}
@@ -0,0 +1,194 @@
+package assignment.three;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Binary encoding of blocks for {@link BlockStore}. Addresses are stored once per block in their
+ * X.509 encoding and referred to by index from the outputs; the coinbase is stored as its address
+ * only, since its value is always {@link Block#COINBASE}. Transaction hashes are stored as they
+ * are, and a decoded block is checked against its stored hash.
+ *
+ * <pre>
+ * block   := version:u8 bytes(prevHash) bytes(hash) difficulty:i32 nonce:i64
+ *            addressCount:i32 bytes(x509)* coinbaseAddress:i32 txCount:i32 tx*
+ * tx      := bytes(hash) inputCount:i32 input* outputCount:i32 output*
+ * input   := bytes(prevTxHash) outputIndex:i32 bytes(signature)
+ * output  := value:f64 address:i32
+ * bytes   := length:i32 byte*     (length -1 for null)
+ * </pre>
+ */
+final class BlockCodec {
+
+    private static final byte VERSION = 1;
+    // decoded addresses, so that a key used in many blocks is parsed once
+    private static final int ADDRESS_CACHE_SIZE = 1024;
+    private static final Map<ByteArrayWrapper, PublicKey> ADDRESSES =
+            new LinkedHashMap<ByteArrayWrapper, PublicKey>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, PublicKey> e) {
+                    return size() > ADDRESS_CACHE_SIZE;
+                }
+            };
+
+    private BlockCodec() {
+    }
+
+    static byte[] encode(Block block) {
+        HashMap<PublicKey, Integer> addressIds = new HashMap<>();
+        ArrayList<PublicKey> addresses = new ArrayList<>();
+        int coinbaseAddress = addressId(block.getCoinbase().getOutput(0).address, addressIds, addresses);
+        for (Transaction tx : block.getTransactions())
+            for (Transaction.Output out : tx.getOutputs())
+                addressId(out.address, addressIds, addresses);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            writeBytes(out, block.getPrevBlockHash());
+            writeBytes(out, block.getHash());
+            out.writeInt(block.getDifficulty());
+            out.writeLong(block.getNonce());
+            out.writeInt(addresses.size());
+            for (PublicKey address : addresses)
+                writeBytes(out, encodeAddress(address));
+            out.writeInt(coinbaseAddress);
+            out.writeInt(block.getTransactions().size());
+            for (Transaction tx : block.getTransactions()) {
+                writeBytes(out, tx.getHash());
+                out.writeInt(tx.numInputs());
+                for (Transaction.Input in : tx.getInputs()) {
+                    writeBytes(out, in.prevTxHash);
+                    out.writeInt(in.outputIndex);
+                    writeBytes(out, in.signature);
+                }
+                out.writeInt(tx.numOutputs());
+                for (Transaction.Output o : tx.getOutputs()) {
+                    out.writeDouble(o.value);
+                    out.writeInt(addressIds.get(o.address));
+                }
+            }
+        } catch (IOException e) {
+            // a ByteArrayOutputStream does not throw
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes the block starting at the position of {@code in}, leaving the position after it.
+     *
+     * @throws IOException if the data is not a block, or not the block its stored hash names
+     */
+    static Block decode(ByteBuffer in) throws IOException {
+        try {
+            if (in.get() != VERSION) throw new IOException("unknown block encoding");
+            byte[] prevHash = readBytes(in);
+            byte[] hash = readBytes(in);
+            int difficulty = in.getInt();
+            long nonce = in.getLong();
+            PublicKey[] addresses = new PublicKey[readCount(in, Integer.BYTES)];
+            for (int i = 0; i < addresses.length; i++)
+                addresses[i] = decodeAddress(readBytes(in));
+            Block block = new Block(prevHash, addresses[in.getInt()]);
+            block.setDifficulty(difficulty);
+            block.setNonce(nonce);
+            int txCount = readCount(in, 3 * Integer.BYTES);
+            for (int t = 0; t < txCount; t++) {
+                Transaction tx = new Transaction();
+                byte[] txHash = readBytes(in);
+                int inputCount = readCount(in, 3 * Integer.BYTES);
+                for (int i = 0; i < inputCount; i++) {
+                    tx.addInput(readBytes(in), in.getInt());
+                    tx.addSignature(readBytes(in), i);
+                }
+                int outputCount = readCount(in, Double.BYTES + Integer.BYTES);
+                for (int i = 0; i < outputCount; i++)
+                    tx.addOutput(in.getDouble(), addresses[in.getInt()]);
+                tx.setHash(txHash);
+                block.addTransaction(tx);
+            }
+            block.finalize();
+            if (!Arrays.equals(hash, block.getHash()))
+                throw new IOException("stored block does not match its hash");
+            return block;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("truncated or corrupt block", e);
+        }
+    }
+
+    /** @return the X.509 encoding of {@code address} */
+    static byte[] encodeAddress(PublicKey address) {
+        return address.getEncoded();
+    }
+
+    /** @return the RSA key with X.509 encoding {@code encoded} */
+    static PublicKey decodeAddress(byte[] encoded) throws IOException {
+        ByteArrayWrapper key = new ByteArrayWrapper(encoded);
+        synchronized (ADDRESSES) {
+            PublicKey address = ADDRESSES.get(key);
+            if (address != null) return address;
+        }
+        PublicKey address;
+        try {
+            address = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("invalid address", e);
+        }
+        synchronized (ADDRESSES) {
+            ADDRESSES.put(key, address);
+        }
+        return address;
+    }
+
+    private static int addressId(PublicKey address, HashMap<PublicKey, Integer> ids,
+            ArrayList<PublicKey> addresses) {
+        Integer id = ids.get(address);
+        if (id == null) {
+            id = addresses.size();
+            ids.put(address, id);
+            addresses.add(address);
+        }
+        return id;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        if (b == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    /**
+     * @return a count of items of at least {@code minBytes} each, checked against what is left of
+     *         {@code in} so that a corrupt count fails here and not in an allocation
+     */
+    private static int readCount(ByteBuffer in, int minBytes) throws IOException {
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining() / minBytes) throw new IOException("bad count " + count);
+        return count;
+    }
+
+    private static byte[] readBytes(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length == -1) return null;
+        if (length < 0 || length > in.remaining()) throw new IOException("bad length " + length);
+        byte[] b = new byte[length];
+        in.get(b);
+        return b;
+    }
+}
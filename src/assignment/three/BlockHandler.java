@@ -1,13 +1,53 @@
 package assignment.three;
 
 import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class BlockHandler {
     private BlockChain blockChain;
+    // searches for the nonce when the chain has a difficulty; one on all cores is made if needed
+    private Miner miner;
+
+    // The block template: the transactions of the next block over templateParent, by hash in the
+    // order they apply, and the UTXO set after them. Kept up to date by processTx and processBlock,
+    // from the transactions that arrive, leave the pool or are mined, so that neither createBlock
+    // nor a new block validates the whole transaction pool again. The template and miner are
+    // guarded by this handler's monitor, so that its methods may be called from several threads;
+    // adding to the chain and mining happen outside it.
+    private Block templateParent;
+    // the UTXO set after templateParent; shared with the chain, never modified
+    private UTXOPool templateBase;
+    private TxHandler templateHandler;
+    private LinkedHashMap<ByteArrayWrapper, Transaction> templateTxs;
+    // each template transaction's content hash, computed once when it joins the template
+    private HashMap<ByteArrayWrapper, byte[]> templateLeaves;
+    // the Merkle tree of a block over the template: leaf 0 is left for the coinbase, which
+    // prepareBlock sets in its copy, and the content hashes of templateTxs follow in order
+    private MerkleTree templateTree;
+    // the template transaction spending each output the template spends
+    private HashMap<UTXO, Transaction> templateSpent;
 
     /** assume blockChain has the genesis block */
     public BlockHandler(BlockChain blockChain) {
+        this(blockChain, null);
+    }
+
+    /** assume blockChain has the genesis block; {@code miner} mines the blocks createBlock makes */
+    public BlockHandler(BlockChain blockChain, Miner miner) {
         this.blockChain = blockChain;
+        this.miner = miner;
+        rebuildTemplate();
     }
 
     /**
@@ -18,31 +58,344 @@ public class BlockHandler {
     public boolean processBlock(Block block) {
         if (block == null)
             return false;
-        return blockChain.addBlock(block);
+        if (!blockChain.addBlock(block))
+            return false;
+        synchronized (this) {
+            refreshTemplate();
+        }
+        return true;
     }
 
-    /** create a new {@code block} over the max height {@code block} */
+    /**
+     * create a new {@code block} over the max height {@code block}, mined to the chain's
+     * difficulty if it has one
+     *
+     * @return null if the block was not added, e.g. because mining was aborted
+     */
     public Block createBlock(PublicKey myAddress) {
-        Block parent = blockChain.getMaxHeightBlock();
-        byte[] parentHash = parent.getHash();
-        Block current = new Block(parentHash, myAddress);
-        UTXOPool uPool = blockChain.getMaxHeightUTXOPool();
-        TransactionPool txPool = blockChain.getTransactionPool();
-        TxHandler handler = new TxHandler(uPool);
-        Transaction[] txs = txPool.getTransactions().toArray(new Transaction[0]);
-        Transaction[] rTxs = handler.handleTxs(txs);
-        for (int i = 0; i < rTxs.length; i++)
-            current.addTransaction(rTxs[i]);
-
-        current.finalize();
-        if (blockChain.addBlock(current))
-            return current;
-        else
+        Candidate candidate = prepareBlock(myAddress);
+        if (!mine(candidate))
             return null;
+        return addCreatedBlock(candidate.block) ? candidate.block : null;
+    }
+
+    /**
+     * The first step of {@link #createBlock}: a block over the max height block with the template's
+     * transactions, not yet mined
+     */
+    synchronized Candidate prepareBlock(PublicKey myAddress) {
+        refreshTemplate();
+        // the template's tree is copied, not rebuilt: only the coinbase leaf's path is hashed
+        Transaction coinbase = new Transaction(Block.COINBASE, myAddress);
+        MerkleTree merkleTree = new MerkleTree(templateTree);
+        merkleTree.set(0, coinbase.computeHash());
+        Block block = new Block(templateParent.getHash(), coinbase, templateTxs.values(), merkleTree);
+        block.setDifficulty(blockChain.getDifficulty());
+        if (block.getDifficulty() == 0)
+            return new Candidate(block, null, 0);
+        if (miner == null)
+            miner = new Miner();
+        // read with the template, so that a tip change after this aborts the search
+        return new Candidate(block, miner, miner.generation());
+    }
+
+    /**
+     * The second step of {@link #createBlock}: mines the candidate's block, or just finalizes it
+     * if the chain has no difficulty. Takes no lock, so it may run on any thread.
+     *
+     * @return false if the search was aborted
+     */
+    static boolean mine(Candidate candidate) {
+        if (candidate.miner == null) {
+            candidate.block.finalize();
+            return true;
+        }
+        try {
+            return candidate.miner.mine(candidate.block, candidate.generation);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * The last step of {@link #createBlock}: adds {@code block} to the chain unless the max height
+     * block has moved on from its parent while it was mined, which would only make it a fork
+     */
+    boolean addCreatedBlock(Block block) {
+        if (!Arrays.equals(blockChain.getMaxHeightBlock().getHash(), block.getPrevBlockHash()))
+            return false;
+        if (!blockChain.addBlock(block))
+            return false;
+        synchronized (this) {
+            refreshTemplate();
+        }
+        return true;
+    }
+
+    /** Stops the search for a block, if one is running */
+    synchronized void abortMining() {
+        if (miner != null)
+            miner.abort();
     }
 
     /** process a {@code Transaction} */
     public void processTx(Transaction tx) {
-        blockChain.addTransaction(tx);
+        processTxs(new Transaction[] { tx });
+    }
+
+    /**
+     * process a batch of {@code Transaction}s, validating them for the block template in one
+     * {@code handleTxs} call
+     *
+     * @return per transaction, whether it is in the transaction pool afterwards
+     */
+    public boolean[] processTxs(Transaction[] txs) {
+        boolean[] added = new boolean[txs.length];
+        ArrayList<Transaction> evicted = new ArrayList<>();
+        for (int i = 0; i < txs.length; i++)
+            added[i] = blockChain.addTransaction(txs[i], evicted);
+        // a later transaction of the batch may have pushed an earlier one out
+        Set<Transaction> gone = Collections.newSetFromMap(new IdentityHashMap<>());
+        gone.addAll(evicted);
+        for (int i = 0; i < txs.length; i++)
+            if (gone.contains(txs[i])) added[i] = false;
+
+        synchronized (this) {
+            refreshTemplate();
+            if (!evicted.isEmpty())
+                updateTemplate(templateParent, templateBase, Collections.emptyList(), evicted);
+            // another thread may have evicted or mined one since; it updates the template after
+            // this, so only what is still pending now has to be left out
+            ArrayList<Transaction> pooled = new ArrayList<>(txs.length);
+            for (int i = 0; i < txs.length; i++)
+                if (added[i] && blockChain.getTransactionPool().getTransaction(txs[i].getHash()) != null)
+                    pooled.add(txs[i]);
+            if (pooled.isEmpty())
+                return added;
+            // pending transactions that spend the new ones' outputs may have been waiting for them
+            ArrayDeque<Transaction> candidates = new ArrayDeque<>();
+            for (Transaction tx : templateHandler.handleTxs(pooled.toArray(new Transaction[0]))) {
+                addToTemplate(tx);
+                candidates.addAll(pendingSpenders(tx));
+            }
+            addCandidates(candidates);
+        }
+        return added;
+    }
+
+    /** adds to the template each of {@code candidates} that is valid over it, and their pending spenders in turn */
+    private void addCandidates(ArrayDeque<Transaction> candidates) {
+        while (!candidates.isEmpty()) {
+            Transaction candidate = candidates.poll();
+            if (templateTxs.containsKey(new ByteArrayWrapper(candidate.getHash())))
+                continue;
+            if (templateHandler.handleTxs(new Transaction[] { candidate }).length == 0)
+                continue;
+            addToTemplate(candidate);
+            candidates.addAll(pendingSpenders(candidate));
+        }
+    }
+
+    private ArrayList<Transaction> pendingSpenders(Transaction tx) {
+        ArrayList<Transaction> spenders = new ArrayList<>();
+        for (int i = 0; i < tx.numOutputs(); i++)
+            spenders.addAll(blockChain.getPendingSpenders(new UTXO(tx.getHash(), i)));
+        return spenders;
+    }
+
+    /**
+     * Moves the template onto the max height block if it changed since the template was built,
+     * aborting the search for a block on the old one.
+     * When the new tip extends the template's parent, only the transactions of the blocks in
+     * between are looked at; after a reorganization the template is built again.
+     */
+    private void refreshTemplate() {
+        BlockChain.Tip tip = blockChain.getTip();
+        if (tip.block == templateParent)
+            return;
+        // a block being mined on the old tip would be stale
+        if (miner != null)
+            miner.abort();
+        List<Block> connected = blocksSince(templateParent, tip.block);
+        if (connected == null)
+            rebuildTemplate(tip);
+        else
+            updateTemplate(tip.block, tip.utxoPool, connected, Collections.emptyList());
+    }
+
+    /**
+     * @return the blocks after {@code ancestor} up to {@code block}, oldest first, or null if
+     *         {@code block} does not descend from {@code ancestor} within CUT_OFF_AGE blocks
+     */
+    private List<Block> blocksSince(Block ancestor, Block block) {
+        ArrayList<Block> blocks = new ArrayList<>();
+        while (!Arrays.equals(block.getHash(), ancestor.getHash())) {
+            if (blocks.size() > BlockChain.CUT_OFF_AGE || block.getPrevBlockHash() == null)
+                return null;
+            blocks.add(block);
+            block = blockChain.getBlock(block.getPrevBlockHash());
+            if (block == null)
+                return null;
+        }
+        Collections.reverse(blocks);
+        return blocks;
+    }
+
+    /** builds the template from the transaction pool, over the current max height block */
+    private void rebuildTemplate() {
+        rebuildTemplate(blockChain.getTip());
+    }
+
+    private void rebuildTemplate(BlockChain.Tip tip) {
+        templateParent = tip.block;
+        templateBase = tip.utxoPool;
+        templateHandler = new TxHandler(tip.utxoPool.copy(), blockChain.getSignatureCache());
+        templateTxs = new LinkedHashMap<>();
+        templateLeaves = new HashMap<>();
+        templateSpent = new HashMap<>();
+        // built in one batch once the transactions are in
+        templateTree = null;
+        Transaction[] txs = blockChain.getTransactionPool().getTransactions().toArray(new Transaction[0]);
+        for (Transaction tx : templateHandler.handleTxs(txs))
+            addToTemplate(tx);
+        ArrayList<byte[]> leaves = new ArrayList<>(templateTxs.size() + 1);
+        leaves.add(new byte[32]);
+        for (ByteArrayWrapper hash : templateTxs.keySet())
+            leaves.add(templateLeaves.get(hash));
+        templateTree = new MerkleTree(leaves);
+    }
+
+    /**
+     * Moves the template onto {@code parent}, whose UTXO set is {@code base}, from the blocks
+     * {@code connected} between the old parent and it, and takes out the {@code removed}
+     * transactions. Template transactions the blocks include leave the template; those that
+     * conflict with the blocks or were removed leave it with everything in the template that
+     * spends their outputs. Only the outputs those transactions and the blocks touch are set
+     * again, so the work is in proportion to them rather than to the template or the pool. The
+     * Merkle tree is cut back to the first transaction that leaves and only the template
+     * transactions after it are added back, without hashing the transactions again.
+     */
+    private void updateTemplate(Block parent, UTXOPool base, List<Block> connected,
+            Collection<Transaction> removed) {
+        LinkedHashSet<UTXO> touched = new LinkedHashSet<>();
+        HashMap<ByteArrayWrapper, Transaction> leaving = new HashMap<>();
+        ArrayDeque<Transaction> dropped = new ArrayDeque<>();
+        for (Block block : connected) {
+            Transaction coinbase = block.getCoinbase();
+            for (int i = 0; i < coinbase.numOutputs(); i++)
+                touched.add(new UTXO(coinbase.getHash(), i));
+            for (Transaction tx : block.getTransactions()) {
+                ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
+                Transaction mined = templateTxs.get(hash);
+                if (mined != null)
+                    leaving.put(hash, mined);
+                for (Transaction.Input in : tx.getInputs()) {
+                    UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+                    touched.add(utxo);
+                    Transaction spender = templateSpent.get(utxo);
+                    if (spender != null && spender != mined)
+                        dropped.add(spender);
+                }
+                for (int i = 0; i < tx.numOutputs(); i++)
+                    touched.add(new UTXO(tx.getHash(), i));
+            }
+        }
+        for (Transaction tx : removed) {
+            Transaction pending = templateTxs.get(new ByteArrayWrapper(tx.getHash()));
+            if (pending != null)
+                dropped.add(pending);
+        }
+        while (!dropped.isEmpty()) {
+            Transaction tx = dropped.poll();
+            ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
+            if (leaving.containsKey(hash))
+                continue;
+            leaving.put(hash, tx);
+            for (Transaction.Input in : tx.getInputs())
+                touched.add(new UTXO(in.prevTxHash, in.outputIndex));
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                UTXO utxo = new UTXO(tx.getHash(), i);
+                touched.add(utxo);
+                Transaction spender = templateSpent.get(utxo);
+                if (spender != null)
+                    dropped.add(spender);
+            }
+        }
+
+        int firstLeaving = 0;
+        if (!leaving.isEmpty()) {
+            for (ByteArrayWrapper hash : templateTxs.keySet()) {
+                if (leaving.containsKey(hash))
+                    break;
+                firstLeaving++;
+            }
+        }
+        for (Map.Entry<ByteArrayWrapper, Transaction> e : leaving.entrySet()) {
+            templateTxs.remove(e.getKey());
+            templateLeaves.remove(e.getKey());
+            for (Transaction.Input in : e.getValue().getInputs()) {
+                UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+                if (templateSpent.get(utxo) == e.getValue())
+                    templateSpent.remove(utxo);
+            }
+        }
+        if (!leaving.isEmpty()) {
+            templateTree.truncate(firstLeaving + 1);
+            int position = 0;
+            for (ByteArrayWrapper hash : templateTxs.keySet())
+                if (position++ >= firstLeaving)
+                    templateTree.add(templateLeaves.get(hash));
+        }
+        // every other output is where the remaining template transactions left it already
+        UTXOPool utxoPool = templateHandler.getUTXOPool();
+        ArrayDeque<Transaction> candidates = new ArrayDeque<>();
+        for (UTXO utxo : touched) {
+            Transaction.Output output = null;
+            if (!templateSpent.containsKey(utxo)) {
+                Transaction creator = templateTxs.get(new ByteArrayWrapper(utxo.getTxHash()));
+                if (creator == null)
+                    output = base.getTxOutput(utxo);
+                else if (utxo.getIndex() >= 0 && utxo.getIndex() < creator.numOutputs())
+                    output = creator.getOutput(utxo.getIndex());
+            }
+            if (output == null) {
+                utxoPool.removeUTXO(utxo);
+            } else {
+                // pending transactions may have been waiting for an output that is now unspent
+                if (!utxoPool.contains(utxo))
+                    candidates.addAll(blockChain.getPendingSpenders(utxo));
+                utxoPool.addUTXO(utxo, output);
+            }
+        }
+        templateParent = parent;
+        templateBase = base;
+        addCandidates(candidates);
+    }
+
+    private void addToTemplate(Transaction tx) {
+        ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
+        byte[] leaf = tx.computeHash();
+        templateTxs.put(hash, tx);
+        templateLeaves.put(hash, leaf);
+        if (templateTree != null)
+            templateTree.add(leaf);
+        for (Transaction.Input in : tx.getInputs())
+            templateSpent.put(new UTXO(in.prevTxHash, in.outputIndex), tx);
+    }
+
+    /** A block made from the template, and what to mine it with */
+    static final class Candidate {
+        final Block block;
+        // null if the chain has no difficulty
+        final Miner miner;
+        // the miner's generation when the template was read
+        final long generation;
+
+        Candidate(Block block, Miner miner, long generation) {
+            this.block = block;
+            this.miner = miner;
+            this.generation = generation;
+        }
     }
 }
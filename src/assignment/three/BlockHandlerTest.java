@@ -0,0 +1,166 @@
+package assignment.three;
+
+import static assignment.three.Checks.check;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Drives a BlockHandler, over a chain with a small bounded transaction pool, with 300 random
+ * steps: batches of new transactions, outside blocks that mine some pending transactions and
+ * may spend an output a pending one also spends, blocks the handler creates itself, and forks
+ * of two blocks that overtake the tip. After every step, checkTemplate asserts four things
+ * about the block prepareBlock returns:
+ * - it is built on the current tip;
+ * - its Merkle root equals that of a block built from the same transactions one by one;
+ * - each of its transactions is pending and valid, in order, over the max height UTXO set;
+ * - no pending transaction left out of it could still be applied after them.
+ * The optional argument is the random seed.
+ */
+public class BlockHandlerTest {
+
+    private static KeyPair alice;
+
+    public static void main(String[] args) {
+        Random random = new Random(Checks.seed(args));
+        alice = Checks.newKeyPair(random);
+        KeyPair bob = Checks.newKeyPair(random);
+        Block genesis = new Block(null, alice.getPublic());
+        genesis.finalize();
+        BlockChain chain = new BlockChain(genesis, 12, 1 << 20);
+        BlockHandler handler = new BlockHandler(chain);
+        for (int i = 0; i < 4; i++)
+            check(handler.createBlock(alice.getPublic()) != null, "block " + i + " not created");
+
+        int forks = 0;
+        for (int step = 0; step < 300; step++) {
+            int kind = random.nextInt(10);
+            if (kind < 6) {
+                ArrayList<Transaction> batch = new ArrayList<>();
+                for (int i = 1 + random.nextInt(3); i > 0; i--) {
+                    Transaction tx = randomTransaction(chain, random);
+                    if (tx != null) batch.add(tx);
+                }
+                handler.processTxs(batch.toArray(new Transaction[0]));
+            } else if (kind < 8) {
+                check(handler.processBlock(outsideBlock(chain, random)), "outside block rejected at " + step);
+            } else if (kind < 9) {
+                check(handler.createBlock(alice.getPublic()) != null, "block not created at " + step);
+            } else {
+                // two blocks on the tip's parent overtake the tip
+                Block tip = chain.getMaxHeightBlock();
+                Block first = Checks.newBlock(chain.getBlock(tip.getPrevBlockHash()), bob.getPublic());
+                Block second = Checks.newBlock(first, bob.getPublic());
+                handler.processBlock(first);
+                handler.processBlock(second);
+                check(chain.getMaxHeightBlock() == second, "fork did not overtake at " + step);
+                forks++;
+            }
+            checkTemplate(chain, handler, "step " + step);
+        }
+        System.out.println("BlockHandlerTest passed, " + forks + " forks");
+    }
+
+    /** the block the handler would create now must be valid and leave nothing addable out */
+    private static void checkTemplate(BlockChain chain, BlockHandler handler, String when) {
+        Block block = handler.prepareBlock(alice.getPublic()).block;
+        check(Arrays.equals(block.getPrevBlockHash(), chain.getMaxHeightBlock().getHash()),
+                "template not on the tip at " + when);
+        Block rebuilt = new Block(block.getPrevBlockHash(), alice.getPublic());
+        for (Transaction tx : block.getTransactions())
+            rebuilt.addTransaction(tx);
+        check(Arrays.equals(block.getMerkleRoot(), rebuilt.getMerkleRoot()),
+                "template Merkle root at " + when);
+        TxHandler applied = new TxHandler(chain.getMaxHeightUTXOPool());
+        HashSet<ByteArrayWrapper> included = new HashSet<>();
+        for (Transaction tx : block.getTransactions()) {
+            check(chain.getTransactionPool().getTransaction(tx.getHash()) != null,
+                    "template transaction not pending at " + when);
+            check(applied.isValidTx(tx), "template transaction invalid in order at " + when);
+            applied.handleTxs(new Transaction[] { tx });
+            included.add(new ByteArrayWrapper(tx.getHash()));
+        }
+        ArrayList<Transaction> rest = new ArrayList<>();
+        for (Transaction tx : chain.getTransactionPool().getTransactions())
+            if (!included.contains(new ByteArrayWrapper(tx.getHash()))) rest.add(tx);
+        check(applied.handleTxs(rest.toArray(new Transaction[0])).length == 0,
+                "pending transaction left out of the template at " + when);
+    }
+
+    /**
+     * @return a transaction signed by alice that spends one or two outputs of the max height set
+     *         or of pending transactions, or null if there are none
+     */
+    private static Transaction randomTransaction(BlockChain chain, Random random) {
+        UTXOPool tip = chain.getMaxHeightUTXOPool();
+        ArrayList<UTXO> outputs = new ArrayList<>(tip.getUTXOView());
+        ArrayList<Transaction.Output> spent = new ArrayList<>();
+        for (UTXO utxo : outputs)
+            spent.add(tip.getTxOutput(utxo));
+        for (Transaction pending : chain.getTransactionPool().getTransactions()) {
+            for (int i = 0; i < pending.numOutputs(); i++) {
+                outputs.add(new UTXO(pending.getHash(), i));
+                spent.add(pending.getOutput(i));
+            }
+        }
+        if (outputs.isEmpty()) return null;
+        ArrayList<UTXO> inputs = new ArrayList<>();
+        double in = 0;
+        for (int i = 1 + random.nextInt(2); i > 0; i--) {
+            int k = random.nextInt(outputs.size());
+            if (inputs.contains(outputs.get(k))) continue;
+            inputs.add(outputs.get(k));
+            in += spent.get(k).value;
+        }
+        return spend(inputs, in - random.nextDouble() / 2, random);
+    }
+
+    /** @return a transaction signed by alice that spends {@code inputs} into {@code out}, or null */
+    private static Transaction spend(List<UTXO> inputs, double out, Random random) {
+        if (out <= 0) return null;
+        Transaction tx = new Transaction();
+        for (UTXO utxo : inputs)
+            tx.addInput(utxo.getTxHash(), utxo.getIndex());
+        if (random.nextBoolean()) {
+            tx.addOutput(out / 2, alice.getPublic());
+            tx.addOutput(out / 2, alice.getPublic());
+        } else {
+            tx.addOutput(out, alice.getPublic());
+        }
+        for (int i = 0; i < inputs.size(); i++)
+            Checks.sign(tx, alice.getPrivate(), i);
+        tx.finalize();
+        return tx;
+    }
+
+    /** a block on the tip with some pending transactions and perhaps one that spends alice's coins */
+    private static Block outsideBlock(BlockChain chain, Random random) {
+        List<Transaction> pending = chain.getTransactionPool().getTransactions();
+        Collections.shuffle(pending, random);
+        List<Transaction> picked = pending.subList(0, random.nextInt(pending.size() + 1));
+        TxHandler handler = new TxHandler(chain.getMaxHeightUTXOPool());
+        Block block = new Block(chain.getMaxHeightBlock().getHash(), alice.getPublic());
+        for (Transaction tx : handler.handleTxs(picked.toArray(new Transaction[0])))
+            block.addTransaction(tx);
+        if (random.nextBoolean()) {
+            // may spend what a pending transaction spends, which must then leave the template
+            UTXOPool after = handler.getUTXOPool();
+            ArrayList<UTXO> left = new ArrayList<>();
+            for (UTXO utxo : after.getUTXOView())
+                if (after.getTxOutput(utxo).address.equals(alice.getPublic())) left.add(utxo);
+            if (!left.isEmpty()) {
+                UTXO utxo = left.get(random.nextInt(left.size()));
+                Transaction conflict = spend(Collections.singletonList(utxo),
+                        after.getTxOutput(utxo).value - 0.01, random);
+                if (conflict != null) block.addTransaction(conflict);
+            }
+        }
+        block.finalize();
+        return block;
+    }
+}
@@ -0,0 +1,69 @@
+package assignment.three;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * In-memory index of recent blocks, by block hash (compared by content) and by height. Entries
+ * below a given height can be dropped with {@link #pruneBelow(int)}, in time proportional to the
+ * number of entries dropped.
+ *
+ * @param <T> what is stored for each block
+ */
+public class BlockIndex<T> {
+
+    private final HashMap<ByteArrayWrapper, T> byHash = new HashMap<>();
+    private final HashMap<Integer, ArrayList<ByteArrayWrapper>> byHeight = new HashMap<>();
+    /** no entry is below this height */
+    private int minHeight = Integer.MAX_VALUE;
+
+    /** Adds or replaces the entry for the block with hash {@code hash} at height {@code height} */
+    public void put(byte[] hash, int height, T value) {
+        ByteArrayWrapper key = new ByteArrayWrapper(hash);
+        if (byHash.put(key, value) == null)
+            byHeight.computeIfAbsent(height, h -> new ArrayList<>()).add(key);
+        minHeight = Math.min(minHeight, height);
+    }
+
+    /** @return the entry for the block with hash {@code hash}, or null */
+    public T get(byte[] hash) {
+        return byHash.get(new ByteArrayWrapper(hash));
+    }
+
+    public boolean contains(byte[] hash) {
+        return byHash.containsKey(new ByteArrayWrapper(hash));
+    }
+
+    /** @return the entries of all blocks at {@code height}, in the order they were added */
+    public List<T> getAtHeight(int height) {
+        ArrayList<ByteArrayWrapper> keys = byHeight.get(height);
+        if (keys == null) return Collections.emptyList();
+        ArrayList<T> values = new ArrayList<>(keys.size());
+        for (ByteArrayWrapper key : keys)
+            values.add(byHash.get(key));
+        return values;
+    }
+
+    public int size() {
+        return byHash.size();
+    }
+
+    /**
+     * Removes every entry below {@code height}.
+     *
+     * @return the removed entries, lowest height first
+     */
+    public List<T> pruneBelow(int height) {
+        ArrayList<T> removed = new ArrayList<>();
+        for (; minHeight < height && !byHash.isEmpty(); minHeight++) {
+            ArrayList<ByteArrayWrapper> keys = byHeight.remove(minHeight);
+            if (keys == null) continue;
+            for (ByteArrayWrapper key : keys)
+                removed.add(byHash.remove(key));
+        }
+        if (byHash.isEmpty()) minHeight = Integer.MAX_VALUE;
+        return removed;
+    }
+}
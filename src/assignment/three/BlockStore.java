@@ -0,0 +1,448 @@
+package assignment.three;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Append-only on-disk store of blocks, in the encoding of {@link BlockCodec}. Blocks go into
+ * segment files of up to {@code segmentSize} bytes each, {@code blocks-00000.dat} and so on, and
+ * are read back through read-only memory maps of those files. An index file, {@code index.dat},
+ * records the segment, offset and height of every block, and links each record to the previous
+ * one at the same height.
+ *
+ * <p>Nothing per block is kept on the heap. Lookups by hash go through {@code hashes.idx}, a
+ * memory-mapped open-addressing table from a fingerprint of the hash to the block's index record,
+ * and lookups by height through {@code heights.idx}, a memory-mapped array of the last index
+ * record at each height. Both are derived from {@code index.dat}: records past the point they
+ * cover are added to them when the store is opened, and they are rebuilt if they are missing or
+ * claim more than the index holds.
+ *
+ * <p>A block is written to its segment before its index record, so a crash can at worst lose the
+ * last block; an incomplete index record at the end of the file is ignored. All methods are
+ * synchronized. I/O errors after opening are thrown as {@link UncheckedIOException}.
+ */
+public class BlockStore implements Closeable {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+
+    private static final String INDEX_FILE = "index.dat";
+    private static final String HASHES_FILE = "hashes.idx";
+    private static final String HEIGHTS_FILE = "heights.idx";
+
+    // index record: hashLength:u8 hash segment:i32 offset:i64 height:i32 previousAtHeight:i64,
+    // the last being the index offset of the previous record at the same height, or -1
+    private static final int RECORD_FIXED = 1 + Integer.BYTES + Long.BYTES + Integer.BYTES + Long.BYTES;
+    // hash table: indexed:i64 count:i64 maxHeight:i32, then slots of recordOffset + 1 (0 if
+    // empty):i64 fingerprint:i64, at most half of them full
+    private static final int HEADER = 24;
+    private static final int SLOT = 2 * Long.BYTES;
+    private static final int MIN_SLOTS = 1 << 10;
+    // height array: lastRecordOffset + 1 (0 if none):i64 per height
+    private static final int MIN_HEIGHTS = 1 << 10;
+
+    private final Path directory;
+    private final long segmentSize;
+    private final ArrayList<MappedByteBuffer> maps = new ArrayList<>();
+    private final FileChannel index;
+    // bytes of index.dat covered by the hash and height tables
+    private long indexLength;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_FIXED + 255);
+    private FileChannel hashes;
+    private MappedByteBuffer hashMap;
+    private int slots;
+    private int count;
+    private FileChannel heights;
+    private MappedByteBuffer heightMap;
+    private int maxHeight;
+    private FileChannel segment;
+    private int segmentNumber;
+
+    /** Opens the store in {@code directory}, creating it if needed */
+    public BlockStore(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public BlockStore(Path directory, long segmentSize) throws IOException {
+        if (segmentSize <= 0 || segmentSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("segment size must be positive and below 2 GiB");
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        index = FileChannel.open(directory.resolve(INDEX_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        openTables();
+        while (Files.exists(segmentPath(segmentNumber + 1)))
+            segmentNumber++;
+        segment = openSegment(segmentNumber);
+    }
+
+    /**
+     * Appends {@code block} at {@code height}, unless a block with its hash is already stored.
+     *
+     * @return false if it was already stored
+     */
+    public synchronized boolean append(Block block, int height) {
+        if (height < 0) throw new IllegalArgumentException("negative height " + height);
+        byte[] hash = block.getHash();
+        try {
+            if (find(hash) != null) return false;
+            byte[] encoded = BlockCodec.encode(block);
+            long offset = segment.size();
+            if (offset > 0 && offset + Integer.BYTES + encoded.length > segmentSize) {
+                segment.close();
+                segment = openSegment(++segmentNumber);
+                offset = 0;
+            }
+            ByteBuffer data = ByteBuffer.allocate(Integer.BYTES + encoded.length);
+            data.putInt(encoded.length).put(encoded).flip();
+            writeFully(segment, data, offset);
+
+            ByteBuffer entry = ByteBuffer.allocate(RECORD_FIXED + hash.length);
+            entry.put((byte) hash.length).put(hash).putInt(segmentNumber).putLong(offset).putInt(height)
+                    .putLong(lastAtHeight(height)).flip();
+            writeFully(index, entry, indexLength);
+            addToTables(hash, indexLength, height);
+            indexLength += RECORD_FIXED + hash.length;
+            writeHeader();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return true;
+    }
+
+    public synchronized boolean contains(byte[] hash) {
+        try {
+            return find(hash) != null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** @return the block with hash {@code hash}, read from disk, or null if it is not stored */
+    public synchronized Block getBlock(byte[] hash) {
+        try {
+            Location location = find(hash);
+            return location == null ? null : read(location);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** @return the height of the block with hash {@code hash}, or -1 if it is not stored */
+    public synchronized int getHeight(byte[] hash) {
+        try {
+            Location location = find(hash);
+            return location == null ? -1 : location.height;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** @return the stored blocks at {@code height}, in the order they were appended */
+    public synchronized List<Block> getBlocksAtHeight(int height) {
+        if (height < 0 || height > maxHeight) return Collections.emptyList();
+        ArrayList<Block> blocks = new ArrayList<>(1);
+        try {
+            // the records at a height are linked from the last appended to the first
+            for (long r = lastAtHeight(height); r >= 0; ) {
+                Location location = readRecord(r, null);
+                blocks.add(read(location));
+                r = location.previousAtHeight;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Collections.reverse(blocks);
+        return blocks;
+    }
+
+    /** @return the greatest height of any stored block, 0 if there is none */
+    public synchronized int getMaxHeight() {
+        return maxHeight;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /** Forces everything appended so far to the storage device */
+    public synchronized void flush() {
+        try {
+            segment.force(false);
+            index.force(false);
+            heightMap.force();
+            hashMap.force();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        maps.clear();
+        try {
+            segment.close();
+        } finally {
+            try {
+                index.close();
+            } finally {
+                try {
+                    hashes.close();
+                } finally {
+                    heights.close();
+                }
+            }
+        }
+    }
+
+    private Block read(Location location) throws IOException {
+        ByteBuffer map = map(location.segment, location.offset + Integer.BYTES);
+        ByteBuffer in = map.duplicate();
+        in.position((int) location.offset);
+        int length = in.getInt();
+        map = map(location.segment, location.offset + Integer.BYTES + length);
+        in = map.duplicate();
+        in.position((int) location.offset + Integer.BYTES);
+        in.limit(in.position() + length);
+        return BlockCodec.decode(in);
+    }
+
+    /**
+     * @return a read-only map of segment {@code number} covering at least its first {@code end}
+     *         bytes; the segment being appended to is mapped again once it has outgrown its map
+     */
+    private ByteBuffer map(int number, long end) throws IOException {
+        while (maps.size() <= number)
+            maps.add(null);
+        MappedByteBuffer map = maps.get(number);
+        if (map == null || map.capacity() < end) {
+            try (FileChannel channel = FileChannel.open(segmentPath(number), StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < end) throw new IOException("segment " + number + " is truncated");
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            maps.set(number, map);
+        }
+        return map;
+    }
+
+    /** @return the location of the block with hash {@code hash}, or null if it is not stored */
+    private Location find(byte[] hash) throws IOException {
+        long fingerprint = fingerprint(hash);
+        for (int i = bucket(fingerprint, slots); ; i = (i + 1) & (slots - 1)) {
+            long ref = hashMap.getLong(slotPosition(i));
+            if (ref == 0) return null;
+            if (hashMap.getLong(slotPosition(i) + Long.BYTES) == fingerprint) {
+                Location location = readRecord(ref - 1, hash);
+                if (location != null) return location;
+            }
+        }
+    }
+
+    /**
+     * Reads the index record at {@code position}.
+     *
+     * @return its location, or null if {@code hash} is not null and differs from the record's
+     */
+    private Location readRecord(long position, byte[] hash) throws IOException {
+        fillRecord(position);
+        int hashLength = record.get() & 0xff;
+        if (hash != null) {
+            if (hashLength != hash.length) return null;
+            for (byte b : hash)
+                if (record.get() != b) return null;
+        } else {
+            record.position(record.position() + hashLength);
+        }
+        return new Location(record.getInt(), record.getLong(), record.getInt(), record.getLong());
+    }
+
+    /** Reads into {@link #record} as much of the index from {@code position} as fits */
+    private void fillRecord(long position) throws IOException {
+        record.clear();
+        while (record.hasRemaining())
+            if (index.read(record, position + record.position()) < 0) break;
+        record.flip();
+    }
+
+    /** @return the index offset of the last record at {@code height}, or -1 if there is none */
+    private long lastAtHeight(int height) {
+        if ((long) height * Long.BYTES >= heightMap.capacity()) return -1;
+        return heightMap.getLong(height * Long.BYTES) - 1;
+    }
+
+    private void addToTables(byte[] hash, long position, int height) throws IOException {
+        if (2 * (count + 1) > slots) growHashes();
+        putSlot(hashMap, slots, fingerprint(hash), position + 1);
+        count++;
+        if ((long) height * Long.BYTES >= heightMap.capacity()) {
+            long capacity = heightMap.capacity();
+            while (capacity <= (long) height * Long.BYTES)
+                capacity *= 2;
+            if (capacity > Integer.MAX_VALUE) throw new IOException("height " + height + " too large");
+            heightMap = heights.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+        heightMap.putLong(height * Long.BYTES, position + 1);
+        maxHeight = Math.max(maxHeight, height);
+    }
+
+    private static void putSlot(MappedByteBuffer map, int slots, long fingerprint, long ref) {
+        int i = bucket(fingerprint, slots);
+        while (map.getLong(slotPosition(i)) != 0)
+            i = (i + 1) & (slots - 1);
+        map.putLong(slotPosition(i), ref);
+        map.putLong(slotPosition(i) + Long.BYTES, fingerprint);
+    }
+
+    /** Doubles the hash table into a new file, which then replaces the old one */
+    private void growHashes() throws IOException {
+        if (slots > (Integer.MAX_VALUE - HEADER) / SLOT / 2) throw new IOException("hash table full");
+        int newSlots = 2 * slots;
+        Path path = directory.resolve(HASHES_FILE);
+        Path next = directory.resolve(HASHES_FILE + ".new");
+        FileChannel channel = FileChannel.open(next, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER + (long) newSlots * SLOT);
+        for (int i = 0; i < slots; i++) {
+            long ref = hashMap.getLong(slotPosition(i));
+            if (ref != 0) putSlot(map, newSlots, hashMap.getLong(slotPosition(i) + Long.BYTES), ref);
+        }
+        for (int i = 0; i < HEADER; i++)
+            map.put(i, hashMap.get(i));
+        map.force();
+        Files.move(next, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        hashes.close();
+        hashes = channel;
+        hashMap = map;
+        slots = newSlots;
+    }
+
+    /** Records in the hash table header how much of the index it and the height array cover */
+    private void writeHeader() {
+        hashMap.putLong(0, indexLength);
+        hashMap.putLong(Long.BYTES, count);
+        hashMap.putInt(2 * Long.BYTES, maxHeight);
+    }
+
+    /**
+     * Opens the hash table and height array, rebuilding them if they are missing or ahead of the
+     * index, and adds to them the index records they do not cover yet.
+     */
+    private void openTables() throws IOException {
+        Path hashesPath = directory.resolve(HASHES_FILE);
+        Path heightsPath = directory.resolve(HEIGHTS_FILE);
+        boolean exist = Files.exists(hashesPath) && Files.exists(heightsPath);
+        hashes = FileChannel.open(hashesPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        heights = FileChannel.open(heightsPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long size = index.size();
+        long tableSize = hashes.size();
+        long tableSlots = (tableSize - HEADER) / SLOT;
+        boolean valid = exist && tableSize == HEADER + tableSlots * SLOT && tableSlots >= MIN_SLOTS
+                && Long.bitCount(tableSlots) == 1 && tableSize <= Integer.MAX_VALUE
+                && heights.size() >= MIN_HEIGHTS * Long.BYTES && heights.size() <= Integer.MAX_VALUE;
+        if (valid) {
+            hashMap = hashes.map(FileChannel.MapMode.READ_WRITE, 0, tableSize);
+            heightMap = heights.map(FileChannel.MapMode.READ_WRITE, 0, heights.size());
+            slots = (int) tableSlots;
+            indexLength = hashMap.getLong(0);
+            count = (int) hashMap.getLong(Long.BYTES);
+            maxHeight = hashMap.getInt(2 * Long.BYTES);
+            valid = indexLength >= 0 && indexLength <= size && count >= 0 && maxHeight >= 0;
+        }
+        if (!valid) {
+            hashes.truncate(0);
+            heights.truncate(0);
+            slots = MIN_SLOTS;
+            hashMap = hashes.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) slots * SLOT);
+            heightMap = heights.map(FileChannel.MapMode.READ_WRITE, 0, MIN_HEIGHTS * Long.BYTES);
+            indexLength = 0;
+            count = 0;
+            maxHeight = 0;
+        }
+        // a crash may leave records the tables do not cover, some of them possibly already added
+        while (indexLength < size) {
+            long start = indexLength;
+            fillRecord(start);
+            int hashLength = record.hasRemaining() ? record.get(0) & 0xff : 0;
+            if (record.remaining() < RECORD_FIXED + hashLength) {
+                // the last record was only partly written; drop it
+                index.truncate(start);
+                break;
+            }
+            byte[] hash = new byte[hashLength];
+            record.position(1);
+            record.get(hash);
+            Location location = readRecord(start, null);
+            if (find(hash) == null) {
+                addToTables(hash, start, location.height);
+            } else {
+                count++;
+                heightMap.putLong(location.height * Long.BYTES, start + 1);
+                maxHeight = Math.max(maxHeight, location.height);
+            }
+            indexLength = start + RECORD_FIXED + hashLength;
+        }
+        writeHeader();
+    }
+
+    private FileChannel openSegment(int number) throws IOException {
+        return FileChannel.open(segmentPath(number), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+    }
+
+    private Path segmentPath(int number) {
+        return directory.resolve(String.format("blocks-%05d.dat", number));
+    }
+
+    private static int slotPosition(int slot) {
+        return HEADER + slot * SLOT;
+    }
+
+    private static int bucket(long fingerprint, int slots) {
+        return (int) fingerprint & (slots - 1);
+    }
+
+    /** @return a well-mixed 64-bit hash of {@code hash} */
+    private static long fingerprint(byte[] hash) {
+        long h = Arrays.hashCode(hash) * 0x9e3779b97f4a7c15L + hash.length;
+        for (int i = 0; i + Long.BYTES <= hash.length; i += Long.BYTES)
+            h = (h ^ ByteBuffer.wrap(hash, i, Long.BYTES).getLong()) * 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position)
+            throws IOException {
+        while (buf.hasRemaining())
+            position += channel.write(buf, position);
+    }
+
+    private static final class Location {
+        private final int segment;
+        private final long offset;
+        private final int height;
+        private final long previousAtHeight;
+
+        private Location(int segment, long offset, int height, long previousAtHeight) {
+            this.segment = segment;
+            this.offset = offset;
+            this.height = height;
+            this.previousAtHeight = previousAtHeight;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package assignment.three;
+
+import static assignment.three.Checks.check;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Runs 3000 random operations on a BlockStore with 4096-byte segments, modelled by maps from
+ * hash to block and height and from height to blocks. Most operations append a new block at a
+ * random height below 50, which must succeed. Some append a stored block again, which must
+ * fail. Now and then the store is closed and reopened, after a partial index record is
+ * appended, after hashes.idx is deleted so that it must be rebuilt, or both. After every
+ * operation, the size, the max height, and the lookups of a random stored block by hash and
+ * height must match the model. A block read back must encode to the bytes it was stored with,
+ * and a random hash must not be found. After a final reopen every block must still read back.
+ * Then, decoding a block whose address count is -1, Integer.MAX_VALUE or more than the bytes
+ * left must throw an IOException. Last, checkReplay replays a stored chain out of order into a
+ * new BlockChain on the same store. The optional argument is the random seed.
+ */
+public class BlockStoreTest {
+
+    public static void main(String[] args) throws IOException {
+        Random random = new Random(Checks.seed(args));
+        PublicKey[] addresses = Checks.newAddresses(random, 3);
+
+        Path dir = Files.createTempDirectory("blocks");
+        HashMap<ByteArrayWrapper, Block> blocks = new HashMap<>();
+        HashMap<ByteArrayWrapper, Integer> heights = new HashMap<>();
+        HashMap<Integer, ArrayList<Block>> atHeight = new HashMap<>();
+        ArrayList<Block> appended = new ArrayList<>();
+        int maxHeight = 0;
+        BlockStore store = new BlockStore(dir, 4096);
+        try {
+            for (int op = 0; op < 3000; op++) {
+                int kind = random.nextInt(20);
+                if (kind == 0) {
+                    store.close();
+                    if (random.nextBoolean()) tearIndex(dir, random);
+                    if (random.nextInt(4) == 0) Files.delete(dir.resolve("hashes.idx"));
+                    store = new BlockStore(dir, 4096);
+                } else if (kind < 3 && !appended.isEmpty()) {
+                    Block block = appended.get(random.nextInt(appended.size()));
+                    check(!store.append(block, random.nextInt(50)), "duplicate stored at " + op);
+                } else {
+                    Block block = randomBlock(random, addresses, appended);
+                    int height = random.nextInt(50);
+                    check(store.append(block, height), "append at " + op);
+                    ByteArrayWrapper hash = new ByteArrayWrapper(block.getHash());
+                    blocks.put(hash, block);
+                    heights.put(hash, height);
+                    atHeight.computeIfAbsent(height, h -> new ArrayList<>()).add(block);
+                    appended.add(block);
+                    maxHeight = Math.max(maxHeight, height);
+                }
+                check(store.size() == blocks.size(), "size at " + op);
+                check(store.getMaxHeight() == maxHeight, "max height at " + op);
+                Block block = appended.isEmpty() ? null : appended.get(random.nextInt(appended.size()));
+                if (block != null) {
+                    check(store.contains(block.getHash()), "contains at " + op);
+                    check(Arrays.equals(store.getBlock(block.getHash()).getRawBlock(), block.getRawBlock()),
+                            "block at " + op);
+                    int height = heights.get(new ByteArrayWrapper(block.getHash()));
+                    check(store.getHeight(block.getHash()) == height, "height at " + op);
+                    check(sameBlocks(store.getBlocksAtHeight(height), atHeight.get(height)),
+                            "blocks at height at " + op);
+                }
+                byte[] missing = Checks.randomBytes(random, 32);
+                check(!store.contains(missing) && store.getBlock(missing) == null
+                        && store.getHeight(missing) == -1, "missing block at " + op);
+            }
+
+            store.close();
+            store = new BlockStore(dir, 4096);
+            check(store.size() == blocks.size(), "size after reopening");
+            for (Block block : appended)
+                check(Arrays.equals(store.getBlock(block.getHash()).getRawBlock(), block.getRawBlock()),
+                        "block after reopening");
+            for (Integer height : atHeight.keySet())
+                check(sameBlocks(store.getBlocksAtHeight(height), atHeight.get(height)),
+                        "blocks at height after reopening");
+        } finally {
+            store.close();
+            Checks.deleteDirectory(dir);
+        }
+        checkCorruptCount(randomBlock(random, addresses, appended));
+        checkReplay(random, addresses);
+        System.out.println("BlockStoreTest passed");
+    }
+
+    /**
+     * Fills a store through a BlockChain, then opens a new BlockChain from the genesis block on the
+     * same store and adds the blocks again in random order. A block that arrives before its stored
+     * parent must wait as an orphan, so that the chain reaches the same tip with no orphans left;
+     * a block on a stored parent below the cutoff must then be rejected and not kept.
+     */
+    private static void checkReplay(Random random, PublicKey[] addresses) throws IOException {
+        Path dir = Files.createTempDirectory("replay");
+        try {
+            Block genesis = new Block(null, addresses[0]);
+            genesis.finalize();
+            ArrayList<Block> chainBlocks = new ArrayList<>();
+            try (BlockStore store = new BlockStore(dir, 4096)) {
+                BlockChain chain = new BlockChain(genesis, store);
+                Block tip = genesis;
+                for (int i = 0; i < 4 * BlockChain.CUT_OFF_AGE; i++) {
+                    tip = Checks.newBlock(tip, addresses[1 + i % 2]);
+                    check(chain.addBlock(tip), "block " + i + " rejected while filling the store");
+                    chainBlocks.add(tip);
+                }
+            }
+            try (BlockStore store = new BlockStore(dir, 4096)) {
+                BlockChain chain = new BlockChain(genesis, store);
+                ArrayList<Block> shuffled = new ArrayList<>(chainBlocks);
+                Collections.shuffle(shuffled, random);
+                for (Block block : shuffled)
+                    chain.addBlock(block);
+                Block tip = chainBlocks.get(chainBlocks.size() - 1);
+                check(Arrays.equals(chain.getMaxHeightBlock().getHash(), tip.getHash()), "tip after the replay");
+                check(chain.getOrphanCount() == 0, "orphans left after the replay");
+                check(store.size() == chainBlocks.size() + 1, "store size after the replay");
+                Block stale = Checks.newBlock(chainBlocks.get(0), addresses[0]);
+                check(!chain.addBlock(stale) && chain.getOrphanCount() == 0,
+                        "block on a stored block below the cutoff kept");
+            }
+        } finally {
+            Checks.deleteDirectory(dir);
+        }
+    }
+
+    private static void checkCorruptCount(Block block) {
+        byte[] encoded = BlockCodec.encode(block);
+        // version, prevHash and hash with their lengths, difficulty and nonce come first
+        int addressCount = 1 + 2 * (Integer.BYTES + 32) + Integer.BYTES + Long.BYTES;
+        for (int count : new int[] { -1, Integer.MAX_VALUE, encoded.length }) {
+            ByteBuffer in = ByteBuffer.wrap(encoded.clone());
+            in.putInt(addressCount, count);
+            try {
+                BlockCodec.decode(in);
+                check(false, "address count " + count + " decoded");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    /** a block with a few unsigned transactions, some of them spending earlier blocks' */
+    private static Block randomBlock(Random random, PublicKey[] addresses, List<Block> earlier) {
+        Block block = new Block(Checks.randomBytes(random, 32), addresses[random.nextInt(addresses.length)]);
+        int txs = random.nextInt(4);
+        for (int t = 0; t < txs; t++) {
+            Transaction tx = new Transaction();
+            int inputs = 1 + random.nextInt(3);
+            for (int i = 0; i < inputs; i++) {
+                byte[] spent = earlier.isEmpty() || random.nextBoolean() ? Checks.randomBytes(random, 32)
+                        : earlier.get(random.nextInt(earlier.size())).getCoinbase().getHash();
+                tx.addInput(spent, random.nextInt(3));
+                tx.addSignature(Checks.randomBytes(random, random.nextInt(300)), i);
+            }
+            int outputs = 1 + random.nextInt(3);
+            for (int i = 0; i < outputs; i++)
+                tx.addOutput(random.nextInt(1000) / 8.0, addresses[random.nextInt(addresses.length)]);
+            tx.finalize();
+            block.addTransaction(tx);
+        }
+        block.setNonce(random.nextLong());
+        block.finalize();
+        return block;
+    }
+
+    /** writes the first few bytes of an index record, as a crash in the middle of append would */
+    private static void tearIndex(Path dir, Random random) throws IOException {
+        byte[] partial = new byte[1 + random.nextInt(20)];
+        random.nextBytes(partial);
+        partial[0] = 32;
+        try (FileChannel index = FileChannel.open(dir.resolve("index.dat"), StandardOpenOption.APPEND)) {
+            index.write(ByteBuffer.wrap(partial));
+        }
+    }
+
+    private static boolean sameBlocks(List<Block> actual, List<Block> expected) {
+        if (actual.size() != expected.size()) return false;
+        for (int i = 0; i < actual.size(); i++)
+            if (!Arrays.equals(actual.get(i).getRawBlock(), expected.get(i).getRawBlock())) return false;
+        return true;
+    }
+}
@@ -0,0 +1,120 @@
+package assignment.three;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * Helpers shared by the randomized test programs of this package ({@code *Test} classes with a
+ * {@code main}). Each takes an optional seed as its first argument, repeats the same run for the
+ * same seed, and throws an {@link AssertionError} on the first mismatch.
+ */
+final class Checks {
+
+    // owns the outputs made by newOutput
+    private static final Transaction OUTPUTS = new Transaction();
+
+    private Checks() {
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+
+    /** @return the seed given as the first argument, 1 if none */
+    static long seed(String[] args) {
+        return args.length > 0 ? Long.parseLong(args[0]) : 1;
+    }
+
+    /** @return an RSA key pair drawn from {@code random}, so that a seed gives the same keys */
+    static KeyPair newKeyPair(Random random) {
+        try {
+            SecureRandom seeded = SecureRandom.getInstance("SHA1PRNG");
+            seeded.setSeed(random.nextLong());
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048, seeded);
+            return generator.generateKeyPair();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** @return the public keys of {@code count} key pairs drawn from {@code random} */
+    static PublicKey[] newAddresses(Random random, int count) {
+        PublicKey[] addresses = new PublicKey[count];
+        for (int i = 0; i < count; i++)
+            addresses[i] = newKeyPair(random).getPublic();
+        return addresses;
+    }
+
+    /** @return {@code length} bytes drawn from {@code random} */
+    static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /** @return an output of {@code value} to {@code address} that belongs to no real transaction */
+    static Transaction.Output newOutput(double value, PublicKey address) {
+        return OUTPUTS.new Output(value, address);
+    }
+
+    /** @return a finalized block on {@code parent} that holds just its coinbase */
+    static Block newBlock(Block parent, PublicKey address) {
+        Block block = new Block(parent.getHash(), address);
+        block.finalize();
+        return block;
+    }
+
+    /** deletes {@code dir} and the files in it */
+    static void deleteDirectory(Path dir) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files)
+                Files.delete(file);
+        }
+        Files.delete(dir);
+    }
+
+    /** signs input {@code input} of {@code tx} with {@code key} */
+    static void sign(Transaction tx, PrivateKey key, int input) {
+        try {
+            Signature sig = Signature.getInstance("SHA256withRSA");
+            sig.initSign(key);
+            sig.update(tx.getRawDataToSign(input));
+            tx.addSignature(sig.sign(), input);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static boolean sameOutput(Transaction.Output a, Transaction.Output b) {
+        if (a == null || b == null)
+            return a == b;
+        return a.value == b.value && Objects.equals(a.address, b.address);
+    }
+
+    /** @return true if both pools hold the same UTXOs with equal outputs */
+    static boolean sameContents(UTXOPool a, UTXOPool b) {
+        if (a.size() != b.size())
+            return false;
+        int seen = 0;
+        for (UTXO utxo : a.getUTXOView()) {
+            if (!sameOutput(a.getTxOutput(utxo), b.getTxOutput(utxo)))
+                return false;
+            seen++;
+        }
+        return seen == b.size();
+    }
+}
@@ -0,0 +1,163 @@
+package assignment.three;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A SHA-256 Merkle tree over a list of leaves (transaction hashes). Appending or replacing a leaf
+ * rehashes only the path from that leaf to the root, O(log n) hashes, and an inclusion proof for
+ * a leaf holds one sibling hash per level.
+ *
+ * <p>Leaf and interior nodes are hashed with different one-byte prefixes, and a node without a
+ * sibling is carried up to the next level unchanged rather than paired with a copy of itself, so
+ * no two different leaf lists have the same root.
+ */
+public class MerkleTree {
+
+    private static final byte LEAF = 0;
+    private static final byte INTERIOR = 1;
+
+    // levels.get(0) holds the leaf nodes, the last level holds the root
+    private final ArrayList<ArrayList<byte[]>> levels = new ArrayList<>();
+
+    /** Creates an empty tree */
+    public MerkleTree() {
+        levels.add(new ArrayList<byte[]>());
+    }
+
+    /** Creates a tree over {@code leaves}, hashing each node once */
+    public MerkleTree(List<byte[]> leaves) {
+        this();
+        ArrayList<byte[]> level = levels.get(0);
+        for (byte[] leaf : leaves)
+            level.add(leafNode(leaf));
+        while (level.size() > 1) {
+            ArrayList<byte[]> parents = new ArrayList<>((level.size() + 1) / 2);
+            for (int i = 0; i < level.size(); i += 2)
+                parents.add(parent(level, i));
+            levels.add(parents);
+            level = parents;
+        }
+    }
+
+    /** Creates an independent copy of {@code tree}, without hashing anything */
+    public MerkleTree(MerkleTree tree) {
+        for (ArrayList<byte[]> level : tree.levels)
+            levels.add(new ArrayList<byte[]>(level));
+    }
+
+    /** @return the number of leaves */
+    public int size() {
+        return levels.get(0).size();
+    }
+
+    /** Appends {@code leaf} */
+    public void add(byte[] leaf) {
+        levels.get(0).add(leafNode(leaf));
+        updatePath(size() - 1);
+    }
+
+    /** Replaces the leaf at {@code index} with {@code leaf} */
+    public void set(int index, byte[] leaf) {
+        levels.get(0).set(index, leafNode(leaf));
+        updatePath(index);
+    }
+
+    /**
+     * Drops the leaves from {@code size} on; only the last remaining node of each level is
+     * rehashed, O(log n) hashes
+     */
+    public void truncate(int size) {
+        if (size < 0 || size > size()) throw new IndexOutOfBoundsException("size " + size);
+        ArrayList<byte[]> children = levels.get(0);
+        children.subList(size, children.size()).clear();
+        int k = 1;
+        for (; children.size() > 1; k++) {
+            ArrayList<byte[]> level = levels.get(k);
+            int keep = (children.size() + 1) / 2;
+            level.subList(keep, level.size()).clear();
+            level.set(keep - 1, parent(children, (keep - 1) << 1));
+            children = level;
+        }
+        // the levels above the new root
+        levels.subList(k, levels.size()).clear();
+    }
+
+    /** @return true if the leaf at {@code index} is {@code leaf} */
+    public boolean hasLeaf(int index, byte[] leaf) {
+        if (index < 0 || index >= size()) throw new IndexOutOfBoundsException("leaf " + index);
+        return MessageDigest.isEqual(levels.get(0).get(index), leafNode(leaf));
+    }
+
+    /** @return the root hash; 32 zero bytes for an empty tree */
+    public byte[] getRoot() {
+        ArrayList<byte[]> top = levels.get(levels.size() - 1);
+        return top.isEmpty() ? new byte[32] : top.get(0).clone();
+    }
+
+    /**
+     * @return the sibling hashes on the path from the leaf at {@code index} to the root, lowest
+     *         first, for {@link #verify(byte[], int, int, List, byte[])}
+     */
+    public List<byte[]> getProof(int index) {
+        if (index < 0 || index >= size()) throw new IndexOutOfBoundsException("leaf " + index);
+        ArrayList<byte[]> proof = new ArrayList<>();
+        for (int k = 0; k < levels.size() - 1; k++, index >>= 1) {
+            ArrayList<byte[]> level = levels.get(k);
+            int sibling = index ^ 1;
+            if (sibling < level.size()) proof.add(level.get(sibling).clone());
+        }
+        return proof;
+    }
+
+    /**
+     * @return true if {@code proof} shows that {@code leaf} is at {@code index} in a tree of
+     *         {@code size} leaves with root {@code root}
+     */
+    public static boolean verify(byte[] leaf, int index, int size, List<byte[]> proof, byte[] root) {
+        if (index < 0 || index >= size) return false;
+        byte[] node = leafNode(leaf);
+        int used = 0;
+        for (int levelSize = size; levelSize > 1; levelSize = (levelSize + 1) / 2, index >>= 1) {
+            if ((index ^ 1) >= levelSize) continue;
+            if (used == proof.size()) return false;
+            byte[] sibling = proof.get(used++);
+            node = (index & 1) == 0 ? interiorNode(node, sibling) : interiorNode(sibling, node);
+        }
+        return used == proof.size() && MessageDigest.isEqual(node, root);
+    }
+
+    /** recomputes the ancestors of the leaf node at {@code index} */
+    private void updatePath(int index) {
+        for (int k = 1; levels.get(k - 1).size() > 1; k++) {
+            if (k == levels.size()) levels.add(new ArrayList<byte[]>());
+            ArrayList<byte[]> children = levels.get(k - 1);
+            ArrayList<byte[]> level = levels.get(k);
+            int i = index >> k;
+            byte[] node = parent(children, i << 1);
+            if (i == level.size()) level.add(node);
+            else level.set(i, node);
+        }
+    }
+
+    /** @return the parent of {@code level[i]} and its right sibling, if any */
+    private static byte[] parent(ArrayList<byte[]> level, int i) {
+        return i + 1 < level.size() ? interiorNode(level.get(i), level.get(i + 1)) : level.get(i);
+    }
+
+    private static byte[] leafNode(byte[] leaf) {
+        MessageDigest md = Sha256.get();
+        md.update(LEAF);
+        md.update(leaf);
+        return md.digest();
+    }
+
+    private static byte[] interiorNode(byte[] left, byte[] right) {
+        MessageDigest md = Sha256.get();
+        md.update(INTERIOR);
+        md.update(left);
+        md.update(right);
+        return md.digest();
+    }
+}
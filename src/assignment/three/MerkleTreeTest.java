@@ -0,0 +1,112 @@
+package assignment.three;
+
+import static assignment.three.Checks.check;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * For every size from 0 to 70 leaves, checks that MerkleTree gives one root however it is
+ * built: by appending and then replacing leaves, in a batch, or by the recursive definition in
+ * referenceRoot. A copy truncated to a random size must have the root of the leaves it kept,
+ * also after more leaves are appended, and the original must keep its root. Every inclusion
+ * proof must verify, and must stop verifying for another leaf, another index, a size not above
+ * the index, one changed proof hash or a proof cut short. Repeating the last leaf must change
+ * the root. The optional argument is the random seed.
+ */
+public class MerkleTreeTest {
+
+    public static void main(String[] args) throws NoSuchAlgorithmException {
+        Random random = new Random(Checks.seed(args));
+        for (int n = 0; n <= 70; n++) {
+            ArrayList<byte[]> leaves = new ArrayList<>();
+            MerkleTree appended = new MerkleTree();
+            for (int i = 0; i < n; i++) {
+                byte[] leaf = Checks.randomBytes(random, 32);
+                leaves.add(leaf);
+                appended.add(leaf);
+            }
+            for (int k = 0; k < 5 && n > 0; k++) {
+                int i = random.nextInt(n);
+                byte[] leaf = Checks.randomBytes(random, 32);
+                leaves.set(i, leaf);
+                appended.set(i, leaf);
+            }
+            MerkleTree batch = new MerkleTree(leaves);
+            byte[] root = referenceRoot(leaves);
+            check(Arrays.equals(batch.getRoot(), root), "batch root of " + n);
+            check(Arrays.equals(appended.getRoot(), root), "incremental root of " + n);
+
+            for (int i = 0; i < n; i++) {
+                byte[] leaf = leaves.get(i);
+                List<byte[]> proof = appended.getProof(i);
+                check(MerkleTree.verify(leaf, i, n, proof, root), "proof of " + i + " of " + n);
+                check(!MerkleTree.verify(Checks.randomBytes(random, 32), i, n, proof, root), "other leaf");
+                if (n > 1)
+                    check(!MerkleTree.verify(leaf, (i + 1) % n, n, proof, root), "other index");
+                check(!MerkleTree.verify(leaf, i, i, proof, root), "index beyond the size");
+                if (!proof.isEmpty()) {
+                    int j = random.nextInt(proof.size());
+                    ArrayList<byte[]> tampered = new ArrayList<>(proof);
+                    tampered.set(j, Checks.randomBytes(random, 32));
+                    check(!MerkleTree.verify(leaf, i, n, tampered, root), "tampered proof");
+                    check(!MerkleTree.verify(leaf, i, n, proof.subList(0, proof.size() - 1), root), "short proof");
+                }
+            }
+            checkTruncate(appended, leaves, root, random);
+            // repeating the last leaf must not give the same root
+            if (n > 0) {
+                ArrayList<byte[]> repeated = new ArrayList<>(leaves);
+                repeated.add(leaves.get(n - 1));
+                check(!Arrays.equals(new MerkleTree(repeated).getRoot(), root), "repeated last leaf of " + n);
+            }
+        }
+        System.out.println("MerkleTreeTest passed");
+    }
+
+    private static void checkTruncate(MerkleTree tree, List<byte[]> leaves, byte[] root, Random random)
+            throws NoSuchAlgorithmException {
+        int n = leaves.size();
+        MerkleTree cut = new MerkleTree(tree);
+        int size = random.nextInt(n + 1);
+        cut.truncate(size);
+        ArrayList<byte[]> kept = new ArrayList<>(leaves.subList(0, size));
+        check(cut.size() == size && Arrays.equals(cut.getRoot(), referenceRoot(kept)),
+                "root of " + n + " cut to " + size);
+        for (int i = random.nextInt(4); i > 0; i--) {
+            byte[] leaf = Checks.randomBytes(random, 32);
+            kept.add(leaf);
+            cut.add(leaf);
+        }
+        check(Arrays.equals(cut.getRoot(), referenceRoot(kept)), "root of " + n + " cut and extended");
+        check(Arrays.equals(tree.getRoot(), root), "original changed by its copy at " + n);
+    }
+
+    /** the root by definition: leaves hashed with prefix 0, pairs with prefix 1, odd nodes carried up */
+    private static byte[] referenceRoot(List<byte[]> leaves) throws NoSuchAlgorithmException {
+        if (leaves.isEmpty())
+            return new byte[32];
+        ArrayList<byte[]> level = new ArrayList<>();
+        for (byte[] leaf : leaves)
+            level.add(hash(new byte[] { 0 }, leaf));
+        while (level.size() > 1) {
+            ArrayList<byte[]> parents = new ArrayList<>();
+            for (int i = 0; i < level.size(); i += 2)
+                parents.add(i + 1 < level.size()
+                        ? hash(new byte[] { 1 }, level.get(i), level.get(i + 1)) : level.get(i));
+            level = parents;
+        }
+        return level.get(0);
+    }
+
+    private static byte[] hash(byte[]... parts) throws NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        for (byte[] part : parts)
+            md.update(part);
+        return md.digest();
+    }
+}
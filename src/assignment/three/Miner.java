@@ -0,0 +1,167 @@
+package assignment.three;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Searches for a nonce that gives a block a hash with the block's difficulty, on a fixed number
+ * of threads. The header without the nonce is hashed once; per nonce, a thread only clones that
+ * digest state and adds the eight nonce bytes. A search stops as soon as one thread finds a nonce
+ * or {@link #abort()} is called, e.g. when a new tip arrives; every thread checks for that before
+ * each hash.
+ *
+ * <p>One search runs at a time; {@link #mine(Block)} calls from several threads are serialized.
+ * Every abort starts a new generation. A caller that reads {@link #generation()} before it builds
+ * a block and passes it to {@link #mine(Block, long)} does not lose an abort that arrives before
+ * the search starts: the search is not started at all.
+ */
+public class Miner implements Closeable {
+
+    private final int threads;
+    private final ExecutorService executor;
+    private volatile Search current = new Search();
+    private final AtomicLong generation = new AtomicLong();
+    private volatile double[] hashRates;
+
+    /** Creates a miner with one thread per available processor */
+    public Miner() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public Miner(int threads) {
+        if (threads <= 0) throw new IllegalArgumentException("threads must be positive");
+        this.threads = threads;
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "miner");
+            t.setDaemon(true);
+            return t;
+        });
+        this.hashRates = new double[threads];
+    }
+
+    /**
+     * Sets the nonce of {@code block} to one that meets its difficulty and finalizes it.
+     *
+     * @return false if the search was aborted, leaving the block unchanged
+     */
+    public boolean mine(Block block) throws InterruptedException {
+        return mine(block, generation());
+    }
+
+    /**
+     * Like {@link #mine(Block)}, but returns false at once if {@link #abort()} was called since
+     * {@link #generation()} returned {@code generation}
+     */
+    public synchronized boolean mine(Block block, long generation) throws InterruptedException {
+        Search search = new Search();
+        current = search;
+        // an abort after this check stops search, which is already current
+        if (this.generation.get() != generation) return false;
+        MessageDigest prefix = Sha256.newDigest();
+        prefix.update(block.getRawHeaderPrefix());
+        int difficulty = block.getDifficulty();
+        long[] hashes = new long[threads];
+        long[] nanos = new long[threads];
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            MessageDigest start = copy(prefix);
+            int id = t;
+            executor.execute(() -> {
+                long begin = System.nanoTime();
+                try {
+                    hashes[id] = search.run(start, difficulty, id, threads);
+                } finally {
+                    nanos[id] = System.nanoTime() - begin;
+                    done.countDown();
+                }
+            });
+        }
+        try {
+            done.await();
+        } finally {
+            search.stop = true;
+        }
+        double[] rates = new double[threads];
+        for (int t = 0; t < threads; t++)
+            rates[t] = nanos[t] == 0 ? 0 : hashes[t] * 1e9 / nanos[t];
+        hashRates = rates;
+
+        if (!search.found) return false;
+        block.setNonce(search.nonce);
+        block.finalize();
+        return true;
+    }
+
+    /**
+     * Stops the current search, if any, and any search of an older generation that has yet to
+     * start; {@link #mine(Block)} then returns false
+     */
+    public void abort() {
+        generation.incrementAndGet();
+        current.stop = true;
+    }
+
+    /** @return the number of aborts so far */
+    public long generation() {
+        return generation.get();
+    }
+
+    /** @return the hashes per second of each thread during the last search */
+    public double[] getHashRates() {
+        return hashRates.clone();
+    }
+
+    public void close() {
+        abort();
+        executor.shutdownNow();
+    }
+
+    private static MessageDigest copy(MessageDigest md) {
+        try {
+            return (MessageDigest) md.clone();
+        } catch (CloneNotSupportedException x) {
+            throw new IllegalStateException("the SHA-256 provider cannot clone a digest", x);
+        }
+    }
+
+    /** state shared by the threads of one search */
+    private static final class Search {
+        private volatile boolean stop;
+        private boolean found;
+        private long nonce;
+
+        /**
+         * Tries nonces {@code first}, {@code first + stride}, ... until one meets
+         * {@code difficulty} or the search stops.
+         *
+         * @return the number of hashes computed
+         */
+        private long run(MessageDigest prefix, int difficulty, long first, int stride) {
+            ByteBuffer nonceBytes = ByteBuffer.allocate(Long.BYTES);
+            long count = 0;
+            for (long n = first; !stop; n += stride) {
+                MessageDigest md = copy(prefix);
+                nonceBytes.putLong(0, n);
+                md.update(nonceBytes.array());
+                count++;
+                if (Block.meetsDifficulty(md.digest(), difficulty)) {
+                    finish(n);
+                    break;
+                }
+            }
+            return count;
+        }
+
+        private synchronized void finish(long n) {
+            if (stop) return;
+            found = true;
+            nonce = n;
+            stop = true;
+        }
+    }
+}
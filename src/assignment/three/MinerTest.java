@@ -0,0 +1,95 @@
+package assignment.three;
+
+import static assignment.three.Checks.check;
+
+import java.math.BigInteger;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Mines random blocks at random difficulties from 0 to 16 bits on one to four threads. Each
+ * search must succeed and leave the block finalized: its hash must be the hash of its header,
+ * start with at least the difficulty's zero bits (counted through BigInteger), and pass
+ * Block.meetsDifficulty. getHashRates must give one non-negative rate per thread. On 1000 random
+ * hashes, meetsDifficulty must hold for exactly the zero bits the hash starts with and fail for
+ * one more. At difficulty 64, a search of a generation aborted before the call, and one aborted
+ * 50 ms into the search, must both return false and leave the block unfinalized with nonce 0.
+ * The optional argument is the random seed.
+ */
+public class MinerTest {
+
+    public static void main(String[] args) throws InterruptedException {
+        Random random = new Random(Checks.seed(args));
+        PublicKey[] addresses = Checks.newAddresses(random, 2);
+        for (int threads = 1; threads <= 4; threads++) {
+            try (Miner miner = new Miner(threads)) {
+                for (int difficulty = 0; difficulty <= 16; difficulty += 1 + random.nextInt(4)) {
+                    Block block = randomBlock(random, addresses);
+                    block.setDifficulty(difficulty);
+                    check(miner.mine(block), "search failed at difficulty " + difficulty);
+                    byte[] hash = block.getHash();
+                    check(hash != null && Arrays.equals(hash, block.computeHash()),
+                            "block not finalized at difficulty " + difficulty);
+                    check(leadingZeros(hash) >= difficulty, "hash misses difficulty " + difficulty);
+                    check(Block.meetsDifficulty(hash, difficulty), "meetsDifficulty at " + difficulty);
+                    double[] rates = miner.getHashRates();
+                    check(rates.length == threads, rates.length + " hash rates for " + threads + " threads");
+                    for (double rate : rates)
+                        check(rate >= 0, "negative hash rate");
+                }
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            byte[] hash = Checks.randomBytes(random, 32);
+            hash[0] = 0;
+            if (random.nextBoolean()) hash[1] = 0;
+            int zeros = leadingZeros(hash);
+            check(Block.meetsDifficulty(hash, zeros) && !Block.meetsDifficulty(hash, zeros + 1),
+                    "meetsDifficulty for " + zeros + " zero bits");
+        }
+
+        try (Miner miner = new Miner(2)) {
+            Block block = randomBlock(random, addresses);
+            block.setDifficulty(64);
+            long generation = miner.generation();
+            miner.abort();
+            check(!miner.mine(block, generation), "search of an aborted generation ran");
+            checkUnchanged(block, "a search of an aborted generation");
+
+            // the abort may come before the search starts, which must then not start either
+            generation = miner.generation();
+            Thread aborter = new Thread(() -> {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                miner.abort();
+            });
+            aborter.start();
+            check(!miner.mine(block, generation), "aborted search found a block");
+            aborter.join();
+            checkUnchanged(block, "an aborted search");
+        }
+        System.out.println("MinerTest passed");
+    }
+
+    /** a block on a random parent with a transaction or two besides its coinbase */
+    private static Block randomBlock(Random random, PublicKey[] addresses) {
+        Block block = new Block(Checks.randomBytes(random, 32), addresses[random.nextInt(2)]);
+        for (int i = random.nextInt(3); i > 0; i--)
+            block.addTransaction(new Transaction(random.nextInt(100), addresses[random.nextInt(2)]));
+        return block;
+    }
+
+    private static void checkUnchanged(Block block, String after) {
+        check(block.getHash() == null && block.getNonce() == 0, "block changed by " + after);
+    }
+
+    /** @return the number of zero bits {@code hash} starts with, counted another way */
+    private static int leadingZeros(byte[] hash) {
+        BigInteger value = new BigInteger(1, hash);
+        return hash.length * 8 - value.bitLength();
+    }
+}
@@ -0,0 +1,369 @@
+package assignment.three;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.PublicKey;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * A {@link UTXOPool} whose entries are kept outside the Java heap, in direct memory or in a
+ * memory-mapped file, so that the UTXO set can be larger than the heap and lookups do not add to
+ * garbage collection work.
+ *
+ * <p>Entries live in an open-addressing table with linear probing. Each slot holds the 32 byte
+ * transaction hash, the output index, the value and a reference into a table of distinct
+ * addresses, which stays on the heap and is shared by all outputs paying the same key. Outputs
+ * returned by {@link #getTxOutput(UTXO)} are rebuilt from the slot on every call, so they compare
+ * equal to, but are not the same objects as, the ones that were added. UTXOs whose hash is not
+ * {@value #HASH_LENGTH} bytes long are kept in the ordinary on-heap map.
+ *
+ * <p>A file-backed pool is scratch space, not a persistent store: the address table is on the heap
+ * and the file is deleted by {@link #close()}. Like {@link UTXOPool}, this class is not
+ * thread-safe, and its views must not be used while the pool is being modified.
+ */
+public class OffHeapUTXOPool extends UTXOPool implements Closeable {
+
+    /** length of the transaction hashes stored off-heap (SHA-256) */
+    public static final int HASH_LENGTH = 32;
+    public static final long DEFAULT_CAPACITY = 1 << 16;
+
+    // slot layout
+    private static final int SLOT_SIZE = 56;
+    private static final int STATE = 0;
+    private static final int HASH = 1;
+    private static final int INDEX = HASH + HASH_LENGTH;
+    private static final int VALUE = INDEX + 4;
+    private static final int ADDRESS = VALUE + 8;
+    private static final byte EMPTY = 0;
+    private static final byte FULL = 1;
+    private static final byte DELETED = 2;
+
+    /** 2^24 slots (about 940 MB) per buffer keeps every buffer below the 2 GB limit */
+    private static final int SEGMENT_SHIFT = 24;
+    private static final double MAX_LOAD = 0.75;
+
+    /** backing file, or null for direct memory */
+    private final Path file;
+    private int generation;
+    private ByteBuffer[] segments;
+    /** number of slots, a power of two */
+    private long capacity;
+    private long size;
+    private long deleted;
+
+    private final ArrayList<PublicKey> addresses = new ArrayList<>();
+    private final HashMap<PublicKey, Integer> addressRefs = new HashMap<>();
+    private int[] addressRefCounts = new int[16];
+    private final ArrayDeque<Integer> freeAddressRefs = new ArrayDeque<>();
+
+    /** outer instance needed to create {@code Transaction.Output}s */
+    private final Transaction outputFactory = new Transaction();
+
+    /** Creates an empty pool in direct memory */
+    public OffHeapUTXOPool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** Creates an empty pool in direct memory with room for about {@code expectedSize} UTXOs */
+    public OffHeapUTXOPool(long expectedSize) {
+        file = null;
+        segments = allocate(tableCapacity(expectedSize));
+    }
+
+    /**
+     * Creates an empty pool backed by a memory-mapped file at {@code file}. When the table grows it
+     * is rebuilt in a new file next to it ({@code file.1}, {@code file.2}, ...) and the old one is
+     * deleted.
+     */
+    public OffHeapUTXOPool(Path file, long expectedSize) throws IOException {
+        this.file = file;
+        try {
+            segments = allocate(tableCapacity(expectedSize));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /** Creates a pool in direct memory that is a copy of {@code uPool} */
+    public OffHeapUTXOPool(UTXOPool uPool) {
+        this(uPool.size());
+        for (UTXO ut : uPool.getUTXOView())
+            addUTXO(ut, uPool.getTxOutput(ut));
+    }
+
+    private static long tableCapacity(long expectedSize) {
+        long needed = Math.max(16, (long) (expectedSize / MAX_LOAD) + 1);
+        return Long.highestOneBit(needed - 1) << 1;
+    }
+
+    /** @return a copy in direct memory */
+    public OffHeapUTXOPool copy() {
+        return new OffHeapUTXOPool(this);
+    }
+
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        byte[] txHash = utxo.getTxHash();
+        if (txHash.length != HASH_LENGTH) {
+            super.addUTXO(utxo, txOut);
+            return;
+        }
+        if (size + deleted + 1 > capacity * MAX_LOAD)
+            rehash(size + 1 > capacity * MAX_LOAD / 2 ? capacity * 2 : capacity);
+
+        long found = locate(txHash, utxo.getIndex());
+        int ref = acquireAddress(txOut.address);
+        long slot;
+        if (found >= 0) {
+            slot = found;
+            releaseAddress(segment(slot).getInt(offset(slot) + ADDRESS));
+        } else {
+            slot = -found - 1;
+            ByteBuffer seg = segment(slot);
+            int off = offset(slot);
+            if (seg.get(off + STATE) == DELETED) deleted--;
+            seg.put(off + STATE, FULL);
+            for (int i = 0; i < HASH_LENGTH; i++)
+                seg.put(off + HASH + i, txHash[i]);
+            seg.putInt(off + INDEX, utxo.getIndex());
+            size++;
+        }
+        segment(slot).putDouble(offset(slot) + VALUE, txOut.value);
+        segment(slot).putInt(offset(slot) + ADDRESS, ref);
+    }
+
+    public void removeUTXO(UTXO utxo) {
+        byte[] txHash = utxo.getTxHash();
+        if (txHash.length != HASH_LENGTH) {
+            super.removeUTXO(utxo);
+            return;
+        }
+        long slot = locate(txHash, utxo.getIndex());
+        if (slot < 0) return;
+        ByteBuffer seg = segment(slot);
+        int off = offset(slot);
+        seg.put(off + STATE, DELETED);
+        releaseAddress(seg.getInt(off + ADDRESS));
+        size--;
+        deleted++;
+    }
+
+    public Transaction.Output getTxOutput(UTXO ut) {
+        byte[] txHash = ut.getTxHash();
+        if (txHash.length != HASH_LENGTH) return super.getTxOutput(ut);
+        long slot = locate(txHash, ut.getIndex());
+        if (slot < 0) return null;
+        return readOutput(segment(slot), offset(slot));
+    }
+
+    public boolean contains(UTXO utxo) {
+        byte[] txHash = utxo.getTxHash();
+        if (txHash.length != HASH_LENGTH) return super.contains(utxo);
+        return locate(txHash, utxo.getIndex()) >= 0;
+    }
+
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, size + super.size());
+    }
+
+    public Set<UTXO> getUTXOView() {
+        Set<UTXO> onHeap = super.getUTXOView();
+        return new AbstractSet<UTXO>() {
+            public Iterator<UTXO> iterator() {
+                return new SlotIterator(onHeap.iterator());
+            }
+
+            public int size() {
+                return OffHeapUTXOPool.this.size();
+            }
+
+            public boolean contains(Object o) {
+                return o instanceof UTXO && OffHeapUTXOPool.this.contains((UTXO) o);
+            }
+        };
+    }
+
+    /** Releases the table. A file-backed pool deletes its file. The pool cannot be used afterwards. */
+    public void close() throws IOException {
+        segments = null;
+        if (file != null) Files.deleteIfExists(generationPath(generation));
+    }
+
+    /**
+     * @return the slot holding ({@code txHash}, {@code index}), or {@code -(slot + 1)} for the slot
+     *         where it should be inserted
+     */
+    private long locate(byte[] txHash, int index) {
+        long mask = capacity - 1;
+        long slot = hash(txHash, index) & mask;
+        long firstDeleted = -1;
+        while (true) {
+            ByteBuffer seg = segment(slot);
+            int off = offset(slot);
+            byte state = seg.get(off + STATE);
+            if (state == EMPTY) return -(firstDeleted >= 0 ? firstDeleted : slot) - 1;
+            if (state == DELETED) {
+                if (firstDeleted < 0) firstDeleted = slot;
+            } else if (matches(seg, off, txHash, index)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static boolean matches(ByteBuffer seg, int off, byte[] txHash, int index) {
+        if (seg.getInt(off + INDEX) != index) return false;
+        for (int i = 0; i < HASH_LENGTH; i++)
+            if (seg.get(off + HASH + i) != txHash[i]) return false;
+        return true;
+    }
+
+    /** transaction hashes are already uniformly distributed; mix in the index and finalize */
+    private static long hash(byte[] txHash, int index) {
+        long h = 0;
+        for (int i = 0; i < 8; i++)
+            h = (h << 8) | (txHash[i] & 0xff);
+        h ^= index * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private ByteBuffer segment(long slot) {
+        return segments[(int) (slot >>> SEGMENT_SHIFT)];
+    }
+
+    private static int offset(long slot) {
+        return (int) (slot & ((1 << SEGMENT_SHIFT) - 1)) * SLOT_SIZE;
+    }
+
+    private Transaction.Output readOutput(ByteBuffer seg, int off) {
+        return outputFactory.new Output(seg.getDouble(off + VALUE),
+                addresses.get(seg.getInt(off + ADDRESS)));
+    }
+
+    /** Rebuilds the table with {@code newCapacity} slots, dropping deleted markers */
+    private void rehash(long newCapacity) {
+        ByteBuffer[] old = segments;
+        long oldCapacity = capacity;
+        segments = allocate(newCapacity);
+        byte[] txHash = new byte[HASH_LENGTH];
+        for (long slot = 0; slot < oldCapacity; slot++) {
+            ByteBuffer seg = old[(int) (slot >>> SEGMENT_SHIFT)];
+            int off = offset(slot);
+            if (seg.get(off + STATE) != FULL) continue;
+            for (int i = 0; i < HASH_LENGTH; i++)
+                txHash[i] = seg.get(off + HASH + i);
+            long target = -locate(txHash, seg.getInt(off + INDEX)) - 1;
+            ByteBuffer dst = segment(target);
+            int dstOff = offset(target);
+            for (int i = 0; i < SLOT_SIZE; i++)
+                dst.put(dstOff + i, seg.get(off + i));
+        }
+        deleted = 0;
+        if (file != null) {
+            try {
+                Files.deleteIfExists(generationPath(generation - 1));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /** Allocates a zeroed table of {@code slots} slots and makes it current */
+    private ByteBuffer[] allocate(long slots) {
+        int slotsPerSegment = (int) Math.min(slots, 1L << SEGMENT_SHIFT);
+        ByteBuffer[] table = new ByteBuffer[(int) (slots / slotsPerSegment)];
+        if (file == null) {
+            for (int i = 0; i < table.length; i++)
+                table[i] = ByteBuffer.allocateDirect(slotsPerSegment * SLOT_SIZE);
+        } else {
+            Path path = generationPath(segments == null ? generation : ++generation);
+            long segmentBytes = (long) slotsPerSegment * SLOT_SIZE;
+            try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+                raf.setLength(0);
+                raf.setLength(slots * SLOT_SIZE);
+                FileChannel channel = raf.getChannel();
+                for (int i = 0; i < table.length; i++)
+                    table[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * segmentBytes,
+                            segmentBytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        capacity = slots;
+        segments = table;
+        return table;
+    }
+
+    private Path generationPath(int gen) {
+        return gen == 0 ? file : Paths.get(file.toString() + "." + gen);
+    }
+
+    private int acquireAddress(PublicKey address) {
+        Integer ref = addressRefs.get(address);
+        if (ref == null) {
+            ref = freeAddressRefs.isEmpty() ? addresses.size() : freeAddressRefs.pop();
+            if (ref == addresses.size()) addresses.add(address);
+            else addresses.set(ref, address);
+            if (ref >= addressRefCounts.length)
+                addressRefCounts = Arrays.copyOf(addressRefCounts, addressRefCounts.length * 2);
+            addressRefs.put(address, ref);
+        }
+        addressRefCounts[ref]++;
+        return ref;
+    }
+
+    private void releaseAddress(int ref) {
+        if (--addressRefCounts[ref] > 0) return;
+        addressRefs.remove(addresses.get(ref));
+        addresses.set(ref, null);
+        freeAddressRefs.push(ref);
+    }
+
+    /** iterates the off-heap slots, then the on-heap entries */
+    private class SlotIterator implements Iterator<UTXO> {
+        private final Iterator<UTXO> onHeap;
+        private long slot = -1;
+
+        private SlotIterator(Iterator<UTXO> onHeap) {
+            this.onHeap = onHeap;
+            advance();
+        }
+
+        private void advance() {
+            do {
+                slot++;
+            } while (slot < capacity && segment(slot).get(offset(slot) + STATE) != FULL);
+        }
+
+        public boolean hasNext() {
+            return slot < capacity || onHeap.hasNext();
+        }
+
+        public UTXO next() {
+            if (slot >= capacity) return onHeap.next();
+            ByteBuffer seg = segment(slot);
+            int off = offset(slot);
+            byte[] txHash = new byte[HASH_LENGTH];
+            for (int i = 0; i < HASH_LENGTH; i++)
+                txHash[i] = seg.get(off + HASH + i);
+            UTXO ut = new UTXO(txHash, seg.getInt(off + INDEX));
+            advance();
+            return ut;
+        }
+    }
+}
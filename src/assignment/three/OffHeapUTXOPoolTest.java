@@ -0,0 +1,69 @@
+package assignment.three;
+
+import static assignment.three.Checks.check;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Random;
+
+/*
+ * Sends 100000 random adds, removes and lookups to an OffHeapUTXOPool and to a UTXOPool, first
+ * with the table in memory and then backed by a temporary file. Both start with room for four
+ * entries, so the table grows many times, and now and then a hash is shorter than HASH_LENGTH.
+ * Every lookup must give the same answer and output from both pools. At the end, the pool and
+ * a copy of it must hold exactly the UTXOPool's contents. The optional argument is the random
+ * seed.
+ */
+public class OffHeapUTXOPoolTest {
+
+    public static void main(String[] args) throws IOException {
+        Random random = new Random(Checks.seed(args));
+        PublicKey[] addresses = Checks.newAddresses(random, 3);
+
+        try (OffHeapUTXOPool pool = new OffHeapUTXOPool(4)) {
+            run(pool, random, addresses);
+        }
+        Path file = Files.createTempFile("utxo", ".table");
+        try (OffHeapUTXOPool pool = new OffHeapUTXOPool(file, 4)) {
+            run(pool, random, addresses);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        System.out.println("OffHeapUTXOPoolTest passed");
+    }
+
+    private static void run(OffHeapUTXOPool pool, Random random, PublicKey[] addresses)
+            throws IOException {
+        UTXOPool expected = new UTXOPool();
+        ArrayList<UTXO> known = new ArrayList<>();
+        for (int op = 0; op < 100000; op++) {
+            int kind = random.nextInt(10);
+            if (kind < 5 || known.isEmpty()) {
+                // now and then a short hash, which the table pads
+                byte[] txHash = Checks.randomBytes(random,
+                        random.nextInt(50) == 0 ? 5 : OffHeapUTXOPool.HASH_LENGTH);
+                UTXO utxo = new UTXO(txHash, random.nextInt(3));
+                Transaction.Output output = Checks.newOutput(random.nextInt(100),
+                        addresses[random.nextInt(addresses.length)]);
+                known.add(utxo);
+                pool.addUTXO(utxo, output);
+                expected.addUTXO(utxo, output);
+            } else if (kind < 8) {
+                UTXO utxo = known.get(random.nextInt(known.size()));
+                pool.removeUTXO(utxo);
+                expected.removeUTXO(utxo);
+            } else {
+                UTXO utxo = known.get(random.nextInt(known.size()));
+                check(pool.contains(utxo) == expected.contains(utxo), "contains at " + op);
+                check(Checks.sameOutput(pool.getTxOutput(utxo), expected.getTxOutput(utxo)), "getTxOutput at " + op);
+            }
+        }
+        check(Checks.sameContents(expected, pool), "contents");
+        try (OffHeapUTXOPool copy = pool.copy()) {
+            check(Checks.sameContents(expected, copy), "copy");
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package assignment.three;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocks whose parent is not known yet, indexed by the missing parent's hash so that they can be
+ * connected as soon as it arrives. The pool holds at most {@code capacity} blocks, each for at most
+ * {@code maxAgeMillis}; the oldest are evicted first.
+ */
+public class OrphanBlockPool {
+
+    public static final int DEFAULT_CAPACITY = 100;
+    public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(20);
+
+    private final int capacity;
+    private final long maxAgeNanos;
+    // in arrival order, so the oldest orphan is always first
+    private final LinkedHashMap<ByteArrayWrapper, Orphan> byHash = new LinkedHashMap<>();
+    private final HashMap<ByteArrayWrapper, ArrayList<Orphan>> byParent = new HashMap<>();
+
+    public OrphanBlockPool() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    public OrphanBlockPool(int capacity, long maxAgeMillis) {
+        if (capacity <= 0 || maxAgeMillis <= 0)
+            throw new IllegalArgumentException("capacity and age must be positive");
+        this.capacity = capacity;
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+    }
+
+    /**
+     * Adds {@code block}, whose parent is missing, evicting expired orphans and then the oldest
+     * ones beyond the capacity.
+     *
+     * @return false if it was already in the pool
+     */
+    public boolean add(Block block) {
+        long now = System.nanoTime();
+        evictExpired(now);
+        ByteArrayWrapper hash = new ByteArrayWrapper(block.getHash());
+        if (byHash.containsKey(hash)) return false;
+        Orphan orphan = new Orphan(block, hash, new ByteArrayWrapper(block.getPrevBlockHash()), now);
+        byHash.put(hash, orphan);
+        byParent.computeIfAbsent(orphan.parent, p -> new ArrayList<>(1)).add(orphan);
+        while (byHash.size() > capacity)
+            remove(byHash.values().iterator().next());
+        return true;
+    }
+
+    /** @return true if the block with hash {@code hash} is waiting for its parent */
+    public boolean contains(byte[] hash) {
+        return byHash.containsKey(new ByteArrayWrapper(hash));
+    }
+
+    /** Removes and returns the blocks waiting for the block with hash {@code parentHash} */
+    public List<Block> removeChildren(byte[] parentHash) {
+        ArrayList<Orphan> children = byParent.remove(new ByteArrayWrapper(parentHash));
+        ArrayList<Block> blocks = new ArrayList<>();
+        if (children == null) return blocks;
+        for (Orphan orphan : children) {
+            byHash.remove(orphan.hash);
+            if (System.nanoTime() - orphan.arrival <= maxAgeNanos) blocks.add(orphan.block);
+        }
+        return blocks;
+    }
+
+    public int size() {
+        return byHash.size();
+    }
+
+    private void evictExpired(long now) {
+        Iterator<Orphan> oldest = byHash.values().iterator();
+        while (oldest.hasNext()) {
+            Orphan orphan = oldest.next();
+            if (now - orphan.arrival <= maxAgeNanos) return;
+            oldest.remove();
+            unlinkParent(orphan);
+        }
+    }
+
+    private void remove(Orphan orphan) {
+        byHash.remove(orphan.hash);
+        unlinkParent(orphan);
+    }
+
+    private void unlinkParent(Orphan orphan) {
+        ArrayList<Orphan> siblings = byParent.get(orphan.parent);
+        siblings.remove(orphan);
+        if (siblings.isEmpty()) byParent.remove(orphan.parent);
+    }
+
+    private static final class Orphan {
+        private final Block block;
+        private final ByteArrayWrapper hash;
+        private final ByteArrayWrapper parent;
+        private final long arrival;
+
+        private Orphan(Block block, ByteArrayWrapper hash, ByteArrayWrapper parent, long arrival) {
+            this.block = block;
+            this.hash = hash;
+            this.parent = parent;
+            this.arrival = arrival;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package assignment.three;
+
+import static assignment.three.Checks.check;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Runs 2000 random adds, some of them repeated, and removals of the orphans waiting for one of
+ * four parents against an OrphanBlockPool of capacity 10. The model is a map of the orphans in
+ * arrival order that drops the oldest beyond the capacity. add must return true exactly for a
+ * block the model lacks. removeChildren must return the model's orphans for that parent, in
+ * arrival order. After every operation the size must match and every modelled orphan must be
+ * held. With a 1 ms age limit, an expired orphan must not be returned by removeChildren, and
+ * the next add must drop it. The optional argument is the random seed.
+ */
+public class OrphanBlockPoolTest {
+
+    private static final int CAPACITY = 10;
+
+    public static void main(String[] args) throws InterruptedException {
+        Random random = new Random(Checks.seed(args));
+        PublicKey address = Checks.newKeyPair(random).getPublic();
+        OrphanBlockPool pool = new OrphanBlockPool(CAPACITY, OrphanBlockPool.DEFAULT_MAX_AGE_MILLIS);
+        LinkedHashMap<ByteArrayWrapper, Block> expected = new LinkedHashMap<>();
+        // a few parents, so that several orphans wait for the same one
+        ArrayList<byte[]> parents = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            parents.add(Checks.randomBytes(random, 32));
+        ArrayList<Block> made = new ArrayList<>();
+        for (int op = 0; op < 2000; op++) {
+            if (random.nextInt(4) != 0) {
+                Block block;
+                if (!made.isEmpty() && random.nextInt(5) == 0) {
+                    block = made.get(random.nextInt(made.size()));
+                } else {
+                    block = new Block(parents.get(random.nextInt(parents.size())), address);
+                    block.addTransaction(new Transaction(op, address));
+                    block.finalize();
+                    made.add(block);
+                }
+                ByteArrayWrapper hash = new ByteArrayWrapper(block.getHash());
+                check(pool.add(block) == !expected.containsKey(hash), "add result at " + op);
+                expected.putIfAbsent(hash, block);
+                while (expected.size() > CAPACITY)
+                    expected.remove(expected.keySet().iterator().next());
+            } else {
+                byte[] parent = parents.get(random.nextInt(parents.size()));
+                List<Block> children = pool.removeChildren(parent);
+                ArrayList<Block> waiting = new ArrayList<>();
+                for (Block block : expected.values())
+                    if (Arrays.equals(block.getPrevBlockHash(), parent))
+                        waiting.add(block);
+                check(children.equals(waiting), "children at " + op);
+                for (Block block : waiting)
+                    expected.remove(new ByteArrayWrapper(block.getHash()));
+            }
+            check(pool.size() == expected.size(), "size at " + op);
+            for (ByteArrayWrapper hash : expected.keySet())
+                check(pool.contains(expected.get(hash).getHash()), "contains at " + op);
+        }
+
+        Block first = new Block(parents.get(0), address);
+        first.finalize();
+        Block second = new Block(parents.get(0), Checks.newKeyPair(random).getPublic());
+        second.finalize();
+        OrphanBlockPool quick = new OrphanBlockPool(CAPACITY, 1);
+        quick.add(first);
+        Thread.sleep(5);
+        check(quick.removeChildren(parents.get(0)).isEmpty(), "expired orphan returned");
+        quick.add(first);
+        Thread.sleep(5);
+        quick.add(second);
+        check(quick.size() == 1 && quick.contains(second.getHash()), "expired orphan kept");
+        System.out.println("OrphanBlockPoolTest passed");
+    }
+}
@@ -0,0 +1,65 @@
+package assignment.three;
+
+import static assignment.three.Checks.check;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+/*
+ * In each of 20 rounds, a main chain of 25 blocks, with side branches of one or two blocks near
+ * its end, reaches a new BlockChain in random order. Afterwards, the tip must be the main
+ * chain's last block and no orphan may be left, so every block that waited for its parent must
+ * have connected. Adding any of the blocks again must fail. A block on the pruned genesis block
+ * must be rejected and not kept as an orphan. A block on that rejected block, whose parent is
+ * therefore unknown, must be kept as one. The optional argument is the random seed.
+ */
+public class OrphanBlockTest {
+
+    public static void main(String[] args) {
+        Random random = new Random(Checks.seed(args));
+        PublicKey main = Checks.newKeyPair(random).getPublic();
+        PublicKey side = Checks.newKeyPair(random).getPublic();
+        Block genesis = new Block(null, main);
+        genesis.finalize();
+
+        for (int round = 0; round < 20; round++) {
+            // the main chain, and on some of its last blocks a side branch of one or two blocks
+            // that stays shorter than it
+            ArrayList<Block> mainChain = new ArrayList<>();
+            ArrayList<Block> all = new ArrayList<>();
+            Block tip = genesis;
+            for (int i = 0; i < 25; i++) {
+                tip = Checks.newBlock(tip, main);
+                mainChain.add(tip);
+                all.add(tip);
+            }
+            for (int i = mainChain.size() - 8; i < mainChain.size() - 3; i++) {
+                if (random.nextBoolean())
+                    continue;
+                Block branch = Checks.newBlock(mainChain.get(i), side);
+                all.add(branch);
+                if (random.nextBoolean())
+                    all.add(Checks.newBlock(branch, main));
+            }
+
+            Collections.shuffle(all, random);
+            BlockChain chain = new BlockChain(genesis);
+            for (Block block : all)
+                chain.addBlock(block);
+            check(Arrays.equals(chain.getMaxHeightBlock().getHash(), tip.getHash()), "tip in round " + round);
+            check(chain.getOrphanCount() == 0, "orphans left in round " + round);
+            for (Block block : all)
+                check(!chain.addBlock(block), "duplicate accepted in round " + round);
+
+            // genesis is pruned once the chain is CUT_OFF_AGE blocks past it
+            Block stale = Checks.newBlock(genesis, side);
+            check(!chain.addBlock(stale) && chain.getOrphanCount() == 0, "block on a pruned one kept");
+            Block unknownParent = Checks.newBlock(stale, main);
+            check(!chain.addBlock(unknownParent) && chain.getOrphanCount() == 1, "orphan not kept");
+        }
+        System.out.println("OrphanBlockTest passed");
+    }
+}
@@ -0,0 +1,425 @@
+package assignment.three;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * A hash map stored in a persistent hash array mapped trie. {@link #copy()} takes O(1) time and
+ * memory because the copy shares the trie with the original; a later {@code put} or
+ * {@code remove} on either map copies only the path from the root to the changed entry (at most
+ * seven nodes). {@link PersistentUTXOPool} and {@link TransactionPool} keep their entries in it.
+ *
+ * <p>Each map object is mutable and not thread-safe; the trie nodes themselves are immutable and
+ * may be shared across threads. Keys and values must not be null.
+ */
+final class PersistentMap<K, V> {
+
+    // below this many entries a parallel build costs more than it saves
+    private static final int PARALLEL_BUILD_THRESHOLD = 1 << 12;
+
+    private Node root;
+    private int count;
+
+    PersistentMap() {
+        this(BitmapNode.EMPTY, 0);
+    }
+
+    private PersistentMap(Node root, int count) {
+        this.root = root;
+        this.count = count;
+    }
+
+    /**
+     * Creates a map that maps each of {@code keys} to the value at the same index of
+     * {@code values}; a later duplicate replaces an earlier one. The trie is built bottom up, its
+     * 32 top-level branches in parallel, instead of by copying a path per entry.
+     */
+    static <K, V> PersistentMap<K, V> build(K[] keys, V[] values) {
+        if (keys.length != values.length)
+            throw new IllegalArgumentException("keys and values differ in length");
+        Entry[] entries = new Entry[keys.length];
+        IntStream.range(0, entries.length).parallel()
+                .forEach(i -> entries[i] = new Entry(keys[i], values[i]));
+        int[] duplicates = new int[1];
+        BitmapNode root = BitmapNode.build(entries, new Entry[entries.length], 0, entries.length, 0,
+                duplicates, entries.length >= PARALLEL_BUILD_THRESHOLD);
+        return new PersistentMap<K, V>(root, entries.length - duplicates[0]);
+    }
+
+    /** @return an independent map with the same contents, sharing this map's trie */
+    PersistentMap<K, V> copy() {
+        return new PersistentMap<K, V>(root, count);
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(Object key) {
+        return (V) root.get(key, hash(key), 0);
+    }
+
+    boolean containsKey(Object key) {
+        return root.get(key, hash(key), 0) != null;
+    }
+
+    /**
+     * Maps {@code key} to {@code value}
+     *
+     * @return the value {@code key} mapped to before, or null
+     */
+    @SuppressWarnings("unchecked")
+    V put(K key, V value) {
+        Entry[] previous = new Entry[1];
+        root = root.put(new Entry(key, value), 0, previous);
+        if (previous[0] == null) count++;
+        return previous[0] == null ? null : (V) previous[0].value;
+    }
+
+    /** @return the value {@code key} mapped to, or null if it was absent */
+    @SuppressWarnings("unchecked")
+    V remove(Object key) {
+        Entry[] removed = new Entry[1];
+        Node newRoot = root.remove(key, hash(key), 0, removed);
+        if (removed[0] == null) return null;
+        root = newRoot == null ? BitmapNode.EMPTY : newRoot;
+        count--;
+        return (V) removed[0].value;
+    }
+
+    int size() {
+        return count;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    /** Calls {@code action} for every entry, in trie order */
+    @SuppressWarnings("unchecked")
+    void forEach(BiConsumer<? super K, ? super V> action) {
+        root.forEach((BiConsumer<Object, Object>) action);
+    }
+
+    /** @return an iterator over the keys of the trie as it is now, unaffected by later changes */
+    Iterator<K> keyIterator() {
+        return new TrieIterator<K>(root);
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Entry {
+        private final Object key;
+        private final Object value;
+        private final int hash;
+
+        private Entry(Object key, Object value) {
+            this.key = key;
+            this.value = value;
+            this.hash = PersistentMap.hash(key);
+        }
+    }
+
+    private static abstract class Node {
+        abstract Object get(Object key, int hash, int shift);
+
+        /**
+         * @return the node with {@code entry} added or replaced; this node if nothing changed.
+         *         Sets {@code previous[0]} to the entry for the same key, if there was one.
+         */
+        abstract Node put(Entry entry, int shift, Entry[] previous);
+
+        /**
+         * @return the node without {@code key}, null if it became empty, this if key was absent.
+         *         Sets {@code removed[0]} to the entry removed.
+         */
+        abstract Node remove(Object key, int hash, int shift, Entry[] removed);
+
+        /** @return the only entry of this node if it holds exactly one entry and no children */
+        abstract Entry singleEntry();
+
+        abstract void forEach(BiConsumer<Object, Object> action);
+    }
+
+    /** 32-way branch; {@code slots} holds an {@link Entry} or a child {@link Node} per set bit */
+    private static final class BitmapNode extends Node {
+        private static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        private final int bitmap;
+        private final Object[] slots;
+
+        private BitmapNode(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        Object get(Object key, int hash, int shift) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) return null;
+            Object slot = slots[Integer.bitCount(bitmap & (bit - 1))];
+            if (slot instanceof Entry) {
+                Entry e = (Entry) slot;
+                return e.key.equals(key) ? e.value : null;
+            }
+            return ((Node) slot).get(key, hash, shift + 5);
+        }
+
+        Node put(Entry entry, int shift, Entry[] previous) {
+            int bit = 1 << ((entry.hash >>> shift) & 31);
+            int idx = Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0) {
+                Object[] newSlots = new Object[slots.length + 1];
+                System.arraycopy(slots, 0, newSlots, 0, idx);
+                newSlots[idx] = entry;
+                System.arraycopy(slots, idx, newSlots, idx + 1, slots.length - idx);
+                return new BitmapNode(bitmap | bit, newSlots);
+            }
+            Object slot = slots[idx];
+            Object replacement;
+            if (slot instanceof Entry) {
+                Entry existing = (Entry) slot;
+                if (existing.key.equals(entry.key)) {
+                    previous[0] = existing;
+                    if (existing.value == entry.value) return this;
+                    replacement = entry;
+                } else {
+                    replacement = merge(existing, entry, shift + 5);
+                }
+            } else {
+                Node child = ((Node) slot).put(entry, shift + 5, previous);
+                if (child == slot) return this;
+                replacement = child;
+            }
+            Object[] newSlots = slots.clone();
+            newSlots[idx] = replacement;
+            return new BitmapNode(bitmap, newSlots);
+        }
+
+        Node remove(Object key, int hash, int shift, Entry[] removed) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) return this;
+            int idx = Integer.bitCount(bitmap & (bit - 1));
+            Object slot = slots[idx];
+            Object replacement;
+            if (slot instanceof Entry) {
+                if (!((Entry) slot).key.equals(key)) return this;
+                removed[0] = (Entry) slot;
+                replacement = null;
+            } else {
+                Node child = ((Node) slot).remove(key, hash, shift + 5, removed);
+                if (child == slot) return this;
+                // pull a lone entry up so that the trie stays as shallow as possible
+                replacement = child == null ? null
+                        : child.singleEntry() != null ? child.singleEntry() : child;
+            }
+            if (replacement != null) {
+                Object[] newSlots = slots.clone();
+                newSlots[idx] = replacement;
+                return new BitmapNode(bitmap, newSlots);
+            }
+            if (slots.length == 1) return null;
+            Object[] newSlots = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, newSlots, 0, idx);
+            System.arraycopy(slots, idx + 1, newSlots, idx, slots.length - idx - 1);
+            return new BitmapNode(bitmap & ~bit, newSlots);
+        }
+
+        Entry singleEntry() {
+            return slots.length == 1 && slots[0] instanceof Entry ? (Entry) slots[0] : null;
+        }
+
+        void forEach(BiConsumer<Object, Object> action) {
+            for (Object slot : slots) {
+                if (slot instanceof Entry) action.accept(((Entry) slot).key, ((Entry) slot).value);
+                else ((Node) slot).forEach(action);
+            }
+        }
+
+        /**
+         * Builds the branch at depth {@code shift} for {@code entries[from, to)}, which share
+         * the hash bits above it, using the same range of {@code scratch}. Adds the number of
+         * duplicate keys dropped to {@code duplicates[0]}.
+         */
+        private static BitmapNode build(Entry[] entries, Entry[] scratch, int from, int to,
+                int shift, int[] duplicates, boolean parallel) {
+            if (from == to) return EMPTY;
+            // a stable counting sort on this level's five bits keeps later duplicates later
+            int[] starts = new int[33];
+            for (int i = from; i < to; i++)
+                starts[((entries[i].hash >>> shift) & 31) + 1]++;
+            int bitmap = 0;
+            for (int b = 0; b < 32; b++) {
+                if (starts[b + 1] != 0) bitmap |= 1 << b;
+                starts[b + 1] += starts[b];
+            }
+            int[] next = starts.clone();
+            for (int i = from; i < to; i++)
+                scratch[from + next[(entries[i].hash >>> shift) & 31]++] = entries[i];
+            System.arraycopy(scratch, from, entries, from, to - from);
+
+            Object[] slots = new Object[Integer.bitCount(bitmap)];
+            int[] buckets = new int[slots.length];
+            for (int b = 0, k = 0; b < 32; b++)
+                if ((bitmap & (1 << b)) != 0) buckets[k++] = b;
+            if (parallel) {
+                int[] dropped = new int[slots.length];
+                IntStream.range(0, slots.length).parallel().forEach(k -> {
+                    int[] d = new int[1];
+                    slots[k] = buildSlot(entries, scratch, from + starts[buckets[k]],
+                            from + starts[buckets[k] + 1], shift + 5, d);
+                    dropped[k] = d[0];
+                });
+                for (int d : dropped)
+                    duplicates[0] += d;
+            } else {
+                for (int k = 0; k < slots.length; k++)
+                    slots[k] = buildSlot(entries, scratch, from + starts[buckets[k]],
+                            from + starts[buckets[k] + 1], shift + 5, duplicates);
+            }
+            return new BitmapNode(bitmap, slots);
+        }
+
+        /** @return what a slot holding {@code entries[from, to)} at depth {@code shift} holds */
+        private static Object buildSlot(Entry[] entries, Entry[] scratch, int from, int to,
+                int shift, int[] duplicates) {
+            if (to - from == 1) return entries[from];
+            boolean sameHash = true;
+            for (int i = from + 1; i < to && sameHash; i++)
+                sameHash = entries[i].hash == entries[from].hash;
+            if (!sameHash) return build(entries, scratch, from, to, shift, duplicates, false);
+            // equal hashes down to the last bit: keep the last entry for each key
+            ArrayList<Entry> distinct = new ArrayList<>(to - from);
+            for (int i = to - 1; i >= from; i--) {
+                boolean seen = false;
+                for (Entry e : distinct)
+                    seen |= e.key.equals(entries[i].key);
+                if (!seen) distinct.add(entries[i]);
+            }
+            duplicates[0] += to - from - distinct.size();
+            if (distinct.size() == 1) return distinct.get(0);
+            Collections.reverse(distinct);
+            return new CollisionNode(entries[from].hash, distinct.toArray(new Entry[0]));
+        }
+
+        private static Node merge(Entry a, Entry b, int shift) {
+            if (a.hash == b.hash) return new CollisionNode(a.hash, new Entry[] { a, b });
+            int bitA = 1 << ((a.hash >>> shift) & 31);
+            int bitB = 1 << ((b.hash >>> shift) & 31);
+            if (bitA == bitB) return new BitmapNode(bitA, new Object[] { merge(a, b, shift + 5) });
+            Object[] pair = Integer.compareUnsigned(bitA, bitB) < 0
+                    ? new Object[] { a, b } : new Object[] { b, a };
+            return new BitmapNode(bitA | bitB, pair);
+        }
+    }
+
+    /** entries whose full 32-bit hashes are equal */
+    private static final class CollisionNode extends Node {
+        private final int hash;
+        private final Entry[] entries;
+
+        private CollisionNode(int hash, Entry[] entries) {
+            this.hash = hash;
+            this.entries = entries;
+        }
+
+        Object get(Object key, int hash, int shift) {
+            for (Entry e : entries)
+                if (e.key.equals(key)) return e.value;
+            return null;
+        }
+
+        Node put(Entry entry, int shift, Entry[] previous) {
+            if (entry.hash != hash) {
+                // a different hash reached this depth: split into a branch above this node
+                BitmapNode branch = new BitmapNode(1 << ((hash >>> shift) & 31), new Object[] { this });
+                return branch.put(entry, shift, previous);
+            }
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i].key.equals(entry.key)) {
+                    previous[0] = entries[i];
+                    if (entries[i].value == entry.value) return this;
+                    Entry[] newEntries = entries.clone();
+                    newEntries[i] = entry;
+                    return new CollisionNode(hash, newEntries);
+                }
+            }
+            Entry[] newEntries = new Entry[entries.length + 1];
+            System.arraycopy(entries, 0, newEntries, 0, entries.length);
+            newEntries[entries.length] = entry;
+            return new CollisionNode(hash, newEntries);
+        }
+
+        Node remove(Object key, int hash, int shift, Entry[] removed) {
+            for (int i = 0; i < entries.length; i++) {
+                if (!entries[i].key.equals(key)) continue;
+                removed[0] = entries[i];
+                if (entries.length == 1) return null;
+                Entry[] newEntries = new Entry[entries.length - 1];
+                System.arraycopy(entries, 0, newEntries, 0, i);
+                System.arraycopy(entries, i + 1, newEntries, i, entries.length - i - 1);
+                return new CollisionNode(hash, newEntries);
+            }
+            return this;
+        }
+
+        Entry singleEntry() {
+            return entries.length == 1 ? entries[0] : null;
+        }
+
+        void forEach(BiConsumer<Object, Object> action) {
+            for (Entry e : entries)
+                action.accept(e.key, e.value);
+        }
+    }
+
+    /** depth-first walk over the keys of an immutable trie */
+    private static final class TrieIterator<K> implements Iterator<K> {
+        private final ArrayDeque<Object[]> stack = new ArrayDeque<>();
+        private final ArrayDeque<Integer> positions = new ArrayDeque<>();
+        private Entry next;
+
+        private TrieIterator(Node root) {
+            push(root);
+            advance();
+        }
+
+        private void push(Node node) {
+            stack.push(node instanceof BitmapNode ? ((BitmapNode) node).slots
+                    : ((CollisionNode) node).entries);
+            positions.push(0);
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && !stack.isEmpty()) {
+                Object[] slots = stack.peek();
+                int pos = positions.pop();
+                if (pos == slots.length) {
+                    stack.pop();
+                    continue;
+                }
+                positions.push(pos + 1);
+                Object slot = slots[pos];
+                if (slot instanceof Entry) next = (Entry) slot;
+                else push((Node) slot);
+            }
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @SuppressWarnings("unchecked")
+        public K next() {
+            if (next == null) throw new NoSuchElementException();
+            K key = (K) next.key;
+            advance();
+            return key;
+        }
+    }
+}
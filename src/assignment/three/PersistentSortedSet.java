@@ -0,0 +1,167 @@
+package assignment.three;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A sorted set stored in a persistent treap, the ordered companion of {@link PersistentMap}.
+ * {@link #copy()} takes O(1) time and memory because the copy shares the tree with the original;
+ * a later {@code add} or {@code remove} on either set copies only the nodes on the path to the
+ * changed element, O(log n) of them in expectation.
+ *
+ * <p>Each set object is mutable and not thread-safe; the tree nodes themselves are immutable and
+ * may be shared across threads. Elements must not be null and are compared by
+ * {@link Comparable#compareTo}, which must be consistent with equals.
+ */
+final class PersistentSortedSet<E extends Comparable<? super E>> {
+
+    private Node<E> root;
+    private int count;
+
+    PersistentSortedSet() {
+        this(null, 0);
+    }
+
+    private PersistentSortedSet(Node<E> root, int count) {
+        this.root = root;
+        this.count = count;
+    }
+
+    /** @return an independent set with the same elements, sharing this set's tree */
+    PersistentSortedSet<E> copy() {
+        return new PersistentSortedSet<E>(root, count);
+    }
+
+    /** @return true if {@code e} was not in the set */
+    boolean add(E e) {
+        if (contains(e)) return false;
+        root = insert(root, new Node<E>(e, ThreadLocalRandom.current().nextInt(), null, null));
+        count++;
+        return true;
+    }
+
+    /** @return true if {@code e} was in the set */
+    boolean remove(E e) {
+        if (!contains(e)) return false;
+        root = delete(root, e);
+        count--;
+        return true;
+    }
+
+    boolean contains(E e) {
+        Node<E> n = root;
+        while (n != null) {
+            int c = e.compareTo(n.value);
+            if (c == 0) return true;
+            n = c < 0 ? n.left : n.right;
+        }
+        return false;
+    }
+
+    /** @return the lowest element */
+    E first() {
+        if (root == null) throw new NoSuchElementException();
+        Node<E> n = root;
+        while (n.left != null)
+            n = n.left;
+        return n.value;
+    }
+
+    int size() {
+        return count;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    /** @return an iterator from the highest element to the lowest, unaffected by later changes */
+    Iterator<E> descendingIterator() {
+        return new DescendingIterator<E>(root);
+    }
+
+    private static <E extends Comparable<? super E>> Node<E> insert(Node<E> n, Node<E> node) {
+        if (n == null) return node;
+        if (node.priority > n.priority) {
+            // node becomes the root of this subtree: split the subtree around it
+            Node<E>[] parts = split(n, node.value);
+            return new Node<E>(node.value, node.priority, parts[0], parts[1]);
+        }
+        if (node.value.compareTo(n.value) < 0)
+            return new Node<E>(n.value, n.priority, insert(n.left, node), n.right);
+        return new Node<E>(n.value, n.priority, n.left, insert(n.right, node));
+    }
+
+    /** @return the subtree below {@code n} without {@code e}, which it contains */
+    private static <E extends Comparable<? super E>> Node<E> delete(Node<E> n, E e) {
+        int c = e.compareTo(n.value);
+        if (c == 0) return join(n.left, n.right);
+        if (c < 0) return new Node<E>(n.value, n.priority, delete(n.left, e), n.right);
+        return new Node<E>(n.value, n.priority, n.left, delete(n.right, e));
+    }
+
+    /** @return the elements of {@code n} below {@code key} and those above it, in new paths */
+    @SuppressWarnings("unchecked")
+    private static <E extends Comparable<? super E>> Node<E>[] split(Node<E> n, E key) {
+        if (n == null) return (Node<E>[]) new Node<?>[2];
+        if (key.compareTo(n.value) < 0) {
+            Node<E>[] parts = split(n.left, key);
+            parts[1] = new Node<E>(n.value, n.priority, parts[1], n.right);
+            return parts;
+        }
+        Node<E>[] parts = split(n.right, key);
+        parts[0] = new Node<E>(n.value, n.priority, n.left, parts[0]);
+        return parts;
+    }
+
+    /** @return the union of {@code low} and {@code high}, whose elements are all above low's */
+    private static <E extends Comparable<? super E>> Node<E> join(Node<E> low, Node<E> high) {
+        if (low == null) return high;
+        if (high == null) return low;
+        if (low.priority > high.priority)
+            return new Node<E>(low.value, low.priority, low.left, join(low.right, high));
+        return new Node<E>(high.value, high.priority, join(low, high.left), high.right);
+    }
+
+    /** a binary search tree by value and a heap by priority */
+    private static final class Node<E> {
+        private final E value;
+        private final int priority;
+        private final Node<E> left;
+        private final Node<E> right;
+
+        private Node(E value, int priority, Node<E> left, Node<E> right) {
+            this.value = value;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    /** reverse in-order walk over an immutable tree */
+    private static final class DescendingIterator<E> implements Iterator<E> {
+        private final ArrayDeque<Node<E>> stack = new ArrayDeque<>();
+
+        private DescendingIterator(Node<E> root) {
+            pushRight(root);
+        }
+
+        private void pushRight(Node<E> n) {
+            for (; n != null; n = n.right)
+                stack.push(n);
+        }
+
+        public boolean hasNext() {
+            return !stack.isEmpty();
+        }
+
+        public E next() {
+            if (stack.isEmpty()) throw new NoSuchElementException();
+            Node<E> n = stack.pop();
+            pushRight(n.left);
+            return n.value;
+        }
+    }
+}
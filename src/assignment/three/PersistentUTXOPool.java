@@ -0,0 +1,107 @@
+package assignment.three;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * A {@link UTXOPool} stored in a {@link PersistentMap}, a persistent hash array mapped trie.
+ * {@link #copy()} takes O(1) time and memory because the copy shares the trie with the original;
+ * a later {@code addUTXO} or {@code removeUTXO} on either pool copies only the path from the root
+ * to the changed entry (at most seven nodes). Keeping one copy per block therefore costs memory in
+ * proportion to the outputs each block creates and spends, not to the size of the UTXO set.
+ *
+ * <p>The pool allocates none of {@link UTXOPool}'s map and overrides every public method.
+ *
+ * <p>Each pool object is still mutable and, like {@link UTXOPool}, not thread-safe; the trie nodes
+ * themselves are immutable and may be shared across threads.
+ */
+public class PersistentUTXOPool extends UTXOPool {
+
+    private final PersistentMap<UTXO, Transaction.Output> map;
+
+    /** Creates a new empty pool */
+    public PersistentUTXOPool() {
+        this(new PersistentMap<UTXO, Transaction.Output>());
+    }
+
+    /** Creates a pool with the contents of {@code uPool}; O(1) if it is also persistent */
+    public PersistentUTXOPool(UTXOPool uPool) {
+        this(uPool instanceof PersistentUTXOPool ? ((PersistentUTXOPool) uPool).map.copy()
+                : new PersistentMap<UTXO, Transaction.Output>());
+        if (!(uPool instanceof PersistentUTXOPool)) {
+            for (UTXO ut : uPool.getUTXOView())
+                addUTXO(ut, uPool.getTxOutput(ut));
+        }
+    }
+
+    /**
+     * Creates a pool that maps each of {@code utxos} to the output at the same index of
+     * {@code outputs}; a later duplicate replaces an earlier one. See
+     * {@link PersistentMap#build(Object[], Object[])}.
+     */
+    public static PersistentUTXOPool build(UTXO[] utxos, Transaction.Output[] outputs) {
+        if (utxos.length != outputs.length)
+            throw new IllegalArgumentException("utxos and outputs differ in length");
+        return new PersistentUTXOPool(PersistentMap.build(utxos, outputs));
+    }
+
+    private PersistentUTXOPool(PersistentMap<UTXO, Transaction.Output> map) {
+        super(false);
+        this.map = map;
+    }
+
+    /** @return an independent pool with the same contents, sharing this pool's trie */
+    public PersistentUTXOPool copy() {
+        return new PersistentUTXOPool(map.copy());
+    }
+
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        map.put(utxo, txOut);
+    }
+
+    public void removeUTXO(UTXO utxo) {
+        map.remove(utxo);
+    }
+
+    public Transaction.Output getTxOutput(UTXO ut) {
+        return map.get(ut);
+    }
+
+    public boolean contains(UTXO utxo) {
+        return map.containsKey(utxo);
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public Set<UTXO> getUTXOView() {
+        return new AbstractSet<UTXO>() {
+            public Iterator<UTXO> iterator() {
+                // iterates the trie as it was when the iterator was created
+                return map.keyIterator();
+            }
+
+            public int size() {
+                return map.size();
+            }
+
+            public boolean contains(Object o) {
+                return map.containsKey(o);
+            }
+        };
+    }
+
+    public Stream<UTXO> stream() {
+        return getUTXOView().stream();
+    }
+
+    public ArrayList<UTXO> getAllUTXO() {
+        ArrayList<UTXO> all = new ArrayList<UTXO>(map.size());
+        all.addAll(getUTXOView());
+        return all;
+    }
+}
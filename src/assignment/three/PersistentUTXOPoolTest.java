@@ -0,0 +1,95 @@
+package assignment.three;
+
+import static assignment.three.Checks.check;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Random;
+
+/*
+ * Runs 200000 random operations over up to 30 PersistentUTXOPools, each paired with a UTXOPool.
+ * The operations are adds, removes, lookups, and copies that start a new pair. Since the pools
+ * share tries with their copies, a change that leaked into another pool would show up as a
+ * mismatch. A quarter of the transaction hashes are one byte long, so hashes collide. Every
+ * lookup must return the UTXOPool's answer and the very same output object. At the end, each
+ * pool must hold its UTXOPool's contents. A pool made by build must hold what adding the same
+ * entries in order would give, with the last of any duplicates winning, and must still match
+ * after as many random adds and removes. Such pools are built from up to 200 entries, and from
+ * up to 50000, which mostly takes the parallel build. The optional argument is the random seed.
+ */
+public class PersistentUTXOPoolTest {
+
+    public static void main(String[] args) {
+        Random random = new Random(Checks.seed(args));
+        PublicKey address = Checks.newKeyPair(random).getPublic();
+
+        ArrayList<UTXOPool> expected = new ArrayList<>();
+        ArrayList<PersistentUTXOPool> pools = new ArrayList<>();
+        expected.add(new UTXOPool());
+        pools.add(new PersistentUTXOPool());
+        ArrayList<UTXO> known = new ArrayList<>();
+        for (int op = 0; op < 200000; op++) {
+            int which = random.nextInt(pools.size());
+            UTXOPool reference = expected.get(which);
+            PersistentUTXOPool pool = pools.get(which);
+            int kind = random.nextInt(20);
+            if (kind == 0 && pools.size() < 30) {
+                expected.add(new UTXOPool(reference));
+                pools.add(pool.copy());
+            } else if (kind < 10 || known.isEmpty()) {
+                UTXO utxo = new UTXO(Checks.randomBytes(random, random.nextInt(4) == 0 ? 1 : 32),
+                        random.nextInt(4));
+                Transaction.Output output = Checks.newOutput(random.nextInt(100), address);
+                known.add(utxo);
+                pool.addUTXO(utxo, output);
+                reference.addUTXO(utxo, output);
+            } else if (kind < 16) {
+                UTXO utxo = known.get(random.nextInt(known.size()));
+                pool.removeUTXO(utxo);
+                reference.removeUTXO(utxo);
+            } else {
+                UTXO utxo = known.get(random.nextInt(known.size()));
+                check(pool.contains(utxo) == reference.contains(utxo), "contains at " + op);
+                check(pool.getTxOutput(utxo) == reference.getTxOutput(utxo), "getTxOutput at " + op);
+            }
+        }
+        for (int i = 0; i < pools.size(); i++)
+            check(Checks.sameContents(expected.get(i), pools.get(i)), "contents of copy " + i);
+
+        for (int round = 0; round < 40; round++)
+            checkBuild(random, address, round < 30 ? random.nextInt(200) : random.nextInt(50000));
+        System.out.println("PersistentUTXOPoolTest passed, " + pools.size() + " copies");
+    }
+
+    /** builds a pool from {@code size} random entries, some of them for the same UTXO */
+    private static void checkBuild(Random random, PublicKey address, int size) {
+        UTXO[] utxos = new UTXO[size];
+        Transaction.Output[] outs = new Transaction.Output[size];
+        UTXOPool reference = new UTXOPool();
+        for (int i = 0; i < size; i++) {
+            if (i > 0 && random.nextInt(10) == 0) {
+                utxos[i] = utxos[random.nextInt(i)];
+            } else {
+                utxos[i] = new UTXO(Checks.randomBytes(random, random.nextInt(4) == 0 ? 1 : 32),
+                        random.nextInt(4));
+            }
+            outs[i] = Checks.newOutput(random.nextInt(100), address);
+            // the last entry for a UTXO wins
+            reference.addUTXO(utxos[i], outs[i]);
+        }
+        PersistentUTXOPool pool = PersistentUTXOPool.build(utxos, outs);
+        check(Checks.sameContents(reference, pool), "contents of a pool of " + size + " built");
+        for (int op = 0; op < size; op++) {
+            UTXO utxo = utxos[random.nextInt(size)];
+            if (random.nextBoolean()) {
+                pool.removeUTXO(utxo);
+                reference.removeUTXO(utxo);
+            } else {
+                Transaction.Output output = Checks.newOutput(random.nextInt(100), address);
+                pool.addUTXO(utxo, output);
+                reference.addUTXO(utxo, output);
+            }
+        }
+        check(Checks.sameContents(reference, pool), "contents of a pool of " + size + " built and changed");
+    }
+}
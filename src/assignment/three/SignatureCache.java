@@ -0,0 +1,167 @@
+package assignment.three;
+
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, thread-safe record of input signatures that have already been verified, so that a
+ * transaction seen in the mempool, in a block template and again in one or more blocks is only
+ * verified once.
+ *
+ * <p>An entry is keyed by the hash of the transaction's content, the input index and the address
+ * the input was verified against. The content hash covers the signature and everything it signs;
+ * the address is part of the key because the output an input spends is only known through its
+ * {@code prevTxHash}, which different forks need not agree on.
+ */
+public class SignatureCache {
+
+    public static final int DEFAULT_CAPACITY = 100000;
+
+    public enum EvictionPolicy {
+        /** evict the least recently used entry; every hit takes the cache lock */
+        LRU,
+        /** second-chance eviction; hits are lock-free and only insertions lock */
+        CLOCK
+    }
+
+    private final Store store;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /** Creates a CLOCK cache of {@link #DEFAULT_CAPACITY} entries */
+    public SignatureCache() {
+        this(DEFAULT_CAPACITY, EvictionPolicy.CLOCK);
+    }
+
+    public SignatureCache(int capacity, EvictionPolicy policy) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        store = policy == EvictionPolicy.LRU ? new LruStore(capacity) : new ClockStore(capacity);
+    }
+
+    /**
+     * @return true if input {@code inputIndex} of the transaction with content hash {@code txHash}
+     *         has already been verified against {@code address}
+     */
+    public boolean contains(byte[] txHash, int inputIndex, PublicKey address) {
+        boolean hit = store.contains(new Key(txHash, inputIndex, address));
+        if (hit) hits.increment();
+        else misses.increment();
+        return hit;
+    }
+
+    /** Records that input {@code inputIndex} verified successfully against {@code address} */
+    public void add(byte[] txHash, int inputIndex, PublicKey address) {
+        store.add(new Key(txHash.clone(), inputIndex, address));
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int size() {
+        return store.size();
+    }
+
+    private static final class Key {
+        private final byte[] txHash;
+        private final int inputIndex;
+        private final PublicKey address;
+        private final int hash;
+
+        private Key(byte[] txHash, int inputIndex, PublicKey address) {
+            this.txHash = txHash;
+            this.inputIndex = inputIndex;
+            this.address = address;
+            this.hash = (Arrays.hashCode(txHash) * 31 + inputIndex) * 31 + address.hashCode();
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) return false;
+            Key key = (Key) other;
+            return hash == key.hash && inputIndex == key.inputIndex
+                    && Arrays.equals(txHash, key.txHash) && address.equals(key.address);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private interface Store {
+        boolean contains(Key key);
+
+        void add(Key key);
+
+        int size();
+    }
+
+    private static class LruStore implements Store {
+        private final LinkedHashMap<Key, Boolean> entries;
+
+        private LruStore(int capacity) {
+            entries = new LinkedHashMap<Key, Boolean>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        public synchronized boolean contains(Key key) {
+            return entries.get(key) != null;
+        }
+
+        public synchronized void add(Key key) {
+            entries.put(key, Boolean.TRUE);
+        }
+
+        public synchronized int size() {
+            return entries.size();
+        }
+    }
+
+    private static class ClockStore implements Store {
+        /** key -> slot */
+        private final ConcurrentHashMap<Key, Integer> index;
+        private final Key[] slots;
+        private final AtomicIntegerArray referenced;
+        private int hand;
+
+        private ClockStore(int capacity) {
+            index = new ConcurrentHashMap<>(capacity);
+            slots = new Key[capacity];
+            referenced = new AtomicIntegerArray(capacity);
+        }
+
+        public boolean contains(Key key) {
+            Integer slot = index.get(key);
+            if (slot == null) return false;
+            referenced.lazySet(slot, 1);
+            return true;
+        }
+
+        public synchronized void add(Key key) {
+            if (index.containsKey(key)) return;
+            // sweep, giving every recently referenced entry a second chance
+            while (slots[hand] != null && referenced.getAndSet(hand, 0) == 1)
+                hand = (hand + 1) % slots.length;
+            if (slots[hand] != null) index.remove(slots[hand]);
+            slots[hand] = key;
+            referenced.set(hand, 0);
+            index.put(key, hand);
+            hand = (hand + 1) % slots.length;
+        }
+
+        public int size() {
+            return index.size();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package assignment.three;
+
+import static assignment.three.Checks.check;
+
+import java.security.PublicKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/*
+ * Exercises SignatureCache under both eviction policies. Over 5000 random adds and lookups of a
+ * key space twice the capacity, the size must stay within the capacity, a key must be found
+ * right after it is added, and every lookup must count as exactly one hit or miss. Under LRU,
+ * each lookup must also hit exactly when an access-ordered LinkedHashMap of the same capacity
+ * holds the key. Then, in a full cache where every entry but one has just been looked up,
+ * adding an entry must evict that one and keep the others. The optional argument is the random
+ * seed.
+ */
+public class SignatureCacheTest {
+
+    private static final int CAPACITY = 32;
+
+    public static void main(String[] args) {
+        Random random = new Random(Checks.seed(args));
+        PublicKey[] addresses = Checks.newAddresses(random, 2);
+        for (SignatureCache.EvictionPolicy policy : SignatureCache.EvictionPolicy.values()) {
+            randomOperations(policy, random, addresses);
+            secondChance(policy, random, addresses[0]);
+        }
+        System.out.println("SignatureCacheTest passed");
+    }
+
+    private static void randomOperations(SignatureCache.EvictionPolicy policy, Random random,
+            PublicKey[] addresses) {
+        SignatureCache cache = new SignatureCache(CAPACITY, policy);
+        LinkedHashMap<Integer, Boolean> lru = new LinkedHashMap<Integer, Boolean>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+                return size() > CAPACITY;
+            }
+        };
+        long hits = 0;
+        long lookups = 0;
+        for (int op = 0; op < 5000; op++) {
+            // the key space: 2 * CAPACITY entries over a few transactions, inputs and addresses
+            int key = random.nextInt(2 * CAPACITY);
+            byte[] txHash = txHash(key / 8);
+            int input = key / 2 % 4;
+            PublicKey address = addresses[key % 2];
+            if (random.nextBoolean()) {
+                cache.add(txHash, input, address);
+                lru.put(key, Boolean.TRUE);
+                check(cache.contains(txHash, input, address), policy + ": added key missing at " + op);
+                lru.get(key);
+                hits++;
+            } else {
+                boolean hit = cache.contains(txHash, input, address);
+                if (policy == SignatureCache.EvictionPolicy.LRU)
+                    check(hit == (lru.get(key) != null), "LRU lookup at " + op);
+                else
+                    lru.get(key);
+                if (hit) hits++;
+            }
+            lookups++;
+            check(cache.size() <= CAPACITY, policy + ": size at " + op);
+            check(cache.getHits() == hits && cache.getMisses() == lookups - hits,
+                    policy + ": hit and miss counts at " + op);
+        }
+    }
+
+    private static void secondChance(SignatureCache.EvictionPolicy policy, Random random,
+            PublicKey address) {
+        SignatureCache cache = new SignatureCache(CAPACITY, policy);
+        int start = random.nextInt(1000);
+        for (int i = 0; i < CAPACITY; i++)
+            cache.add(txHash(start + i), 0, address);
+        for (int i = 1; i < CAPACITY; i++)
+            check(cache.contains(txHash(start + i), 0, address), policy + ": entry " + i + " lost");
+        cache.add(txHash(start + CAPACITY), 0, address);
+        check(!cache.contains(txHash(start), 0, address), policy + ": unused entry kept");
+        for (int i = 1; i <= CAPACITY; i++)
+            check(cache.contains(txHash(start + i), 0, address), policy + ": used entry " + i + " evicted");
+    }
+
+    /** @return a distinct 32 byte hash for {@code n} */
+    private static byte[] txHash(int n) {
+        byte[] hash = new byte[32];
+        for (int i = 0; i < 4; i++)
+            hash[i] = (byte) (n >>> (8 * i));
+        return hash;
+    }
+}
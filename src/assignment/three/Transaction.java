@@ -1,8 +1,6 @@
 package assignment.three;
 
-import java.nio.ByteBuffer;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
@@ -114,6 +112,11 @@ public class Transaction {
     private byte[] hash;
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
+    /**
+     * serialized outputs section shared by every input's data to sign and the raw transaction;
+     * built by {@link #finalize()} and ignored once the outputs no longer match it
+     */
+    private RawOutputs rawOutputs;
     private boolean coinbase;
 
     public Transaction() {
@@ -126,6 +129,7 @@ public class Transaction {
         hash = tx.hash.clone();
         inputs = new ArrayList<Input>(tx.inputs);
         outputs = new ArrayList<Output>(tx.outputs);
+        rawOutputs = tx.rawOutputs;
         coinbase = false;
     }
 
@@ -150,6 +154,7 @@ public class Transaction {
     public void addOutput(double value, PublicKey address) {
         Output op = new Output(value, address);
         outputs.add(op);
+        rawOutputs = null;
     }
 
     public void removeInput(int index) {
@@ -169,37 +174,23 @@ public class Transaction {
 
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
-        Input in = inputs.get(index);
-        byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
-        if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                sigData.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                sigData.add(addressModulus[i]);
+        return TransactionSerializer.rawDataToSign(this, index);
+    }
+
+    /**
+     * @return the serialized outputs section; the copy made by {@link #finalize()} and reused for
+     *         every input while the outputs are as they were then, and otherwise encoded afresh
+     */
+    byte[] getRawOutputs() {
+        RawOutputs raw = rawOutputs;
+        if (raw != null) {
+            if (raw.matches(outputs)) return raw.bytes;
+            // an output was changed through getOutputs() or its public fields
+            rawOutputs = null;
         }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
-        return sigD;
+        return TransactionSerializer.outputsSection(this);
     }
 
     public void addSignature(byte[] signature, int index) {
@@ -207,50 +198,27 @@ public class Transaction {
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
-        for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
-        }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                rawTx.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                rawTx.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                rawTx.add(addressModulus[i]);
-        }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+        return TransactionSerializer.rawTx(this);
     }
 
+    /**
+     * @return the SHA-256 of {@link #getRawTx()}, streamed field by field, without storing it as
+     *         this transaction's hash
+     */
+    public byte[] computeHash() {
+        MessageDigest md = Sha256.get();
+        TransactionSerializer.digestRawTx(this, md);
+        return md.digest();
+    }
+
+    /**
+     * Computes the hash and keeps the serialized outputs for the data to sign and the raw
+     * transaction. The outputs may still change afterwards, which drops what was kept, but the
+     * hash is only brought up to date by calling this again.
+     */
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
-        }
+        rawOutputs = new RawOutputs(outputs, TransactionSerializer.outputsSection(this));
+        hash = computeHash();
     }
 
     public void setHash(byte[] h) {
@@ -329,4 +297,38 @@ public class Transaction {
         }
         return hash;
     }
+
+    /**
+     * the serialized outputs section together with the outputs, values and addresses it was built
+     * from; comparing them costs far less than encoding the addresses again
+     */
+    private static final class RawOutputs {
+        private final byte[] bytes;
+        private final Output[] outputs;
+        private final double[] values;
+        private final PublicKey[] addresses;
+
+        private RawOutputs(ArrayList<Output> outputs, byte[] bytes) {
+            this.bytes = bytes;
+            this.outputs = outputs.toArray(new Output[0]);
+            values = new double[this.outputs.length];
+            addresses = new PublicKey[this.outputs.length];
+            for (int i = 0; i < this.outputs.length; i++) {
+                values[i] = this.outputs[i].value;
+                addresses[i] = this.outputs[i].address;
+            }
+        }
+
+        /** @return true if {@code current} holds the same outputs with the same fields */
+        private boolean matches(ArrayList<Output> current) {
+            if (current.size() != outputs.length) return false;
+            for (int i = 0; i < outputs.length; i++) {
+                Output op = current.get(i);
+                if (op != outputs[i] || op.address != addresses[i]
+                        || Double.doubleToLongBits(op.value) != Double.doubleToLongBits(values[i]))
+                    return false;
+            }
+            return true;
+        }
+    }
 }
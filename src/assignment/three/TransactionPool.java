@@ -1,28 +1,177 @@
 package assignment.three;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 
+/**
+ * Pending transactions. An unbounded pool, the default, takes every transaction it is given. A
+ * bounded pool prices each transaction against the tip UTXO set and its pending parents, keeps
+ * them ordered by fee per serialized byte, and evicts the lowest fee rate first once it holds
+ * more than its transaction or byte limit.
+ *
+ * <p>The transactions, their indexes and the fee rate order are kept in persistent structures, so
+ * copying a pool takes O(1) time and the copy hands out its transactions by fee rate without
+ * sorting them again.
+ */
 public class TransactionPool {
 
-    private HashMap<ByteArrayWrapper, Transaction> H;
+    private PersistentMap<ByteArrayWrapper, Transaction> H;
+    // pending transactions by the outputs they spend; conflicting transactions share an entry,
+    // an array that is replaced rather than modified, as copies of the pool share it
+    private PersistentMap<UTXO, Transaction[]> spenders;
+
+    // bounded mode only: limits, the priced transactions and their total size
+    private final boolean bounded;
+    private final int maxTransactions;
+    private final long maxBytes;
+    private PersistentMap<ByteArrayWrapper, Entry> entries;
+    // the entries ordered by fee rate
+    private PersistentSortedSet<Entry> byFeeRate;
+    private long bytes;
+    private long sequence;
 
     public TransactionPool() {
-        H = new HashMap<ByteArrayWrapper, Transaction>();
+        H = new PersistentMap<ByteArrayWrapper, Transaction>();
+        spenders = new PersistentMap<UTXO, Transaction[]>();
+        bounded = false;
+        maxTransactions = Integer.MAX_VALUE;
+        maxBytes = Long.MAX_VALUE;
+    }
+
+    /**
+     * Creates a bounded pool holding at most {@code maxTransactions} transactions of at most
+     * {@code maxBytes} serialized bytes in total. Transactions must be added with
+     * {@link #addTransaction(Transaction, UTXOPool)}.
+     */
+    public TransactionPool(int maxTransactions, long maxBytes) {
+        if (maxTransactions <= 0 || maxBytes <= 0)
+            throw new IllegalArgumentException("limits must be positive");
+        H = new PersistentMap<ByteArrayWrapper, Transaction>();
+        spenders = new PersistentMap<UTXO, Transaction[]>();
+        bounded = true;
+        this.maxTransactions = maxTransactions;
+        this.maxBytes = maxBytes;
+        entries = new PersistentMap<ByteArrayWrapper, Entry>();
+        byFeeRate = new PersistentSortedSet<Entry>();
     }
 
+    /** Creates an independent pool with the contents of {@code txPool}, in O(1) time */
     public TransactionPool(TransactionPool txPool) {
-        H = new HashMap<ByteArrayWrapper, Transaction>(txPool.H);
+        H = txPool.H.copy();
+        spenders = txPool.spenders.copy();
+        bounded = txPool.bounded;
+        maxTransactions = txPool.maxTransactions;
+        maxBytes = txPool.maxBytes;
+        if (bounded) {
+            entries = txPool.entries.copy();
+            byFeeRate = txPool.byFeeRate.copy();
+            bytes = txPool.bytes;
+            sequence = txPool.sequence;
+        }
     }
 
+    /** Adds {@code tx} to an unbounded pool */
     public void addTransaction(Transaction tx) {
+        if (bounded)
+            throw new IllegalStateException("a bounded pool needs the UTXO set to price transactions");
+        put(tx);
+    }
+
+    /**
+     * Adds {@code tx}, pricing it against {@code utxoPool} and the pending transactions in a
+     * bounded pool; an unbounded pool ignores {@code utxoPool}. A bounded pool rejects a
+     * transaction whose inputs it cannot resolve or spend an output twice, or whose outputs exceed
+     * its inputs, and makes room by evicting the lowest fee rate transactions together with their
+     * descendants.
+     *
+     * @return true if {@code tx} is in the pool afterwards
+     */
+    public boolean addTransaction(Transaction tx, UTXOPool utxoPool) {
+        return addTransaction(tx, utxoPool, null);
+    }
+
+    /**
+     * Like {@link #addTransaction(Transaction, UTXOPool)}, and adds the transactions evicted to
+     * make room, {@code tx} itself included if it did not stay, to {@code evicted} unless null
+     */
+    boolean addTransaction(Transaction tx, UTXOPool utxoPool, List<Transaction> evicted) {
+        if (!bounded) {
+            put(tx);
+            return true;
+        }
+        double fee = 0;
+        // an output spent twice would count twice and inflate the fee rate
+        HashSet<UTXO> spent = new HashSet<UTXO>();
+        for (Transaction.Input in : tx.getInputs()) {
+            UTXO utxo = spentOutput(in);
+            Transaction.Output out = utxo == null || !spent.add(utxo) ? null
+                    : resolve(utxo, utxoPool);
+            if (out == null) return false;
+            fee += out.value;
+        }
+        for (Transaction.Output out : tx.getOutputs())
+            fee -= out.value;
+        int size = TransactionSerializer.rawTxSize(tx);
+        if (fee < 0 || size > maxBytes) return false;
+
+        ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
+        put(tx);
+        Entry entry = new Entry(tx, fee, size, sequence++);
+        entries.put(hash, entry);
+        byFeeRate.add(entry);
+        bytes += size;
+        while (H.size() > maxTransactions || bytes > maxBytes) {
+            ArrayDeque<Transaction> lowest = new ArrayDeque<Transaction>();
+            lowest.add(byFeeRate.first().tx);
+            removeWithDescendants(lowest, evicted);
+        }
+        return H.containsKey(hash);
+    }
+
+    private Transaction.Output resolve(UTXO utxo, UTXOPool utxoPool) {
+        Transaction.Output out = utxoPool.getTxOutput(utxo);
+        if (out != null) return out;
+        Transaction parent = H.get(new ByteArrayWrapper(utxo.getTxHash()));
+        if (parent == null || utxo.getIndex() < 0 || utxo.getIndex() >= parent.numOutputs())
+            return null;
+        return parent.getOutput(utxo.getIndex());
+    }
+
+    private void put(Transaction tx) {
         ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
-        H.put(hash, tx);
+        Transaction old = H.put(hash, tx);
+        if (old != null) unindex(old);
+        for (Transaction.Input in : tx.getInputs()) {
+            UTXO utxo = spentOutput(in);
+            if (utxo == null) continue;
+            Transaction[] spending = spenders.get(utxo);
+            if (spending == null) {
+                spenders.put(utxo, new Transaction[] { tx });
+            } else {
+                spending = Arrays.copyOf(spending, spending.length + 1);
+                spending[spending.length - 1] = tx;
+                spenders.put(utxo, spending);
+            }
+        }
+    }
+
+    /**
+     * @return the output {@code in} spends, or null if it names none; an unbounded pool keeps
+     *         such a transaction, as it always has, but cannot index it by that input
+     */
+    private static UTXO spentOutput(Transaction.Input in) {
+        return in == null || in.prevTxHash == null ? null : new UTXO(in.prevTxHash, in.outputIndex);
     }
 
     public void removeTransaction(byte[] txHash) {
         ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        H.remove(hash);
+        Transaction tx = H.remove(hash);
+        if (tx != null) unindex(tx);
     }
 
     public Transaction getTransaction(byte[] txHash) {
@@ -30,10 +179,145 @@ public class TransactionPool {
         return H.get(hash);
     }
 
+    /** @return the pending transactions; from the highest fee rate to the lowest if bounded */
     public ArrayList<Transaction> getTransactions() {
         ArrayList<Transaction> T = new ArrayList<Transaction>();
-        for (Transaction tx : H.values())
-            T.add(tx);
+        if (bounded) {
+            for (Iterator<Entry> it = byFeeRate.descendingIterator(); it.hasNext();)
+                T.add(it.next().tx);
+            return T;
+        }
+        H.forEach((hash, tx) -> T.add(tx));
         return T;
     }
+
+    /** @return the pending transactions that spend {@code utxo} */
+    public List<Transaction> getSpenders(UTXO utxo) {
+        Transaction[] txs = spenders.get(utxo);
+        return txs == null ? new ArrayList<Transaction>() : new ArrayList<Transaction>(Arrays.asList(txs));
+    }
+
+    public int size() {
+        return H.size();
+    }
+
+    /** @return the total serialized size of the pending transactions; 0 if unbounded */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /** @return the fee of pending {@code txHash}, or NaN if unknown or the pool is unbounded */
+    public double getFee(byte[] txHash) {
+        Entry e = bounded ? entries.get(new ByteArrayWrapper(txHash)) : null;
+        return e == null ? Double.NaN : e.fee;
+    }
+
+    /**
+     * Updates the pool for {@code block} joining the main chain: removes the transactions it
+     * includes, and those that spend an output the block spends together with everything that
+     * spends their outputs in turn. Takes time in proportion to the size of the block and the
+     * number of transactions removed, not to the size of the pool.
+     */
+    public void blockConnected(Block block) {
+        List<Transaction> txs = block.getTransactions();
+        for (Transaction tx : txs)
+            removeTransaction(tx.getHash());
+        ArrayDeque<Transaction> conflicts = new ArrayDeque<Transaction>();
+        for (Transaction tx : txs) {
+            for (Transaction.Input in : tx.getInputs()) {
+                UTXO utxo = spentOutput(in);
+                Transaction[] spending = utxo == null ? null : spenders.get(utxo);
+                if (spending != null) Collections.addAll(conflicts, spending);
+            }
+        }
+        removeWithDescendants(conflicts, null);
+    }
+
+    /**
+     * Updates the pool for {@code block} leaving the main chain in a reorganization: its
+     * transactions are pending again. Call this for the disconnected blocks from the old tip down,
+     * then {@link #blockConnected(Block)} for the new branch from the fork up. In a bounded pool,
+     * a transaction of the block that does not get back in takes the pending transactions that
+     * spend its outputs with it.
+     *
+     * @param before the UTXO set before {@code block}, used to price its transactions again
+     */
+    public void blockDisconnected(Block block, UTXOPool before) {
+        List<Transaction> txs = block.getTransactions();
+        if (!bounded) {
+            for (Transaction tx : txs)
+                put(tx);
+            return;
+        }
+        // in block order, so an input that spends an earlier transaction of the block resolves
+        // through that transaction if it is pending again, and fails if it was evicted
+        for (Transaction tx : txs) {
+            if (addTransaction(tx, before))
+                continue;
+            ArrayDeque<Transaction> orphaned = new ArrayDeque<Transaction>();
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                Transaction[] spending = spenders.get(new UTXO(tx.getHash(), i));
+                if (spending != null) Collections.addAll(orphaned, spending);
+            }
+            removeWithDescendants(orphaned, null);
+        }
+    }
+
+    /**
+     * removes {@code txs} and every pending transaction that spends one of their outputs, adding
+     * each removed transaction to {@code removed} unless null
+     */
+    private void removeWithDescendants(ArrayDeque<Transaction> txs, List<Transaction> removed) {
+        while (!txs.isEmpty()) {
+            Transaction tx = txs.poll();
+            if (H.remove(new ByteArrayWrapper(tx.getHash())) == null) continue;
+            unindex(tx);
+            if (removed != null) removed.add(tx);
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                Transaction[] spending = spenders.get(new UTXO(tx.getHash(), i));
+                if (spending != null) Collections.addAll(txs, spending);
+            }
+        }
+    }
+
+    private void unindex(Transaction tx) {
+        if (bounded) {
+            Entry e = entries.remove(new ByteArrayWrapper(tx.getHash()));
+            if (e != null) {
+                byFeeRate.remove(e);
+                bytes -= e.size;
+            }
+        }
+        for (Transaction.Input in : tx.getInputs()) {
+            UTXO utxo = spentOutput(in);
+            Transaction[] spending = utxo == null ? null : spenders.get(utxo);
+            if (spending == null) continue;
+            // by identity: Transaction.Input.equals fails on unsigned inputs
+            Transaction[] rest = Arrays.stream(spending).filter(t -> t != tx).toArray(Transaction[]::new);
+            if (rest.length == 0) spenders.remove(utxo);
+            else if (rest.length != spending.length) spenders.put(utxo, rest);
+        }
+    }
+
+    /** a priced transaction; orders by fee rate, then the most recently added first */
+    private static final class Entry implements Comparable<Entry> {
+        private final Transaction tx;
+        private final double fee;
+        private final int size;
+        private final double feeRate;
+        private final long sequence;
+
+        private Entry(Transaction tx, double fee, int size, long sequence) {
+            this.tx = tx;
+            this.fee = fee;
+            this.size = size;
+            this.feeRate = fee / size;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(Entry o) {
+            int c = Double.compare(feeRate, o.feeRate);
+            return c != 0 ? c : Long.compare(o.sequence, sequence);
+        }
+    }
 }
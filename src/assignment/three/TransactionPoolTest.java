@@ -0,0 +1,202 @@
+package assignment.three;
+
+import static assignment.three.Checks.check;
+
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Runs 3000 random steps against a TransactionPool capped at 40 transactions and 10000 bytes.
+ * Each step adds a transaction spending the UTXO set or pending transactions, connects a block
+ * of pending transactions and perhaps a conflicting one, or disconnects the last block. An add
+ * must report whether the transaction is now pending, must refuse an input that does not
+ * resolve or repeats another without evicting anything, and whatever it evicts must be gone.
+ * Mined transactions must leave the pool. After every step the pool must be within both caps,
+ * list its transactions by falling fee rate with the right fees and byte count, and hold none
+ * whose inputs neither the UTXO set nor another pending transaction provides. A copy of the
+ * pool must list the same transactions in the same order, and the test now and then goes on
+ * with the copy. Transactions are not signed, since the pool does not check signatures. The
+ * optional argument is the random seed.
+ */
+public class TransactionPoolTest {
+
+    private static final int MAX_TRANSACTIONS = 40;
+    private static final long MAX_BYTES = 40 * 250;
+
+    public static void main(String[] args) {
+        Random random = new Random(Checks.seed(args));
+        PublicKey address = Checks.newKeyPair(random).getPublic();
+        Transaction funding = new Transaction();
+        for (int i = 0; i < 60; i++)
+            funding.addOutput(1 + random.nextInt(100), address);
+        funding.finalize();
+        UTXOPool utxos = new UTXOPool();
+        for (int i = 0; i < funding.numOutputs(); i++)
+            utxos.addUTXO(new UTXO(funding.getHash(), i), funding.getOutput(i));
+
+        TransactionPool pool = new TransactionPool(MAX_TRANSACTIONS, MAX_BYTES);
+        // the connected blocks, each with the UTXO set before it
+        ArrayDeque<Block> connected = new ArrayDeque<>();
+        ArrayDeque<UTXOPool> before = new ArrayDeque<>();
+        int evictions = 0;
+        for (int step = 0; step < 3000; step++) {
+            int kind = random.nextInt(20);
+            if (kind < 16) {
+                Transaction tx = randomTransaction(utxos, pool, address, random);
+                boolean valid = fee(tx, utxos, pool) >= 0;
+                int size = pool.size();
+                ArrayList<Transaction> evicted = new ArrayList<>();
+                boolean added = pool.addTransaction(tx, utxos, evicted);
+                check(added == (pool.getTransaction(tx.getHash()) != null), "result of add at " + step);
+                check(valid || !added && evicted.isEmpty() && pool.size() == size, "invalid added at " + step);
+                for (Transaction t : evicted)
+                    check(pool.getTransaction(t.getHash()) == null, "evicted still pending at " + step);
+                evictions += evicted.size();
+            } else if (kind < 19) {
+                Block block = randomBlock(utxos, pool, address, random);
+                before.push(utxos.copy());
+                connected.push(block);
+                apply(utxos, block);
+                pool.blockConnected(block);
+                for (Transaction tx : block.getTransactions())
+                    check(pool.getTransaction(tx.getHash()) == null, "mined still pending at " + step);
+            } else if (!connected.isEmpty()) {
+                utxos = before.pop();
+                pool.blockDisconnected(connected.pop(), utxos);
+            }
+            checkPool(pool, utxos, "step " + step);
+            if (random.nextInt(10) == 0) {
+                // carry on with a copy, which must inherit the fee rate order
+                TransactionPool copy = new TransactionPool(pool);
+                check(copy.getTransactions().equals(pool.getTransactions()), "copy order at " + step);
+                pool = copy;
+            }
+        }
+        System.out.println("TransactionPoolTest passed, " + evictions + " evictions");
+    }
+
+    /** spends one or two outputs of the UTXO set or the pool, now and then one that does not exist */
+    private static Transaction randomTransaction(UTXOPool utxos, TransactionPool pool,
+            PublicKey address, Random random) {
+        ArrayList<UTXO> outputs = new ArrayList<>(utxos.getUTXOView());
+        for (Transaction pending : pool.getTransactions())
+            for (int i = 0; i < pending.numOutputs(); i++)
+                outputs.add(new UTXO(pending.getHash(), i));
+        Transaction tx = new Transaction();
+        double in = 0;
+        for (int i = 1 + random.nextInt(2); i > 0 && !outputs.isEmpty(); i--) {
+            UTXO utxo = outputs.remove(random.nextInt(outputs.size()));
+            if (random.nextInt(30) == 0)
+                utxo = new UTXO(new byte[] { (byte) random.nextInt() }, 0);
+            tx.addInput(utxo.getTxHash(), utxo.getIndex());
+            Transaction.Output spent = resolve(utxo, utxos, pool);
+            in += spent == null ? 0 : spent.value;
+            // now and then the same output again, which must not count twice
+            if (random.nextInt(20) == 0) {
+                tx.addInput(utxo.getTxHash(), utxo.getIndex());
+                in += spent == null ? 0 : spent.value;
+            }
+        }
+        // a fee of up to a tenth, or one in twenty spending more than the inputs
+        double out = in * (random.nextInt(20) == 0 ? 1.5 : 1 - random.nextDouble() / 10);
+        for (int i = 1 + random.nextInt(3); i > 0; i--)
+            tx.addOutput(out / (i + 1), address);
+        tx.finalize();
+        return tx;
+    }
+
+    /** a block with some pending transactions that apply in order, and perhaps one conflicting */
+    private static Block randomBlock(UTXOPool utxos, TransactionPool pool, PublicKey address,
+            Random random) {
+        Block block = new Block(new byte[32], address);
+        UTXOPool after = utxos.copy();
+        List<Transaction> pending = pool.getTransactions();
+        Collections.shuffle(pending, random);
+        // repeated passes let a child follow its parent
+        for (int pass = 0; pass < 3; pass++) {
+            for (Transaction tx : pending) {
+                if (random.nextInt(3) != 0 || !spendsOnly(tx, after))
+                    continue;
+                block.addTransaction(tx);
+                applyTx(after, tx);
+            }
+        }
+        if (random.nextBoolean() && after.size() > 0) {
+            ArrayList<UTXO> left = new ArrayList<>(after.getUTXOView());
+            UTXO utxo = left.get(random.nextInt(left.size()));
+            Transaction conflict = new Transaction();
+            conflict.addInput(utxo.getTxHash(), utxo.getIndex());
+            conflict.addOutput(after.getTxOutput(utxo).value, address);
+            conflict.finalize();
+            block.addTransaction(conflict);
+        }
+        block.finalize();
+        return block;
+    }
+
+    private static boolean spendsOnly(Transaction tx, UTXOPool utxos) {
+        for (Transaction.Input in : tx.getInputs())
+            if (!utxos.contains(new UTXO(in.prevTxHash, in.outputIndex)))
+                return false;
+        return true;
+    }
+
+    /** applies the transactions of {@code block}, not its coinbase, which nothing here spends */
+    private static void apply(UTXOPool utxos, Block block) {
+        for (Transaction tx : block.getTransactions())
+            applyTx(utxos, tx);
+    }
+
+    private static void applyTx(UTXOPool utxos, Transaction tx) {
+        for (Transaction.Input in : tx.getInputs())
+            utxos.removeUTXO(new UTXO(in.prevTxHash, in.outputIndex));
+        for (int i = 0; i < tx.numOutputs(); i++)
+            utxos.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+    }
+
+    private static Transaction.Output resolve(UTXO utxo, UTXOPool utxos, TransactionPool pool) {
+        Transaction.Output out = utxos.getTxOutput(utxo);
+        if (out != null)
+            return out;
+        Transaction parent = pool.getTransaction(utxo.getTxHash());
+        return parent == null || utxo.getIndex() >= parent.numOutputs() ? null
+                : parent.getOutput(utxo.getIndex());
+    }
+
+    /** @return the fee of {@code tx}, or -1 if an input does not resolve or repeats another */
+    private static double fee(Transaction tx, UTXOPool utxos, TransactionPool pool) {
+        double fee = 0;
+        HashSet<UTXO> spent = new HashSet<>();
+        for (Transaction.Input in : tx.getInputs()) {
+            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+            Transaction.Output out = resolve(utxo, utxos, pool);
+            if (out == null || !spent.add(utxo))
+                return -1;
+            fee += out.value;
+        }
+        for (Transaction.Output out : tx.getOutputs())
+            fee -= out.value;
+        return fee;
+    }
+
+    private static void checkPool(TransactionPool pool, UTXOPool utxos, String when) {
+        check(pool.size() <= MAX_TRANSACTIONS && pool.getBytes() <= MAX_BYTES, "limits at " + when);
+        long bytes = 0;
+        double lastRate = Double.POSITIVE_INFINITY;
+        for (Transaction tx : pool.getTransactions()) {
+            int size = TransactionSerializer.rawTxSize(tx);
+            bytes += size;
+            double fee = fee(tx, utxos, pool);
+            check(fee >= 0, "pending transaction does not resolve at " + when);
+            check(Math.abs(pool.getFee(tx.getHash()) - fee) < 1e-9, "fee at " + when);
+            check(fee / size <= lastRate, "fee rate order at " + when);
+            lastRate = fee / size;
+        }
+        check(bytes == pool.getBytes(), "byte count at " + when);
+    }
+}
@@ -0,0 +1,141 @@
+package assignment.three;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+
+/**
+ * Produces the byte formats of {@link Transaction#getRawDataToSign(int)} and
+ * {@link Transaction#getRawTx()} without boxing. The exact size is computed first and the data is
+ * written once, either into a new array or into a caller-supplied {@code ByteBuffer}.
+ *
+ * <p>Both formats end with the same outputs section: for every output, its value as a big-endian
+ * double followed by its encoded address.
+ */
+public class TransactionSerializer {
+
+    private static final int INT_BYTES = Integer.SIZE / 8;
+    private static final int DOUBLE_BYTES = Double.SIZE / 8;
+
+    private TransactionSerializer() {
+    }
+
+    /** @return the bytes signed by input {@code index}: that input's outpoint and all outputs */
+    public static byte[] rawDataToSign(Transaction tx, int index) {
+        Transaction.Input in = tx.getInputs().get(index);
+        byte[] outputs = tx.getRawOutputs();
+        ByteBuffer out = ByteBuffer.allocate(inputSize(in, false) + outputs.length);
+        writeInput(out, in, false);
+        out.put(outputs);
+        return out.array();
+    }
+
+    /** @return the serialized transaction: every input with its signature, then all outputs */
+    public static byte[] rawTx(Transaction tx) {
+        byte[] outputs = tx.getRawOutputs();
+        ByteBuffer out = ByteBuffer.allocate(inputsSize(tx) + outputs.length);
+        writeInputs(out, tx);
+        out.put(outputs);
+        return out.array();
+    }
+
+    /** @return the length of {@link #rawTx(Transaction)} */
+    public static int rawTxSize(Transaction tx) {
+        return inputsSize(tx) + tx.getRawOutputs().length;
+    }
+
+    /**
+     * Writes {@link #rawTx(Transaction)} into {@code out} at its current position.
+     *
+     * @throws java.nio.BufferOverflowException if fewer than {@link #rawTxSize(Transaction)} bytes
+     *         remain
+     */
+    public static void writeRawTx(Transaction tx, ByteBuffer out) {
+        writeInputs(out, tx);
+        out.put(tx.getRawOutputs());
+    }
+
+    /**
+     * Feeds the bytes of {@link #rawTx(Transaction)} into {@code md} field by field, without
+     * building the array.
+     */
+    public static void digestRawTx(Transaction tx, MessageDigest md) {
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash != null)
+                md.update(in.prevTxHash);
+            int index = in.outputIndex;
+            md.update((byte) (index >>> 24));
+            md.update((byte) (index >>> 16));
+            md.update((byte) (index >>> 8));
+            md.update((byte) index);
+            if (in.signature != null)
+                md.update(in.signature);
+        }
+        md.update(tx.getRawOutputs());
+    }
+
+    /**
+     * @return the outputs section shared by both formats, freshly encoded. Callers normally go
+     *         through {@link Transaction#getRawOutputs()}, which keeps it once the transaction is
+     *         finalized.
+     */
+    static byte[] outputsSection(Transaction tx) {
+        ArrayList<Transaction.Output> outputs = tx.getOutputs();
+        byte[][] addresses = new byte[outputs.size()][];
+        int size = 0;
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = encodeAddress(outputs.get(i).address);
+            size += DOUBLE_BYTES + addresses[i].length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        for (int i = 0; i < addresses.length; i++) {
+            out.putDouble(outputs.get(i).value);
+            out.put(addresses[i]);
+        }
+        return out.array();
+    }
+
+    /**
+     * @return the bytes that identify {@code address} in both formats: the RSA public exponent
+     *         followed by the modulus, each as a two's-complement big-endian integer
+     */
+    static byte[] encodeAddress(PublicKey address) {
+        byte[] exponent = ((RSAPublicKey) address).getPublicExponent().toByteArray();
+        byte[] modulus = ((RSAPublicKey) address).getModulus().toByteArray();
+        byte[] encoded = new byte[exponent.length + modulus.length];
+        System.arraycopy(exponent, 0, encoded, 0, exponent.length);
+        System.arraycopy(modulus, 0, encoded, exponent.length, modulus.length);
+        return encoded;
+    }
+
+    private static int inputsSize(Transaction tx) {
+        int size = 0;
+        for (Transaction.Input in : tx.getInputs())
+            size += inputSize(in, true);
+        return size;
+    }
+
+    private static void writeInputs(ByteBuffer out, Transaction tx) {
+        for (Transaction.Input in : tx.getInputs())
+            writeInput(out, in, true);
+    }
+
+    private static int inputSize(Transaction.Input in, boolean withSignature) {
+        int size = INT_BYTES;
+        if (in.prevTxHash != null)
+            size += in.prevTxHash.length;
+        if (withSignature && in.signature != null)
+            size += in.signature.length;
+        return size;
+    }
+
+    private static void writeInput(ByteBuffer out, Transaction.Input in, boolean withSignature) {
+        if (in.prevTxHash != null)
+            out.put(in.prevTxHash);
+        out.putInt(in.outputIndex);
+        if (withSignature && in.signature != null)
+            out.put(in.signature);
+    }
+}
@@ -2,19 +2,52 @@ package assignment.three;
 
 import java.io.Console;
 import java.security.PublicKey;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Stream;
 
 public class TxHandler {
 
     private UTXOPool utxoPool;
+    /** runs the signature verification stage of {@link #handleTxs(Transaction[])} */
+    private Executor verifier;
+    /** successful signature checks shared with other handlers, or null */
+    private SignatureCache signatureCache;
+
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
      * {@code utxoPool}. This should make a copy of utxoPool by using the UTXOPool(UTXOPool uPool)
      * constructor.
      */
     public TxHandler(UTXOPool utxoPool) {
+        this(utxoPool, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Same as {@link #TxHandler(UTXOPool)}, but epoch signatures are verified on {@code verifier}
+     * instead of the common fork-join pool.
+     */
+    public TxHandler(UTXOPool utxoPool, Executor verifier) {
+        this(utxoPool, verifier, null);
+    }
+
+    /**
+     * Same as {@link #TxHandler(UTXOPool)}, but signatures already recorded in
+     * {@code signatureCache} are not verified again, and new successful verifications are added to
+     * it.
+     */
+    public TxHandler(UTXOPool utxoPool, SignatureCache signatureCache) {
+        this(utxoPool, ForkJoinPool.commonPool(), signatureCache);
+    }
+
+    public TxHandler(UTXOPool utxoPool, Executor verifier, SignatureCache signatureCache) {
         this.utxoPool = utxoPool;
+        this.verifier = verifier;
+        this.signatureCache = signatureCache;
     }
 
     public UTXOPool getUTXOPool() {
@@ -31,16 +64,57 @@ public class TxHandler {
      *     values; and false otherwise.
      */
     public boolean isValidTx(Transaction tx) {
-        if (tx == null) return false;
-        boolean allClaimedOutputsInCurrentPool = areAllClaimedOutputsInCurrentPool(tx);
-        boolean inputSignaturesAreValid = areInputSignaturesValid(tx);
-        boolean noUTXOClaimedMultipleTimes = areNoUTXOClaimedMultipleTimes(tx);
-        boolean allTXOutputsAreNonNegative = areAllTXOutputsNonNegative(tx);
-        boolean sumOfInputsGreaterThanSumOfOutputs = isSumOfInputsGreaterThanSumOfOutputs(tx);
+        return validateTx(tx).isValid();
+    }
 
-        return allClaimedOutputsInCurrentPool && inputSignaturesAreValid &&
-                noUTXOClaimedMultipleTimes && allTXOutputsAreNonNegative &&
-                sumOfInputsGreaterThanSumOfOutputs;
+    /**
+     * Checks the same rules as {@link #isValidTx(Transaction)} in a single pass, stopping at the
+     * first failure. Each input is resolved against the pool exactly once, and the cheap checks
+     * (negative outputs, duplicate inputs, missing UTXOs, value balance) all run before any
+     * signature is verified.
+     *
+     * @return {@link TxValidationResult#VALID} or the reason {@code tx} was rejected
+     */
+    public TxValidationResult validateTx(Transaction tx) {
+        return validateTx(tx, true);
+    }
+
+    private TxValidationResult validateTx(Transaction tx, boolean checkSignatures) {
+        if (tx == null) return TxValidationResult.NULL_TRANSACTION;
+
+        for (Transaction.Output output : tx.getOutputs()) {
+            if (output.value < 0) return TxValidationResult.NEGATIVE_OUTPUT;
+        }
+
+        ArrayList<Transaction.Input> inputs = tx.getInputs();
+        HashSet<UTXO> claimed = new HashSet<>(inputs.size() * 2);
+        Transaction.Output[] resolved = new Transaction.Output[inputs.size()];
+        boolean missing = false;
+        for (int i = 0; i < inputs.size(); i++) {
+            Transaction.Input input = inputs.get(i);
+            if (input == null || input.prevTxHash == null) {
+                missing = true;
+                continue;
+            }
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            if (!claimed.add(utxo)) return TxValidationResult.DUPLICATE_INPUT;
+            resolved[i] = utxoPool.getTxOutput(utxo);
+            if (resolved[i] == null) missing = true;
+        }
+        if (missing) return TxValidationResult.MISSING_UTXO;
+
+        // same summation as isSumOfInputsGreaterThanSumOfOutputs, so rounding cannot disagree
+        double inputSum = Arrays.stream(resolved).mapToDouble(o -> o.value).sum();
+        double outputSum = tx.getOutputs().stream().mapToDouble(o -> o.value).sum();
+        if (inputSum < outputSum) return TxValidationResult.INSUFFICIENT_INPUT_VALUE;
+        if (!checkSignatures) return TxValidationResult.VALID;
+
+        byte[] contentHash = contentHash(tx);
+        for (int i = 0; i < inputs.size(); i++) {
+            if (!verifyInputSignature(tx, contentHash, i, resolved[i].address))
+                return TxValidationResult.INVALID_SIGNATURE;
+        }
+        return TxValidationResult.VALID;
     }
 
     public boolean areAllClaimedOutputsInCurrentPool(Transaction tx){
@@ -48,9 +122,8 @@ public class TxHandler {
         ArrayList<Transaction.Input> inputs = tx.getInputs();
         for(int i = 0; i < inputs.size(); i++) {
             Transaction.Input input = inputs.get(i);
-            ArrayList<UTXO> utxos = utxoPool.getAllUTXO();
             UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
-            valid = valid && utxos.contains(utxo);
+            valid = valid && utxoPool.contains(utxo);
         }
         return valid;
     }
@@ -99,11 +172,10 @@ public class TxHandler {
     }
 
     public boolean isSumOfInputsGreaterThanSumOfOutputs(Transaction tx){
-        ArrayList<UTXO> pUTXOs = utxoPool.getAllUTXO();
         double inputSum = tx.getInputs().stream()
-                .filter(input -> pUTXOs.contains(new UTXO(input.prevTxHash, input.outputIndex)))
-                .map(input -> new UTXO(input.prevTxHash, input.outputIndex))
-                .mapToDouble(utxo -> utxoPool.getTxOutput(utxo).value).sum();
+                .map(input -> utxoPool.getTxOutput(new UTXO(input.prevTxHash, input.outputIndex)))
+                .filter(output -> output != null)
+                .mapToDouble(output -> output.value).sum();
         double outputSum = tx.getOutputs().stream().mapToDouble(o -> o.value).sum();
         return inputSum >= outputSum;
     }
@@ -112,26 +184,250 @@ public class TxHandler {
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
      * updating the current UTXO pool as appropriate.
+     *
+     * <p>Transactions are processed in dependency order (see {@link #dependencyOrder}), so a
+     * transaction is accepted even if it was submitted before the transaction it spends from. When
+     * two transactions claim the same output, the one that comes first in that order wins. The
+     * accepted transactions are returned in the order they were applied. This reordering is for
+     * unordered epochs such as the transaction pool only; a block's transactions are connected in
+     * the order they are listed, see {@link #connectTxs(Transaction[])}.
+     *
+     * <p>Signatures are verified first for all transactions in parallel on the configured executor;
+     * the UTXO pool is then updated in one ordered, single-threaded pass. The accepted transactions
+     * are the same as if every transaction were checked with {@link #isValidTx(Transaction)} in
+     * turn, in dependency order.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
         if (possibleTxs == null) return new Transaction[0];
 
+        Boolean[] signaturesValid = verifyEpochSignatures(possibleTxs, false);
+
         ArrayList<Transaction> validTransactions = new ArrayList<>();
-        for(Transaction transaction: possibleTxs){
-            if (isValidTx(transaction)){
-                // remove all inputs from unspent transaction outputs
-                for(Transaction.Input input : transaction.getInputs())
-                    this.utxoPool.removeUTXO(new UTXO(input.prevTxHash, input.outputIndex));
-
-                byte[] txHash = transaction.getHash();
-                // add inputs into unspent transaction outputs
-                for(int i = 0; i < transaction.getOutputs().size(); i++){
-                    UTXO utxo = new UTXO(txHash, i);
-                    utxoPool.addUTXO(utxo, transaction.getOutput(i));
-                }
+        for(int t : dependencyOrder(possibleTxs)){
+            Transaction transaction = possibleTxs[t];
+            boolean valid = signaturesValid[t] == null
+                    ? isValidTx(transaction)
+                    : signaturesValid[t] && validateTx(transaction, false).isValid();
+            if (valid){
+                apply(transaction, null);
                 validTransactions.add(transaction);
             }
         }
         return validTransactions.toArray(new Transaction[validTransactions.size()]);
     }
-}
\ No newline at end of file
+
+    /**
+     * Connects a block's transactions: accepts all of {@code txs} or none of them. They are applied
+     * in the order they are listed, so a transaction that spends an output of a later one makes
+     * the block invalid, as does a transaction that is invalid when its turn comes.
+     *
+     * <p>The work is split in two phases. First the checks that do not depend on the order of
+     * application (negative outputs, duplicate inputs and the input signatures) run for all
+     * transactions in parallel on the configured executor; the first failure stops the tasks that
+     * have not started yet. Then the transactions are applied in order, checking that each one's
+     * inputs are unspent and cover its outputs; on the first failure every change is undone.
+     *
+     * @return {@code txs}, or null if any was invalid
+     */
+    public Transaction[] connectTxs(Transaction[] txs) {
+        if (txs == null) return new Transaction[0];
+
+        Boolean[] signaturesValid = verifyEpochSignatures(txs, true);
+        for (Boolean valid : signaturesValid)
+            if (valid != null && !valid) return null;
+
+        Journal journal = new Journal();
+        for (int t = 0; t < txs.length; t++) {
+            Transaction transaction = txs[t];
+            boolean valid = signaturesValid[t] == null
+                    ? isValidTx(transaction)
+                    : validateTx(transaction, false).isValid();
+            if (!valid) {
+                journal.undo(utxoPool);
+                return null;
+            }
+            apply(transaction, journal);
+        }
+        return txs.clone();
+    }
+
+    /**
+     * Spends the inputs of {@code tx} and adds its outputs to the pool, recording the changes in
+     * {@code journal} unless it is null.
+     */
+    private void apply(Transaction tx, Journal journal) {
+        // remove all inputs from unspent transaction outputs
+        for (Transaction.Input input : tx.getInputs()) {
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            if (journal != null) journal.record(utxoPool, utxo);
+            utxoPool.removeUTXO(utxo);
+        }
+
+        byte[] txHash = tx.getHash();
+        // add inputs into unspent transaction outputs
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            UTXO utxo = new UTXO(txHash, i);
+            if (journal != null) journal.record(utxoPool, utxo);
+            utxoPool.addUTXO(utxo, tx.getOutput(i));
+        }
+    }
+
+    /** the UTXOs a {@link #connectTxs} call changed, each with the output it had before */
+    private static class Journal {
+        private final ArrayList<UTXO> utxos = new ArrayList<>();
+        private final ArrayList<Transaction.Output> previous = new ArrayList<>();
+
+        void record(UTXOPool pool, UTXO utxo) {
+            utxos.add(utxo);
+            previous.add(pool.getTxOutput(utxo));
+        }
+
+        /** undoes the changes in reverse, so each UTXO ends up as it was before the first one */
+        void undo(UTXOPool pool) {
+            for (int i = utxos.size() - 1; i >= 0; i--) {
+                if (previous.get(i) == null) pool.removeUTXO(utxos.get(i));
+                else pool.addUTXO(utxos.get(i), previous.get(i));
+            }
+        }
+    }
+
+    /**
+     * Orders the epoch so that each transaction comes after every other candidate whose outputs it
+     * spends, using Kahn's algorithm over the {@code prevTxHash} references; the work is linear in
+     * the total number of inputs. Transactions become ready in submission order and are taken
+     * first-in first-out. Transactions on a cycle can never become ready and are appended at the
+     * end in submission order. The order is therefore fully determined by the input array.
+     *
+     * @return indices into {@code txs}
+     */
+    private int[] dependencyOrder(Transaction[] txs) {
+        int n = txs.length;
+        HashMap<ByteBuffer, ArrayList<Integer>> producers = new HashMap<>();
+        for (int t = 0; t < n; t++) {
+            if (txs[t] == null || txs[t].getHash() == null) continue;
+            producers.computeIfAbsent(ByteBuffer.wrap(txs[t].getHash()), h -> new ArrayList<>())
+                    .add(t);
+        }
+
+        int[] pendingParents = new int[n];
+        ArrayList<ArrayList<Integer>> children = new ArrayList<>(n);
+        for (int t = 0; t < n; t++)
+            children.add(null);
+        for (int t = 0; t < n; t++) {
+            if (txs[t] == null) continue;
+            for (Transaction.Input input : txs[t].getInputs()) {
+                if (input == null || input.prevTxHash == null) continue;
+                ArrayList<Integer> parents = producers.get(ByteBuffer.wrap(input.prevTxHash));
+                if (parents == null) continue;
+                for (int parent : parents) {
+                    if (children.get(parent) == null) children.set(parent, new ArrayList<>());
+                    children.get(parent).add(t);
+                    pendingParents[t]++;
+                }
+            }
+        }
+
+        int[] order = new int[n];
+        int head = 0, tail = 0;
+        for (int t = 0; t < n; t++)
+            if (pendingParents[t] == 0) order[tail++] = t;
+        while (head < tail) {
+            ArrayList<Integer> next = children.get(order[head++]);
+            if (next == null) continue;
+            for (int child : next)
+                if (--pendingParents[child] == 0) order[tail++] = child;
+        }
+        for (int t = 0; t < n && tail < n; t++)
+            if (pendingParents[t] > 0) order[tail++] = t;
+        return order;
+    }
+
+    /**
+     * Verifies the input signatures of every transaction in the epoch concurrently, after checking
+     * that its outputs are non-negative and its inputs distinct. An input can only ever be signed
+     * against one address: the output it names, either in the current pool or created by another
+     * transaction of the same epoch. That address does not depend on the order in which
+     * transactions are later applied, so the result can be computed up front.
+     *
+     * @param failFast whether to skip the remaining transactions once one has failed, leaving
+     *        their results null
+     * @return per transaction, false if it can never be valid, true if its signatures are valid,
+     *         or null where the claimed output is ambiguous and the sequential pass has to decide
+     */
+    private Boolean[] verifyEpochSignatures(Transaction[] txs, boolean failFast) {
+        HashMap<UTXO, Transaction.Output> epochOutputs = new HashMap<>();
+        HashSet<UTXO> ambiguous = new HashSet<>();
+        for (Transaction tx : txs) {
+            if (tx == null || tx.getHash() == null) continue;
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                UTXO utxo = new UTXO(tx.getHash(), i);
+                Transaction.Output previous = epochOutputs.put(utxo, tx.getOutput(i));
+                if ((previous != null && previous != tx.getOutput(i)) || utxoPool.contains(utxo))
+                    ambiguous.add(utxo);
+            }
+        }
+
+        Boolean[] result = new Boolean[txs.length];
+        AtomicBoolean failed = new AtomicBoolean();
+        CompletableFuture<?>[] tasks = new CompletableFuture<?>[txs.length];
+        for (int t = 0; t < txs.length; t++) {
+            final int index = t;
+            tasks[t] = CompletableFuture.runAsync(() -> {
+                if (failFast && failed.get()) return;
+                Boolean valid = verifyTxSignatures(txs[index], epochOutputs, ambiguous);
+                result[index] = valid;
+                if (valid != null && !valid) failed.set(true);
+            }, verifier);
+        }
+        CompletableFuture.allOf(tasks).join();
+        return result;
+    }
+
+    private Boolean verifyTxSignatures(Transaction tx, Map<UTXO, Transaction.Output> epochOutputs,
+                                       Set<UTXO> ambiguous) {
+        if (tx == null) return false;
+        for (Transaction.Output output : tx.getOutputs())
+            if (output.value < 0) return false;
+        ArrayList<Transaction.Input> inputs = tx.getInputs();
+        HashSet<UTXO> claimed = new HashSet<>(inputs.size() * 2);
+        for (Transaction.Input input : inputs) {
+            if (input == null || input.prevTxHash == null) return false;
+            if (!claimed.add(new UTXO(input.prevTxHash, input.outputIndex))) return false;
+        }
+        byte[] contentHash = contentHash(tx);
+        for (int i = 0; i < inputs.size(); i++) {
+            Transaction.Input input = inputs.get(i);
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            if (ambiguous.contains(utxo)) return null;
+            Transaction.Output output = utxoPool.getTxOutput(utxo);
+            if (output == null) output = epochOutputs.get(utxo);
+            // an output that exists nowhere can never be claimed, whatever the order
+            if (output == null) return false;
+            if (!verifyInputSignature(tx, contentHash, i, output.address)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Verifies the signature of input {@code i}, consulting the signature cache first.
+     * {@code contentHash} is the result of {@link #contentHash(Transaction)}, or null to bypass the
+     * cache.
+     */
+    private boolean verifyInputSignature(Transaction tx, byte[] contentHash, int i,
+                                         PublicKey address) {
+        if (contentHash != null && signatureCache.contains(contentHash, i, address)) return true;
+        boolean valid = verifySignature(address, getRawDataToSign(tx, i), tx.getInput(i));
+        if (valid && contentHash != null) signatureCache.add(contentHash, i, address);
+        return valid;
+    }
+
+    /**
+     * @return the SHA-256 of {@code tx}'s raw bytes when a signature cache is configured, else null.
+     *         {@code getHash()} is not used as a cache key because nothing guarantees it matches
+     *         the content.
+     */
+    private byte[] contentHash(Transaction tx) {
+        if (signatureCache == null) return null;
+        return tx.computeHash();
+    }
+}
@@ -0,0 +1,168 @@
+package assignment.three;
+
+import static assignment.three.Checks.check;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Each of 40 rounds builds a block of 50 transactions over a pool of 30 outputs, spending the
+ * pool and each other in listed order. In about half the rounds, one transaction after the
+ * first carries one of the FAULTS. The test first asserts that isValidTx, applied in listed
+ * order, rejects the block exactly when it has a fault. connectTxs then runs on the common pool,
+ * on four threads, on the calling thread, and with a shared SignatureCache. Each run must return
+ * all 50 transactions for a valid block and null for a faulty one. The pool must end up as the
+ * sequential check left it when the block is valid, and unchanged when it is not. The optional
+ * argument is the random seed.
+ */
+public class TxHandlerTest {
+
+    private static final String[] FAULTS = { "bad signature", "child before parent", "double spend",
+            "repeated input", "missing input", "negative output", "too little input" };
+
+    private static KeyPair[] keys;
+
+    public static void main(String[] args) {
+        Random random = new Random(Checks.seed(args));
+        keys = new KeyPair[3];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = Checks.newKeyPair(random);
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        Executor[] verifiers = { ForkJoinPool.commonPool(), threads, Runnable::run };
+        SignatureCache cache = new SignatureCache();
+        int connected = 0;
+        try {
+            for (int round = 0; round < 40; round++) {
+                UTXOPool pool = new UTXOPool();
+                for (int i = 0; i < 30; i++)
+                    pool.addUTXO(new UTXO(Checks.randomBytes(random, 32), 0),
+                            Checks.newOutput(10, keys[random.nextInt(keys.length)].getPublic()));
+                int fault = random.nextBoolean() ? random.nextInt(FAULTS.length) : -1;
+                Transaction[] txs = randomBlock(random, pool, fault);
+                UTXOPool expected = new UTXOPool(pool);
+                boolean valid = sequential(expected, txs);
+                String name = fault < 0 ? "valid block" : FAULTS[fault];
+                check(valid == (fault < 0), name + " judged " + valid + " in round " + round);
+
+                for (int v = 0; v <= verifiers.length; v++) {
+                    UTXOPool utxos = new UTXOPool(pool);
+                    TxHandler handler = v < verifiers.length ? new TxHandler(utxos, verifiers[v])
+                            : new TxHandler(utxos, cache);
+                    Transaction[] result = handler.connectTxs(txs);
+                    check(valid ? result != null && result.length == txs.length : result == null,
+                            name + " connected " + (result != null) + " in round " + round);
+                    check(Checks.sameContents(valid ? expected : pool, handler.getUTXOPool()),
+                            "pool after the " + name + " in round " + round);
+                }
+                if (valid) connected++;
+            }
+        } finally {
+            threads.shutdown();
+        }
+        System.out.println("TxHandlerTest passed, " + connected + " of 40 blocks connected");
+    }
+
+    /**
+     * @return fifty transactions that spend {@code pool} and each other's outputs in the order they
+     *         are listed, the one at a random position with fault {@code fault}, if not -1
+     */
+    private static Transaction[] randomBlock(Random random, UTXOPool pool, int fault) {
+        ArrayList<UTXO> unspent = new ArrayList<>(pool.getUTXOView());
+        UTXOPool outputs = new UTXOPool(pool);
+        ArrayList<UTXO> spent = new ArrayList<>();
+        ArrayList<Transaction> txs = new ArrayList<>();
+        // after the first, so that an earlier transaction has spent something
+        int faulty = 1 + random.nextInt(49);
+        while (txs.size() < 50) {
+            boolean faultHere = txs.size() == faulty;
+            ArrayList<UTXO> inputs = new ArrayList<>();
+            double in = 0;
+            if (faultHere && fault == 2) {
+                UTXO utxo = spent.get(random.nextInt(spent.size()));
+                inputs.add(utxo);
+                in += outputs.getTxOutput(utxo).value;
+            }
+            for (int i = 1 + random.nextInt(2); i > 0; i--) {
+                UTXO utxo = unspent.remove(random.nextInt(unspent.size()));
+                spent.add(utxo);
+                inputs.add(utxo);
+                in += outputs.getTxOutput(utxo).value;
+            }
+            if (faultHere && fault == 3) inputs.add(inputs.get(0));
+            if (faultHere && fault == 4) inputs.add(new UTXO(Checks.randomBytes(random, 32), 0));
+
+            Transaction tx = new Transaction();
+            for (UTXO utxo : inputs)
+                tx.addInput(utxo.getTxHash(), utxo.getIndex());
+            double out = faultHere && fault == 6 ? in + 1 : in - in * random.nextInt(2) / 10;
+            if (faultHere && fault == 5) {
+                tx.addOutput(out + 1, randomKey(random).getPublic());
+                tx.addOutput(-1, randomKey(random).getPublic());
+            } else if (random.nextBoolean()) {
+                tx.addOutput(out / 2, randomKey(random).getPublic());
+                tx.addOutput(out / 2, randomKey(random).getPublic());
+            } else {
+                tx.addOutput(out, randomKey(random).getPublic());
+            }
+            for (int i = 0; i < inputs.size(); i++) {
+                Transaction.Output claimed = outputs.getTxOutput(inputs.get(i));
+                KeyPair signer = claimed == null ? randomKey(random) : owner(claimed);
+                if (faultHere && fault == 0 && i == 0) signer = otherThan(signer);
+                Checks.sign(tx, signer.getPrivate(), i);
+            }
+            tx.finalize();
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                UTXO utxo = new UTXO(tx.getHash(), i);
+                outputs.addUTXO(utxo, tx.getOutput(i));
+                unspent.add(utxo);
+            }
+            txs.add(tx);
+            if (faultHere && fault == 1) {
+                // a child that spends tx goes right before it
+                UTXO utxo = new UTXO(tx.getHash(), 0);
+                unspent.remove(utxo);
+                Transaction child = new Transaction();
+                child.addInput(utxo.getTxHash(), utxo.getIndex());
+                child.addOutput(tx.getOutput(0).value, randomKey(random).getPublic());
+                Checks.sign(child, owner(tx.getOutput(0)).getPrivate(), 0);
+                child.finalize();
+                txs.add(txs.size() - 1, child);
+            }
+        }
+        return txs.toArray(new Transaction[0]);
+    }
+
+    /** applies {@code txs} to {@code utxos} in listed order; false, part way, if one is invalid */
+    private static boolean sequential(UTXOPool utxos, Transaction[] txs) {
+        TxHandler handler = new TxHandler(utxos);
+        for (Transaction tx : txs) {
+            if (!handler.isValidTx(tx))
+                return false;
+            for (Transaction.Input in : tx.getInputs())
+                utxos.removeUTXO(new UTXO(in.prevTxHash, in.outputIndex));
+            for (int i = 0; i < tx.numOutputs(); i++)
+                utxos.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+        }
+        return true;
+    }
+
+    private static KeyPair randomKey(Random random) {
+        return keys[random.nextInt(keys.length)];
+    }
+
+    private static KeyPair owner(Transaction.Output output) {
+        for (KeyPair key : keys)
+            if (key.getPublic().equals(output.address))
+                return key;
+        throw new IllegalArgumentException("unknown address");
+    }
+
+    private static KeyPair otherThan(KeyPair key) {
+        return keys[key == keys[0] ? 1 : 0];
+    }
+}
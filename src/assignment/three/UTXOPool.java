@@ -1,8 +1,10 @@
 package assignment.three;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Set;
+import java.util.stream.Stream;
 
 public class UTXOPool {
 
@@ -16,9 +18,33 @@ public class UTXOPool {
         H = new HashMap<UTXO, Transaction.Output>();
     }
 
+    /**
+     * For subclasses that keep their entries elsewhere: allocates no map when {@code withMap} is
+     * false, so such a subclass must override every public method that reads it.
+     */
+    protected UTXOPool(boolean withMap) {
+        H = withMap ? new HashMap<UTXO, Transaction.Output>() : null;
+    }
+
     /** Creates a new UTXOPool that is a copy of {@code uPool} */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        if (uPool.getClass() == UTXOPool.class) {
+            H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        } else {
+            // other implementations keep their entries elsewhere
+            H = new HashMap<UTXO, Transaction.Output>(uPool.size() * 4 / 3 + 1);
+            for (UTXO ut : uPool.getUTXOView())
+                H.put(ut, uPool.getTxOutput(ut));
+        }
+    }
+
+    /**
+     * @return a new pool with the same contents that can be changed independently of this one.
+     *         Subclasses return their own kind of pool, so a copy of a {@link PersistentUTXOPool}
+     *         takes constant time.
+     */
+    public UTXOPool copy() {
+        return new UTXOPool(this);
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
@@ -44,9 +70,27 @@ public class UTXOPool {
         return H.containsKey(utxo);
     }
 
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return H.size();
+    }
+
+    /**
+     * @return a read-only view of all UTXOs in the pool. The view is backed by the pool, so it is
+     *         not copied and reflects later changes; use {@link #getAllUTXO()} for a snapshot.
+     */
+    public Set<UTXO> getUTXOView() {
+        return Collections.unmodifiableSet(H.keySet());
+    }
+
+    /** @return a {@code Stream} over the UTXOs in the pool that does not copy them */
+    public Stream<UTXO> stream() {
+        return getUTXOView().stream();
+    }
+
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
+        Set<UTXO> setUTXO = getUTXOView();
         ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
         for (UTXO ut : setUTXO) {
             allUTXO.add(ut);
@@ -0,0 +1,261 @@
+package assignment.three;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+
+/**
+ * A UTXO set saved to a file together with the hash of the block it is the state after, so that
+ * a node can start from it instead of replaying the chain from the genesis block.
+ *
+ * <p>The file holds a table of the distinct addresses in their X.509 encoding, then one
+ * fixed-size record per UTXO, sorted by transaction hash and output index, and ends with the
+ * SHA-256 of everything before it. Equal sets therefore give identical files.
+ *
+ * <pre>
+ * snapshot := magic:i32 version:i32 bytes(blockHash) addressCount:i32 bytes(x509)*
+ *             hashLength:i32 recordCount:i64 record* sha256:32
+ * record   := txHashLength:u8 txHash:hashLength (zero padded) index:i32 value:f64 address:i32
+ * bytes    := length:i32 byte*     (length -1 for null)
+ * </pre>
+ *
+ * <p>{@link #write} streams the records out without building the file in memory, to a temporary
+ * file that then replaces {@code file} in one atomic move, so a crash never leaves a half-written
+ * snapshot behind. {@link #read} maps the file and decodes the records and builds a
+ * {@link PersistentUTXOPool} from them in parallel while the checksum is verified.
+ */
+public class UTXOSnapshot {
+
+    private static final int MAGIC = 0x55545853; // "UTXS"
+    private static final int VERSION = 1;
+    private static final int CHECKSUM_LENGTH = 32;
+    private static final int RECORDS_PER_TASK = 1 << 14;
+
+    private final byte[] blockHash;
+    private final PersistentUTXOPool pool;
+
+    private UTXOSnapshot(byte[] blockHash, PersistentUTXOPool pool) {
+        this.blockHash = blockHash;
+        this.pool = pool;
+    }
+
+    /** @return the hash of the block this is the UTXO set after */
+    public byte[] getBlockHash() {
+        return blockHash == null ? null : blockHash.clone();
+    }
+
+    public int size() {
+        return pool.size();
+    }
+
+    /** Adds every UTXO of the snapshot to {@code pool} */
+    public void addTo(UTXOPool pool) {
+        for (UTXO utxo : this.pool.getUTXOView())
+            pool.addUTXO(utxo, this.pool.getTxOutput(utxo));
+    }
+
+    /** @return a new pool with the contents of the snapshot; O(1), as it shares the snapshot's trie */
+    public PersistentUTXOPool toUTXOPool() {
+        return pool.copy();
+    }
+
+    /**
+     * Writes {@code pool}, the UTXO set after the block with hash {@code blockHash}, to
+     * {@code file}, replacing it atomically if it exists
+     */
+    public static void write(Path file, UTXOPool pool, byte[] blockHash) throws IOException {
+        UTXO[] sorted = pool.getUTXOView().toArray(new UTXO[0]);
+        Arrays.sort(sorted, UTXOSnapshot::compare);
+        HashMap<PublicKey, Integer> addressIds = new HashMap<>();
+        ArrayList<PublicKey> addresses = new ArrayList<>();
+        int hashLength = 0;
+        for (UTXO utxo : sorted) {
+            PublicKey address = pool.getTxOutput(utxo).address;
+            if (!addressIds.containsKey(address)) {
+                addressIds.put(address, addresses.size());
+                addresses.add(address);
+            }
+            if (utxo.getTxHash().length > 255)
+                throw new IllegalArgumentException("transaction hashes longer than 255 bytes");
+            hashLength = Math.max(hashLength, utxo.getTxHash().length);
+        }
+
+        // in the same directory, so that the move is a rename
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, file.getFileName() + ".", ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                // the streams are flushed, not closed, so that the channel can be forced first
+                MessageDigest md = Sha256.newDigest();
+                OutputStream fileOut = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+                DataOutputStream out = new DataOutputStream(new DigestOutputStream(fileOut, md));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeBytes(out, blockHash);
+                out.writeInt(addresses.size());
+                for (PublicKey address : addresses)
+                    writeBytes(out, BlockCodec.encodeAddress(address));
+                out.writeInt(hashLength);
+                out.writeLong(sorted.length);
+                byte[] padding = new byte[hashLength];
+                for (UTXO utxo : sorted) {
+                    Transaction.Output output = pool.getTxOutput(utxo);
+                    byte[] txHash = utxo.getTxHash();
+                    out.writeByte(txHash.length);
+                    out.write(txHash);
+                    out.write(padding, 0, hashLength - txHash.length);
+                    out.writeInt(utxo.getIndex());
+                    out.writeDouble(output.value);
+                    out.writeInt(addressIds.get(output.address));
+                }
+                out.flush();
+                fileOut.write(md.digest());
+                fileOut.flush();
+                channel.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a snapshot written by {@link #write}.
+     *
+     * @throws IOException if the file cannot be read, is not a snapshot or fails its checksum
+     */
+    public static UTXOSnapshot read(Path file) throws IOException {
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (map.capacity() < CHECKSUM_LENGTH) throw new IOException("not a UTXO snapshot");
+        int contentLength = map.capacity() - CHECKSUM_LENGTH;
+
+        // hashing is sequential, so it runs alongside the decoding instead of before it
+        CompletableFuture<byte[]> checksum = CompletableFuture.supplyAsync(() -> {
+            MessageDigest md = Sha256.newDigest();
+            ByteBuffer content = map.duplicate();
+            content.limit(contentLength);
+            md.update(content);
+            return md.digest();
+        });
+        try {
+            ByteBuffer in = map.duplicate();
+            in.limit(contentLength);
+            if (in.getInt() != MAGIC || in.getInt() != VERSION)
+                throw new IOException("not a UTXO snapshot");
+            byte[] blockHash = readBytes(in);
+            int addressCount = in.getInt();
+            // each address takes at least its length, so a corrupt count fails here, not in new
+            if (addressCount < 0 || addressCount > in.remaining() / Integer.BYTES)
+                throw new IOException("UTXO snapshot is truncated or corrupt");
+            PublicKey[] addresses = new PublicKey[addressCount];
+            for (int i = 0; i < addresses.length; i++) {
+                byte[] encoded = readBytes(in);
+                if (encoded == null) throw new IOException("UTXO snapshot address " + i + " is missing");
+                addresses[i] = BlockCodec.decodeAddress(encoded);
+            }
+            int hashLength = in.getInt();
+            long count = in.getLong();
+            int recordSize = 1 + hashLength + Integer.BYTES + Double.BYTES + Integer.BYTES;
+            if (hashLength < 0 || hashLength > 255 || count < 0
+                    || count * recordSize != in.remaining())
+                throw new IOException("UTXO snapshot is truncated or corrupt");
+
+            int n = (int) count;
+            int start = in.position();
+            UTXO[] utxos = new UTXO[n];
+            Transaction.Output[] outputs = new Transaction.Output[n];
+            Transaction outputFactory = new Transaction();
+            IntStream.range(0, (n + RECORDS_PER_TASK - 1) / RECORDS_PER_TASK).parallel().forEach(task -> {
+                ByteBuffer records = map.duplicate();
+                int end = Math.min(n, (task + 1) * RECORDS_PER_TASK);
+                for (int i = task * RECORDS_PER_TASK; i < end; i++) {
+                    int off = start + i * recordSize;
+                    int length = records.get(off) & 0xff;
+                    if (length > hashLength) throw new UncheckedIOException(
+                            new IOException("UTXO snapshot record " + i + " is corrupt"));
+                    byte[] txHash = new byte[length];
+                    records.position(off + 1);
+                    records.get(txHash);
+                    int index = records.getInt(off + 1 + hashLength);
+                    double value = records.getDouble(off + 1 + hashLength + Integer.BYTES);
+                    int address = records.getInt(off + 1 + hashLength + Integer.BYTES + Double.BYTES);
+                    if (address < 0 || address >= addresses.length) throw new UncheckedIOException(
+                            new IOException("UTXO snapshot record " + i + " is corrupt"));
+                    utxos[i] = new UTXO(txHash, index);
+                    outputs[i] = outputFactory.new Output(value, addresses[address]);
+                }
+            });
+
+            // built before the checksum is checked, so that building overlaps hashing
+            PersistentUTXOPool pool = PersistentUTXOPool.build(utxos, outputs);
+
+            byte[] expected = new byte[CHECKSUM_LENGTH];
+            ByteBuffer trailer = map.duplicate();
+            trailer.position(contentLength);
+            trailer.get(expected);
+            if (!MessageDigest.isEqual(expected, checksum.join()))
+                throw new IOException("UTXO snapshot checksum mismatch");
+            return new UTXOSnapshot(blockHash, pool);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("UTXO snapshot is truncated", e);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            // a refused file may be rewritten at once, which must not fault the hashing thread
+            checksum.exceptionally(t -> null).join();
+        }
+    }
+
+    /** orders by transaction hash, compared as unsigned bytes, then by output index */
+    private static int compare(UTXO a, UTXO b) {
+        byte[] x = a.getTxHash();
+        byte[] y = b.getTxHash();
+        for (int i = 0; i < Math.min(x.length, y.length); i++) {
+            int c = (x[i] & 0xff) - (y[i] & 0xff);
+            if (c != 0) return c;
+        }
+        if (x.length != y.length) return x.length - y.length;
+        return Integer.compare(a.getIndex(), b.getIndex());
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        if (b == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static byte[] readBytes(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length == -1) return null;
+        if (length < 0 || length > in.remaining()) throw new IOException("bad length " + length);
+        byte[] b = new byte[length];
+        in.get(b);
+        return b;
+    }
+}
@@ -0,0 +1,113 @@
+package assignment.three;
+
+import static assignment.three.Checks.check;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/*
+ * Writes 30 random UTXO sets, from empty to 100000 entries and with transaction hashes of 0 to
+ * 40 bytes, each over the previous round's file. Each file must read back with the same size,
+ * block hash (null in some rounds) and contents, both through toUTXOPool and through addTo. The
+ * same set added in a shuffled order must write a byte-identical file. In files under 200000
+ * bytes, a one-bit flip in each of the first 64 bytes and in 20 random bytes, and a cut at a
+ * random length, must each make read throw an IOException. At the end only the two snapshot
+ * files may be left in the directory. The optional argument is the random seed.
+ */
+public class UTXOSnapshotTest {
+
+    public static void main(String[] args) throws IOException {
+        Random random = new Random(Checks.seed(args));
+        PublicKey[] addresses = Checks.newAddresses(random, 4);
+
+        Path dir = Files.createTempDirectory("snapshot");
+        Path file = dir.resolve("utxo.snapshot");
+        Path other = dir.resolve("other.snapshot");
+        try {
+            for (int round = 0; round < 30; round++) {
+                int size = round == 0 ? 0 : random.nextInt(round < 25 ? 300 : 100000);
+                ArrayList<UTXO> utxos = new ArrayList<>();
+                ArrayList<Transaction.Output> outputs = new ArrayList<>();
+                randomSet(random, addresses, size, utxos, outputs);
+                UTXOPool pool = new UTXOPool();
+                for (int i = 0; i < utxos.size(); i++)
+                    pool.addUTXO(utxos.get(i), outputs.get(i));
+                byte[] blockHash = random.nextInt(5) == 0 ? null : Checks.randomBytes(random, 32);
+
+                // writes over the previous round's file
+                UTXOSnapshot.write(file, pool, blockHash);
+                UTXOSnapshot snapshot = UTXOSnapshot.read(file);
+                check(snapshot.size() == pool.size(), "size in round " + round);
+                check(Arrays.equals(snapshot.getBlockHash(), blockHash), "block hash in round " + round);
+                check(Checks.sameContents(pool, snapshot.toUTXOPool()), "contents in round " + round);
+                UTXOPool added = new UTXOPool();
+                snapshot.addTo(added);
+                check(Checks.sameContents(pool, added), "addTo in round " + round);
+
+                ArrayList<Integer> order = new ArrayList<>();
+                for (int i = 0; i < utxos.size(); i++)
+                    order.add(i);
+                Collections.shuffle(order, random);
+                UTXOPool shuffled = new UTXOPool();
+                for (int i : order)
+                    shuffled.addUTXO(utxos.get(i), outputs.get(i));
+                UTXOSnapshot.write(other, shuffled, blockHash);
+                byte[] bytes = Files.readAllBytes(file);
+                check(Arrays.equals(bytes, Files.readAllBytes(other)), "files differ in round " + round);
+
+                if (bytes.length < 200000) {
+                    // every byte of the header, then random ones
+                    for (int i = 0; i < 20 + Math.min(bytes.length, 64); i++) {
+                        byte[] corrupt = bytes.clone();
+                        int at = i < Math.min(bytes.length, 64) ? i : random.nextInt(corrupt.length);
+                        corrupt[at] ^= 1 << random.nextInt(8);
+                        Files.write(other, corrupt);
+                        refused(other, "corrupted file in round " + round);
+                    }
+                    Files.write(other, Arrays.copyOf(bytes, random.nextInt(bytes.length)));
+                    refused(other, "truncated file in round " + round);
+                }
+            }
+            try (Stream<Path> files = Files.list(dir)) {
+                check(files.count() == 2, "temporary file left behind");
+            }
+        } finally {
+            Checks.deleteDirectory(dir);
+        }
+        System.out.println("UTXOSnapshotTest passed");
+    }
+
+    /** adds {@code size} random UTXOs, some of them sharing a transaction hash, to the lists */
+    private static void randomSet(Random random, PublicKey[] addresses, int size,
+            ArrayList<UTXO> utxos, ArrayList<Transaction.Output> outputs) {
+        int hashLength = 1 + random.nextInt(40);
+        byte[] txHash = null;
+        HashSet<UTXO> seen = new HashSet<>();
+        while (utxos.size() < size) {
+            if (txHash == null || random.nextInt(3) == 0)
+                txHash = Checks.randomBytes(random, random.nextInt(hashLength + 1));
+            UTXO utxo = new UTXO(txHash, random.nextInt(8));
+            if (!seen.add(utxo)) continue;
+            utxos.add(utxo);
+            outputs.add(Checks.newOutput(random.nextDouble() * 100,
+                    addresses[random.nextInt(addresses.length)]));
+        }
+    }
+
+    private static void refused(Path file, String message) {
+        try {
+            UTXOSnapshot.read(file);
+        } catch (IOException e) {
+            return;
+        }
+        throw new AssertionError(message + " was read");
+    }
+}